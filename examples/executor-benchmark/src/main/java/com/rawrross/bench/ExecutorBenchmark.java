@@ -0,0 +1,253 @@
+package com.rawrross.bench;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.rawrross.server.ExecutorStrategy;
+import com.rawrross.server.HTTPServer;
+import com.rawrross.server.ServerConfig;
+
+/**
+ * Compares the server's executor strategies under keep-alive load. For each
+ * strategy and connection count, a fresh server is started on the blocking
+ * transport and driven by closed-loop clients, each holding one keep-alive
+ * connection and sending its next request as soon as the previous response
+ * arrives.
+ * <p>
+ * Usage:
+ * 
+ * <pre>
+ * ExecutorBenchmark [--strategies FIXED,VIRTUAL,FORK_JOIN] [--connections 16,64,256,1024]
+ *                   [--threads N] [--delay-ms 0] [--warmup 3] [--duration 10] [--timeout-ms 2000]
+ * </pre>
+ * 
+ * <code>--delay-ms</code> makes the handler sleep before responding, to
+ * simulate a downstream call.
+ */
+public class ExecutorBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		List<ExecutorStrategy> strategies = List.of(ExecutorStrategy.FIXED, ExecutorStrategy.VIRTUAL,
+				ExecutorStrategy.FORK_JOIN);
+		int[] connections = { 16, 64, 256, 1024 };
+		int threads = new ServerConfig().getWorkerThreads();
+		int delayMs = 0;
+		int warmupSeconds = 3;
+		int durationSeconds = 10;
+		int timeoutMs = 2000;
+
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			switch (args[i]) {
+				case "--strategies" -> strategies = Arrays.stream(value.split(","))
+						.map(s -> ExecutorStrategy.valueOf(s.trim().toUpperCase()))
+						.toList();
+				case "--connections" -> connections = Arrays.stream(value.split(","))
+						.mapToInt(s -> Integer.parseInt(s.trim()))
+						.toArray();
+				case "--threads" -> threads = Integer.parseInt(value);
+				case "--delay-ms" -> delayMs = Integer.parseInt(value);
+				case "--warmup" -> warmupSeconds = Integer.parseInt(value);
+				case "--duration" -> durationSeconds = Integer.parseInt(value);
+				case "--timeout-ms" -> timeoutMs = Integer.parseInt(value);
+				default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+
+		System.out.printf("Java %s, %d processors, %d worker threads, handler delay %d ms%n",
+				Runtime.version(), Runtime.getRuntime().availableProcessors(), threads, delayMs);
+		System.out.printf("Warmup %d s, measure %d s, client timeout %d ms%n%n", warmupSeconds, durationSeconds,
+				timeoutMs);
+		System.out.printf("%-10s %8s %14s %10s %10s %10s %8s%n", "strategy", "conns", "throughput/s", "p50 ms",
+				"p99 ms", "max ms", "errors");
+
+		for (ExecutorStrategy strategy : strategies) {
+			for (int conns : connections) {
+				// Connections are only closed when idle ones are reaped for a waiting one
+				ServerConfig config = new ServerConfig()
+						.setExecutorStrategy(strategy)
+						.setWorkerThreads(threads)
+						.setMaxRequestsPerConnection(0);
+				Result result = run(config, conns, delayMs, warmupSeconds, durationSeconds, timeoutMs);
+
+				System.out.printf("%-10s %8d %14.0f %10.2f %10.2f %10.2f %8d%n", strategy, conns,
+						result.throughput, result.percentile(0.50), result.percentile(0.99), result.percentile(1.0),
+						result.errors);
+			}
+		}
+
+		System.exit(0);
+	}
+
+	private static Result run(ServerConfig config, int connections, int delayMs, int warmupSeconds,
+			int durationSeconds, int timeoutMs) throws Exception {
+		HTTPServer server = new HTTPServer(0, config);
+		server.setRequestHandler((request, response) -> {
+			if (delayMs > 0) {
+				try {
+					Thread.sleep(delayMs);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			response.setContentType("text/plain").setBody("ok");
+		});
+
+		byte[] request = ("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: keep-alive\r\n\r\n")
+				.getBytes(StandardCharsets.US_ASCII);
+
+		long start = System.nanoTime();
+		long measureFrom = start + warmupSeconds * 1_000_000_000L;
+		long measureUntil = measureFrom + durationSeconds * 1_000_000_000L;
+
+		List<Client> clients = new ArrayList<>();
+		LongAdder errors = new LongAdder();
+
+		try (ExecutorService clientThreads = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (int i = 0; i < connections; i++) {
+				Client client = new Client(server.getPort(), request, timeoutMs, measureFrom, measureUntil, errors);
+				clients.add(client);
+				clientThreads.execute(client);
+			}
+		}
+
+		server.stop();
+
+		long[] latencies = clients.stream()
+				.flatMapToLong(c -> Arrays.stream(c.latencies, 0, c.count))
+				.sorted()
+				.toArray();
+		return new Result(latencies, latencies.length / (double) durationSeconds, errors.sum());
+	}
+
+	private record Result(long[] latencies, double throughput, long errors) {
+
+		/** Latency at the given quantile, in milliseconds. */
+		double percentile(double quantile) {
+			if (latencies.length == 0)
+				return Double.NaN;
+			int index = (int) Math.ceil(quantile * latencies.length) - 1;
+			return latencies[Math.max(0, index)] / 1_000_000.0;
+		}
+
+	}
+
+	/**
+	 * One closed-loop keep-alive connection. Reconnects after a timeout or
+	 * error, since a late response would otherwise be read as the next one, and
+	 * after a response with <code>Connection: close</code>.
+	 */
+	private static class Client implements Runnable {
+
+		private final int port;
+		private final byte[] request;
+		private final int timeoutMs;
+		private final long measureFrom, measureUntil;
+		private final LongAdder errors;
+
+		long[] latencies = new long[1024];
+		int count;
+
+		Client(int port, byte[] request, int timeoutMs, long measureFrom, long measureUntil, LongAdder errors) {
+			this.port = port;
+			this.request = request;
+			this.timeoutMs = timeoutMs;
+			this.measureFrom = measureFrom;
+			this.measureUntil = measureUntil;
+			this.errors = errors;
+		}
+
+		@Override
+		public void run() {
+			while (System.nanoTime() < measureUntil) {
+				try (Socket socket = new Socket("localhost", port)) {
+					socket.setSoTimeout(timeoutMs);
+					socket.setTcpNoDelay(true);
+					InputStream in = new BufferedInputStream(socket.getInputStream());
+					OutputStream out = socket.getOutputStream();
+
+					long now;
+					while ((now = System.nanoTime()) < measureUntil) {
+						out.write(request);
+						out.flush();
+						boolean keepAlive = readResponse(in);
+
+						long end = System.nanoTime();
+						if (now >= measureFrom)
+							record(end - now);
+						if (!keepAlive)
+							break;
+					}
+				} catch (SocketTimeoutException e) {
+					if (System.nanoTime() >= measureFrom)
+						errors.increment();
+				} catch (IOException e) {
+					if (System.nanoTime() >= measureFrom)
+						errors.increment();
+					sleepQuietly(10);
+				}
+			}
+		}
+
+		private void record(long latency) {
+			if (count == latencies.length)
+				latencies = Arrays.copyOf(latencies, count * 2);
+			latencies[count++] = latency;
+		}
+
+		/**
+		 * Read a response head and its Content-Length body.
+		 *
+		 * @return <code>False</code> if the server closes the connection after the
+		 *         response.
+		 */
+		private static boolean readResponse(InputStream in) throws IOException {
+			StringBuilder line = new StringBuilder();
+			long contentLength = 0;
+			boolean keepAlive = true;
+
+			while (true) {
+				int b = in.read();
+				if (b < 0)
+					throw new EOFException();
+				if (b == '\n') {
+					if (line.isEmpty())
+						break;
+					String header = line.toString();
+					if (header.regionMatches(true, 0, "Content-Length:", 0, 15))
+						contentLength = Long.parseLong(header.substring(15).trim());
+					else if (header.regionMatches(true, 0, "Connection:", 0, 11))
+						keepAlive = !header.substring(11).trim().equalsIgnoreCase("close");
+					line.setLength(0);
+				} else if (b != '\r') {
+					line.append((char) b);
+				}
+			}
+
+			in.skipNBytes(contentLength);
+			return keepAlive;
+		}
+
+		private static void sleepQuietly(long millis) {
+			try {
+				Thread.sleep(millis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+	}
+
+}
@@ -1,22 +1,21 @@
 package com.rawrross.site;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
-import java.util.regex.Pattern;
+import java.time.Duration;
 
-import com.rawrross.server.HTTPRequest;
-import com.rawrross.server.HTTPResponse;
-import com.rawrross.server.HTTPResponse.HttpStatusCode;
 import com.rawrross.server.HTTPServer;
+import com.rawrross.server.MetricsHandler;
 import com.rawrross.server.RequestHandler;
-import com.rawrross.site.endpoint.Endpoint;
+import com.rawrross.server.ResponseCache;
+import com.rawrross.server.ResponseCache.Policy;
+import com.rawrross.server.Router;
+import com.rawrross.server.StaticFileHandler;
 import com.rawrross.site.endpoint.Fortune;
 import com.rawrross.site.endpoint.Index;
 import com.rawrross.site.endpoint.Pokemon;
 
-public class Main implements RequestHandler {
+public class Main {
 
 	public static void main(String[] args) throws IOException {
 		new Main();
@@ -24,52 +23,37 @@ public class Main implements RequestHandler {
 
 	private HTTPServer server;
 
-	private HashMap<String, Endpoint> endpoints;
+	private Router router;
 
-	public Main() throws IOException {
-		endpoints = new HashMap<>();
-		endpoints.put("/", new Index());
-		endpoints.put("/fortune", new Fortune());
-		endpoints.put("/pokemon", new Pokemon());
-
-		server = new HTTPServer(8080);
-		server.setRequestHandler(this);
-	}
+	private ResponseCache cache;
 
-	@Override
-	public void handleRequest(HTTPRequest request, HTTPResponse response) throws IOException {
-		String uri = request.getUri();
-		String closest = null;
-
-		for (String e : endpoints.keySet()) {
-			if (uri.startsWith(e) && (closest == null || closest.length() < e.length())) {
-				closest = e;
-			}
-		}
+	public Main() throws IOException {
+		router = new Router();
+		cache = new ResponseCache();
 
-		Endpoint e = endpoints.get(closest);
+		// The index never changes, and fortunes only depend on the name and age
+		addPage("/", cache.cache(new Index()::getPage, new Policy(Duration.ofHours(1))));
+		addPage("/fortune", cache.cache(new Fortune()::getPage,
+				new Policy(Duration.ofMinutes(10)).setParameters("name", "age")));
+		addPage("/pokemon", new Pokemon()::getPage);
 
-		if (e == null) {
-			response.setErrorStatus(HttpStatusCode.NOT_FOUND, request.getUri());
-		} else {
-			boolean isPage = uri.matches("^" + Pattern.quote(closest) + "\\/?(index.html)?");
+		// Everything else is a file from the resources directory
+		router.get("/*", new StaticFileHandler(Path.of("resources")));
 
-			if (isPage) {
-				e.getPage(request, response);
-			} else {
-				e.getFile(request, response);
-			}
-		}
+		server = new HTTPServer(8080);
+		router.get("/metrics", new MetricsHandler(server.getMetrics()));
+		server.setRequestHandler(router);
 	}
 
-	public static void getResourceFile(HTTPRequest request, HTTPResponse response) {
-		Path path = Path.of("resources", request.getUri());
-
-		if (Files.exists(path) && !Files.isDirectory(path)) {
-			response.setBody(path);
-		} else {
-			response.setErrorStatus(HttpStatusCode.NOT_FOUND, request.getUri());
-		}
+	/**
+	 * Route a page, with or without a trailing slash or <code>index.html</code>.
+	 */
+	private void addPage(String path, RequestHandler page) {
+		String dir = path.endsWith("/") ? path : path + "/";
+		if (!dir.equals(path))
+			router.get(path, page);
+		router.get(dir, page);
+		router.get(dir + "index.html", page);
 	}
 
 }
@@ -7,6 +7,4 @@ public interface Endpoint {
 	
 	public void getPage(HTTPRequest request, HTTPResponse response);
 
-	public void getFile(HTTPRequest request, HTTPResponse response);
-
 }
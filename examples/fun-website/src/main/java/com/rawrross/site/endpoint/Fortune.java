@@ -12,7 +12,6 @@ import org.jsoup.nodes.Element;
 import com.rawrross.server.HTTPRequest;
 import com.rawrross.server.HTTPResponse;
 import com.rawrross.server.HTTPServer;
-import com.rawrross.site.Main;
 
 public class Fortune implements Endpoint {
 
@@ -180,11 +179,6 @@ public class Fortune implements Endpoint {
 		response.setBody(doc);
 	}
 
-	@Override
-	public void getFile(HTTPRequest request, HTTPResponse response) {
-		Main.getResourceFile(request, response);
-	}
-
 	/**
 	 * Generate a fortune based on the given <code>name</code> and <code>age</code>.
 	 * Repeated calls with the same arguments will produce the same fortune.
@@ -5,7 +5,6 @@ import org.jsoup.nodes.Element;
 
 import com.rawrross.server.HTTPRequest;
 import com.rawrross.server.HTTPResponse;
-import com.rawrross.site.Main;
 
 public class Index implements Endpoint {
 
@@ -40,9 +39,4 @@ public class Index implements Endpoint {
 		response.setBody(doc);
 	}
 
-	@Override
-	public void getFile(HTTPRequest request, HTTPResponse response) {
-		Main.getResourceFile(request, response);
-	}
-
 }
@@ -13,7 +13,6 @@ import org.jsoup.nodes.Element;
 import com.rawrross.server.HTTPRequest;
 import com.rawrross.server.HTTPResponse;
 import com.rawrross.server.HTTPServer;
-import com.rawrross.site.Main;
 
 public class Pokemon implements Endpoint {
 
@@ -299,11 +298,6 @@ public class Pokemon implements Endpoint {
 		response.setBody(doc);
 	}
 
-	@Override
-	public void getFile(HTTPRequest request, HTTPResponse response) {
-		Main.getResourceFile(request, response);
-	}
-
 	private Element createTypeSelection(String name, String label) {
 		Element div = new Element("div")
 				.addClass("form-row");
@@ -0,0 +1,285 @@
+package com.rawrross.load;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One keep-alive connection to the server under test. A writer thread sends
+ * requests while this connection's own thread reads the responses, so up to the
+ * pipeline depth of requests can be outstanding at once.
+ * <p>
+ * In a closed loop, the next request is sent as soon as the window allows. In
+ * an open loop, requests are sent on a fixed schedule, and each latency is
+ * measured from when its request was scheduled to be sent rather than when it
+ * was sent. A server that stalls therefore cannot hold back the requests that
+ * would have measured the stall, which would otherwise hide it from the
+ * results (coordinated omission).
+ * <p>
+ * Nothing is sent after the measurement ends, so an overloaded server cannot
+ * stretch the run out; scheduled requests that were never sent are counted
+ * instead. After an error or a <code>Connection: close</code> response, the
+ * connection is reopened, and any requests still awaiting a response are
+ * counted as errors.
+ *
+ * @author Randy Ross
+ */
+class Connection implements Runnable {
+
+	/** Queued by the writer after its last request. */
+	private static final long DONE = Long.MIN_VALUE;
+	/** Queued by the writer when a request could not be sent. */
+	private static final long FAILED = Long.MIN_VALUE + 1;
+
+	private final InetSocketAddress address;
+	private final RequestMix mix;
+	private final int pipeline;
+	private final long firstSend, interval;
+	private final long measureFrom, measureUntil;
+	private final int timeoutMs;
+
+	final LatencyHistogram histogram = new LatencyHistogram();
+	/** Responses to requests scheduled during measurement. */
+	long completed;
+	/** Of the completed responses, those with a status of 400 or more. */
+	long unsuccessful;
+	/** Requests that failed, timed out, or were not answered. */
+	long errors;
+	/** Requests scheduled during measurement that were not sent before it ended. */
+	long unsent;
+	/** When the last response was read, from {@link System#nanoTime()}. */
+	long lastResponse;
+
+	/** Requests sent over every connection so far, which sets the schedule. */
+	private long sent;
+
+	private final StringBuilder line = new StringBuilder();
+	private int status;
+	private boolean closeAfter;
+
+	/**
+	 * @param address      The server's address.
+	 * @param mix          The requests to send.
+	 * @param pipeline     The most requests awaiting a response at once.
+	 * @param firstSend    When the first request is scheduled, from
+	 *                     {@link System#nanoTime()}.
+	 * @param interval     Nanoseconds between scheduled requests, or
+	 *                     <code>0</code> for a closed loop.
+	 * @param measureFrom  Requests scheduled before this time are warmup.
+	 * @param measureUntil No request is scheduled at or after this time.
+	 * @param timeoutMs    Timeout for connecting and for each read.
+	 */
+	Connection(InetSocketAddress address, RequestMix mix, int pipeline, long firstSend, long interval,
+			long measureFrom, long measureUntil, int timeoutMs) {
+		this.address = address;
+		this.mix = mix;
+		this.pipeline = pipeline;
+		this.firstSend = firstSend;
+		this.interval = interval;
+		this.measureFrom = measureFrom;
+		this.measureUntil = measureUntil;
+		this.timeoutMs = timeoutMs;
+	}
+
+	@Override
+	public void run() {
+		while (!finished()) {
+			try (Socket socket = new Socket()) {
+				socket.connect(address, timeoutMs);
+				socket.setSoTimeout(timeoutMs);
+				socket.setTcpNoDelay(true);
+				if (session(socket))
+					return;
+			} catch (IOException e) {
+				countError();
+				sleepQuietly(10);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Send requests and read their responses until every request has been sent,
+	 * or the connection must be reopened.
+	 *
+	 * @return <code>True</code> if every request was sent and answered.
+	 */
+	private boolean session(Socket socket) throws IOException, InterruptedException {
+		BlockingQueue<Long> inFlight = new LinkedBlockingQueue<>();
+		Semaphore window = new Semaphore(pipeline);
+		OutputStream out = socket.getOutputStream();
+		InputStream in = new BufferedInputStream(socket.getInputStream());
+		Thread writer = Thread.ofVirtual().start(() -> write(out, inFlight, window));
+
+		try {
+			while (true) {
+				long scheduled = inFlight.take();
+				if (scheduled == DONE)
+					return true;
+				if (scheduled == FAILED) {
+					countError();
+					return false;
+				}
+
+				try {
+					readResponse(in);
+				} catch (IOException e) {
+					countError();
+					return false;
+				}
+				lastResponse = System.nanoTime();
+				long latency = lastResponse - scheduled;
+				window.release();
+
+				if (scheduled >= measureFrom) {
+					histogram.record(latency);
+					completed++;
+					if (status >= 400)
+						unsuccessful++;
+				}
+				if (closeAfter)
+					return false;
+			}
+		} finally {
+			socket.close();
+			writer.interrupt();
+			writer.join();
+			// Requests sent after the one that ended the connection were never answered
+			for (long scheduled : inFlight)
+				if (scheduled != DONE && scheduled != FAILED)
+					countError();
+		}
+	}
+
+	/**
+	 * Send requests as the window and the schedule allow, queueing when each was
+	 * scheduled for the reader.
+	 */
+	private void write(OutputStream out, BlockingQueue<Long> inFlight, Semaphore window) {
+		try {
+			while (true) {
+				window.acquire();
+				long scheduled = (interval > 0) ? firstSend + sent * interval : System.nanoTime();
+				if (scheduled >= measureUntil) {
+					inFlight.add(DONE);
+					return;
+				}
+				if (interval > 0) {
+					if (System.nanoTime() >= measureUntil) {
+						// Too far behind the schedule to catch up
+						unsent = (measureUntil - Math.max(scheduled, measureFrom) + interval - 1) / interval;
+						sent += unsent;
+						inFlight.add(DONE);
+						return;
+					}
+					sleepUntil(scheduled);
+				}
+
+				inFlight.add(scheduled);
+				out.write(mix.next());
+				sent++;
+			}
+		} catch (InterruptedException e) {
+			// The reader is closing the connection
+		} catch (IOException e) {
+			inFlight.add(FAILED);
+		}
+	}
+
+	private boolean finished() {
+		long now = System.nanoTime();
+		return now >= measureUntil || (interval > 0 && firstSend + sent * interval >= measureUntil);
+	}
+
+	private void countError() {
+		if (System.nanoTime() >= measureFrom)
+			errors++;
+	}
+
+	/**
+	 * Read a response, skipping its body, and note its status and whether the
+	 * server will close the connection after it.
+	 */
+	private void readResponse(InputStream in) throws IOException {
+		String statusLine = readLine(in);
+		if (!statusLine.startsWith("HTTP/") || statusLine.length() < 12)
+			throw new IOException("Invalid status line '" + statusLine + "'");
+		status = Integer.parseInt(statusLine.substring(9, 12));
+		closeAfter = statusLine.startsWith("HTTP/1.0");
+
+		long contentLength = -1;
+		boolean chunked = false;
+		String header;
+		while (!(header = readLine(in)).isEmpty()) {
+			if (header.regionMatches(true, 0, "Content-Length:", 0, 15))
+				contentLength = Long.parseLong(header.substring(15).trim());
+			else if (header.regionMatches(true, 0, "Transfer-Encoding:", 0, 18))
+				chunked = header.substring(18).trim().equalsIgnoreCase("chunked");
+			else if (header.regionMatches(true, 0, "Connection:", 0, 11))
+				closeAfter = header.substring(11).trim().equalsIgnoreCase("close");
+		}
+
+		if (status == 204 || status == 304) {
+			return;
+		} else if (chunked) {
+			while (true) {
+				String size = readLine(in);
+				int extension = size.indexOf(';');
+				long length = Long.parseLong((extension < 0 ? size : size.substring(0, extension)).trim(), 16);
+				if (length == 0)
+					break;
+				in.skipNBytes(length);
+				readLine(in);
+			}
+			// Trailers
+			while (!readLine(in).isEmpty())
+				;
+		} else if (contentLength >= 0) {
+			in.skipNBytes(contentLength);
+		} else {
+			// The body ends when the connection does
+			in.transferTo(OutputStream.nullOutputStream());
+			closeAfter = true;
+		}
+	}
+
+	private String readLine(InputStream in) throws IOException {
+		line.setLength(0);
+		while (true) {
+			int b = in.read();
+			if (b < 0)
+				throw new EOFException();
+			if (b == '\n')
+				return line.toString();
+			if (b != '\r')
+				line.append((char) b);
+		}
+	}
+
+	private static void sleepUntil(long deadline) throws InterruptedException {
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(remaining);
+			if (Thread.interrupted())
+				throw new InterruptedException();
+		}
+	}
+
+	private static void sleepQuietly(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,101 @@
+package com.rawrross.load;
+
+/**
+ * Counts latencies in log-linear buckets, in the manner of HdrHistogram. Each
+ * power of two is split into {@value #SUB_BUCKETS} linear sub-buckets, so a
+ * recorded value is off by less than 1% however large it is, while the whole
+ * histogram stays a few thousand counters.
+ * <p>
+ * Not thread-safe; each connection records into its own histogram, and the
+ * histograms are added together for the report.
+ *
+ * @author Randy Ross
+ */
+class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/** Values above about an hour, in nanoseconds, are counted as this. */
+	private static final long HIGHEST_VALUE = (1L << 42) - 1;
+
+	private final long[] counts = new long[index(HIGHEST_VALUE) + 1];
+	private long totalCount;
+	private long max;
+	private double sum;
+
+	/**
+	 * Record a latency.
+	 *
+	 * @param nanos The latency in nanoseconds. Negative values count as zero.
+	 */
+	void record(long nanos) {
+		long value = Math.min(Math.max(nanos, 0), HIGHEST_VALUE);
+		counts[index(value)]++;
+		totalCount++;
+		max = Math.max(max, value);
+		sum += value;
+	}
+
+	/**
+	 * Add every latency recorded by another histogram to this one.
+	 */
+	void add(LatencyHistogram other) {
+		for (int i = 0; i < counts.length; i++)
+			counts[i] += other.counts[i];
+		totalCount += other.totalCount;
+		max = Math.max(max, other.max);
+		sum += other.sum;
+	}
+
+	long getTotalCount() {
+		return totalCount;
+	}
+
+	long getMax() {
+		return max;
+	}
+
+	double getMean() {
+		return totalCount == 0 ? 0 : sum / totalCount;
+	}
+
+	/**
+	 * Get the latency that the given percentage of recorded latencies are at or
+	 * below, rounded up to the top of its bucket.
+	 *
+	 * @param percentile From <code>0</code> to <code>100</code>.
+	 */
+	long getValueAtPercentile(double percentile) {
+		if (totalCount == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+		long cumulative = 0;
+		for (int i = 0; i < counts.length; i++) {
+			cumulative += counts[i];
+			if (cumulative >= rank)
+				return Math.min(highestEquivalentValue(i), max);
+		}
+		return max;
+	}
+
+	/**
+	 * Values below twice the sub-bucket count have a bucket each. Above that, a
+	 * value's top {@value #SUB_BUCKET_BITS} bits below its leading bit pick the
+	 * sub-bucket within its power of two.
+	 */
+	private static int index(long value) {
+		if (value < 2 * SUB_BUCKETS)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	private static long highestEquivalentValue(int index) {
+		if (index < 2 * SUB_BUCKETS)
+			return index;
+		int shift = index / SUB_BUCKETS - 1;
+		long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+		return ((mantissa + 1) << shift) - 1;
+	}
+
+}
@@ -0,0 +1,140 @@
+package com.rawrross.load;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Drives load against a running HTTP server and reports its throughput and
+ * latency distribution, for measuring the server end to end over loopback.
+ * <p>
+ * In the closed-loop mode, each connection sends its next request as soon as
+ * a response arrives, up to the pipeline depth, so the offered load adapts to
+ * the server. In the open-loop mode, requests are sent at a fixed total rate
+ * whether or not the server keeps up, and latencies are measured from when each
+ * request was scheduled, correcting for coordinated omission. Either way,
+ * sending stops when the measurement ends, and the responses still expected are
+ * waited for.
+ * <p>
+ * Usage:
+ * 
+ * <pre>
+ * LoadGenerator [--host localhost] [--port 8080] [--mode closed|open] [--connections 16] [--rate N]
+ *               [--pipeline 1] [--mix FILE] [--gzip false] [--warmup 5] [--duration 30] [--timeout-ms 5000]
+ * </pre>
+ * 
+ * <code>--rate</code> is the total requests per second, and is required in the
+ * open-loop mode. A mix file has a line for each request, with a weight and a
+ * path; without one, the {@link RequestMix#DEFAULT_MIX default mix} requests
+ * the example website's pages.
+ *
+ * @author Randy Ross
+ */
+public class LoadGenerator {
+
+	private static final double[] PERCENTILES = { 50, 75, 90, 99, 99.9, 99.99, 100 };
+
+	public static void main(String[] args) throws Exception {
+		String host = "localhost";
+		int port = 8080;
+		boolean open = false;
+		int connections = 16;
+		double rate = 0;
+		int pipeline = 1;
+		Path mixFile = null;
+		boolean gzip = false;
+		int warmupSeconds = 5;
+		int durationSeconds = 30;
+		int timeoutMs = 5000;
+
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			switch (args[i]) {
+				case "--host" -> host = value;
+				case "--port" -> port = Integer.parseInt(value);
+				case "--mode" -> open = switch (value.toLowerCase()) {
+					case "closed" -> false;
+					case "open" -> true;
+					default -> throw new IllegalArgumentException("Unknown mode " + value);
+				};
+				case "--connections" -> connections = Integer.parseInt(value);
+				case "--rate" -> rate = Double.parseDouble(value);
+				case "--pipeline" -> pipeline = Integer.parseInt(value);
+				case "--mix" -> mixFile = Path.of(value);
+				case "--gzip" -> gzip = Boolean.parseBoolean(value);
+				case "--warmup" -> warmupSeconds = Integer.parseInt(value);
+				case "--duration" -> durationSeconds = Integer.parseInt(value);
+				case "--timeout-ms" -> timeoutMs = Integer.parseInt(value);
+				default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+		if (connections < 1 || pipeline < 1 || durationSeconds < 1)
+			throw new IllegalArgumentException("Connections, pipeline depth and duration must be positive");
+		if (open && rate <= 0)
+			throw new IllegalArgumentException("The open-loop mode requires a positive --rate");
+
+		String hostHeader = host + ":" + port;
+		RequestMix mix = (mixFile == null) ? new RequestMix(RequestMix.DEFAULT_MIX, hostHeader, gzip)
+				: RequestMix.load(mixFile, hostHeader, gzip);
+
+		System.out.printf("Target %s, %s loop, %d connections, pipeline depth %d%n", hostHeader,
+				open ? "open" : "closed", connections, pipeline);
+		if (open)
+			System.out.printf("Rate %.0f requests/s, latency measured from each request's scheduled send%n", rate);
+		System.out.printf("Warmup %d s, measure %d s, timeout %d ms%n", warmupSeconds, durationSeconds, timeoutMs);
+		System.out.printf("Request mix:%n%s%n", mix);
+
+		InetSocketAddress address = new InetSocketAddress(host, port);
+		long start = System.nanoTime();
+		long measureFrom = start + warmupSeconds * 1_000_000_000L;
+		long measureUntil = measureFrom + durationSeconds * 1_000_000_000L;
+		// Each connection sends every interval, offset so that together they send evenly
+		long interval = open ? (long) (connections * 1e9 / rate) : 0;
+
+		List<Connection> clients = new ArrayList<>();
+		try (ExecutorService clientThreads = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (int i = 0; i < connections; i++) {
+				Connection client = new Connection(address, mix, pipeline, start + interval * i / connections,
+						interval, measureFrom, measureUntil, timeoutMs);
+				clients.add(client);
+				clientThreads.execute(client);
+			}
+		}
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		long completed = 0, unsuccessful = 0, errors = 0, unsent = 0;
+		long end = measureUntil;
+		for (Connection client : clients) {
+			histogram.add(client.histogram);
+			completed += client.completed;
+			unsuccessful += client.unsuccessful;
+			errors += client.errors;
+			unsent += client.unsent;
+			end = Math.max(end, client.lastResponse);
+		}
+
+		// Responses to the last requests may arrive after the measurement ends
+		double throughput = completed / ((end - measureFrom) / 1e9);
+		System.out.printf("%-16s %12d (%.1f/s)%n", "Requests", completed, throughput);
+		System.out.printf("%-16s %12d%n", "Status >= 400", unsuccessful);
+		System.out.printf("%-16s %12d%n", "Errors", errors);
+		if (open)
+			System.out.printf("%-16s %12d%n", "Not sent", unsent);
+		if (histogram.getTotalCount() > 0) {
+			System.out.printf("%nLatency (ms)%n");
+			for (double percentile : PERCENTILES)
+				System.out.printf("%11.3f%% %12.3f%n", percentile, histogram.getValueAtPercentile(percentile) / 1e6);
+			System.out.printf("%12s %12.3f%n", "mean", histogram.getMean() / 1e6);
+		}
+
+		if (open && (unsent > 0 || throughput < rate * 0.95))
+			System.out.printf("%nThe server did not keep up with %.0f requests/s; latencies include the backlog%n",
+					rate);
+
+		System.exit(0);
+	}
+
+}
@@ -0,0 +1,112 @@
+package com.rawrross.load;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The requests to send, each chosen at random in proportion to its weight.
+ * Request heads are encoded once, when the mix is built.
+ *
+ * @author Randy Ross
+ */
+class RequestMix {
+
+	/** Requests for each kind of page on the example website. */
+	static final String DEFAULT_MIX = """
+			4 /
+			2 /fortune?name=Randy&age=27
+			2 /pokemon?type1=random&type2=random
+			1 /pokemon/type/fire.png
+			1 /pokemon/type/water.png
+			""";
+
+	private final List<String> paths;
+	private final byte[][] requests;
+	/** Running totals of the weights, for choosing a request. */
+	private final int[] cumulativeWeights;
+
+	/**
+	 * @param mix  Lines of a weight and a path, separated by whitespace. Blank
+	 *             lines and lines starting with <code>#</code> are ignored.
+	 * @param host The <code>Host</code> header value.
+	 * @param gzip <code>True</code> to accept gzip-compressed responses.
+	 * @throws IllegalArgumentException If a line is malformed, or the mix is
+	 *                                  empty.
+	 */
+	RequestMix(String mix, String host, boolean gzip) {
+		paths = new ArrayList<>();
+		List<Integer> weights = new ArrayList<>();
+		for (String line : mix.split("\n")) {
+			line = line.strip();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+			String[] parts = line.split("\\s+");
+			if (parts.length != 2 || !parts[1].startsWith("/"))
+				throw new IllegalArgumentException("Invalid request mix line '" + line + "'");
+			int weight = Integer.parseInt(parts[0]);
+			if (weight <= 0)
+				throw new IllegalArgumentException("Invalid weight in request mix line '" + line + "'");
+			weights.add(weight);
+			paths.add(parts[1]);
+		}
+		if (paths.isEmpty())
+			throw new IllegalArgumentException("Request mix is empty");
+
+		requests = new byte[paths.size()][];
+		cumulativeWeights = new int[paths.size()];
+		int total = 0;
+		for (int i = 0; i < paths.size(); i++) {
+			String head = "GET " + paths.get(i) + " HTTP/1.1\r\n"
+					+ "Host: " + host + "\r\n"
+					+ "User-Agent: rawrross-load\r\n"
+					+ "Accept: */*\r\n"
+					+ (gzip ? "Accept-Encoding: gzip\r\n" : "")
+					+ "\r\n";
+			requests[i] = head.getBytes(StandardCharsets.US_ASCII);
+			total += weights.get(i);
+			cumulativeWeights[i] = total;
+		}
+	}
+
+	/**
+	 * Read a mix from a file.
+	 *
+	 * @see #RequestMix(String, String, boolean)
+	 */
+	static RequestMix load(Path file, String host, boolean gzip) throws IOException {
+		return new RequestMix(Files.readString(file), host, gzip);
+	}
+
+	/**
+	 * Choose a request head at random.
+	 */
+	byte[] next() {
+		int pick = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+		for (int i = 0; i < cumulativeWeights.length; i++)
+			if (pick < cumulativeWeights[i])
+				return requests[i];
+		throw new IllegalStateException();
+	}
+
+	/**
+	 * Describe the mix as paths with their share of requests.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder out = new StringBuilder();
+		int total = cumulativeWeights[cumulativeWeights.length - 1];
+		int previous = 0;
+		for (int i = 0; i < paths.size(); i++) {
+			out.append(String.format("  %5.1f%%  %s%n", 100.0 * (cumulativeWeights[i] - previous) / total,
+					paths.get(i)));
+			previous = cumulativeWeights[i];
+		}
+		return out.toString();
+	}
+
+}
@@ -0,0 +1,47 @@
+package com.rawrross.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rawrross.server.HTTPResponse.HttpStatusCode;
+
+/**
+ * Rendering error pages, which a flood of bad requests makes hot.
+ *
+ * @author Randy Ross
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ErrorPageBenchmark {
+
+	public String subtitle = "The requested URL /pokemon/missingno.html was not found on this server.";
+
+	@Benchmark
+	public String errDoc() {
+		return HTTPServer.errDoc("404 Not Found", subtitle);
+	}
+
+	@Benchmark
+	public byte[] errorPage() {
+		return HTTPServer.errorPage(HttpStatusCode.NOT_FOUND, null);
+	}
+
+	@Benchmark
+	public byte[] errorPageWithSubtitle() {
+		return HTTPServer.errorPage(HttpStatusCode.NOT_FOUND, subtitle);
+	}
+
+}
@@ -0,0 +1,51 @@
+package com.rawrross.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Looking up the type of a served file, as {@link StaticFileHandler} does for
+ * every file, and whether it is text.
+ *
+ * @author Randy Ross
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MimeTypeBenchmark {
+
+	@Param({ "index.html", "css/index.css", "images/PIKACHU.PNG", "archive.tar.gz", "LICENSE" })
+	public String filename;
+
+	private String mime;
+
+	@Setup
+	public void setup() {
+		mime = MimeType.getMimeFromFilename(filename);
+	}
+
+	@Benchmark
+	public String getMimeFromFilename() {
+		return MimeType.getMimeFromFilename(filename);
+	}
+
+	@Benchmark
+	public boolean typeIsText() {
+		return MimeType.typeIsText(mime);
+	}
+
+}
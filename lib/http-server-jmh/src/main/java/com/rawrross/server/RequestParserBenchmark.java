@@ -0,0 +1,99 @@
+package com.rawrross.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.rawrross.server.exception.BadRequestException;
+
+/**
+ * Parsing request heads, and reading the fields a typical handler reads from
+ * the parsed request.
+ *
+ * @author Randy Ross
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParserBenchmark {
+
+	/** What curl sends. */
+	private static final String CURL = """
+			GET /fortune?name=Randy&age=27 HTTP/1.1\r
+			Host: localhost:8080\r
+			User-Agent: curl/8.5.0\r
+			Accept: */*\r
+			\r
+			""";
+
+	/** What a browser sends when revisiting a page. */
+	private static final String BROWSER = """
+			GET /pokemon/index.html HTTP/1.1\r
+			Host: localhost:8080\r
+			Connection: keep-alive\r
+			Cache-Control: max-age=0\r
+			sec-ch-ua: "Chromium";v="124", "Google Chrome";v="124", "Not-A.Brand";v="99"\r
+			sec-ch-ua-mobile: ?0\r
+			sec-ch-ua-platform: "Windows"\r
+			Upgrade-Insecure-Requests: 1\r
+			User-Agent: Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/124.0.0.0 Safari/537.36\r
+			Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,image/apng,*/*;q=0.8\r
+			Sec-Fetch-Site: same-origin\r
+			Sec-Fetch-Mode: navigate\r
+			Sec-Fetch-User: ?1\r
+			Sec-Fetch-Dest: document\r
+			Referer: http://localhost:8080/\r
+			Accept-Encoding: gzip, deflate, br, zstd\r
+			Accept-Language: en-US,en;q=0.9\r
+			Cookie: theme=dark; session=7f3c2a9e41b84d0c9e5a6b1f2d3c4e5f; visited=1\r
+			If-None-Match: "5d8c72a5edda8d6a"\r
+			If-Modified-Since: Wed, 21 Oct 2015 07:28:00 GMT\r
+			\r
+			""";
+
+	@Param({ "curl", "browser" })
+	public String client;
+
+	private ByteBuffer head;
+	private RequestParser parser;
+
+	@Setup
+	public void setup() {
+		String text = client.equals("curl") ? CURL : BROWSER;
+		head = ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+		parser = new RequestParser();
+	}
+
+	@Benchmark
+	public HTTPRequest parse() throws BadRequestException {
+		return parser.parse(head, 0, head.limit());
+	}
+
+	@Benchmark
+	public void parseAndRead(Blackhole bh) throws BadRequestException {
+		HTTPRequest request = parser.parse(head, 0, head.limit());
+		bh.consume(request.getMethod());
+		bh.consume(request.getUri());
+		bh.consume(request.getHeader("Host"));
+		bh.consume(request.getHeader("Accept-Encoding"));
+		bh.consume(request.isConnectionKeepAlive());
+		bh.consume(request.getParameter("name"));
+	}
+
+}
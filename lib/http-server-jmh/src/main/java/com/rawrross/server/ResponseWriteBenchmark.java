@@ -0,0 +1,145 @@
+package com.rawrross.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rawrross.server.ConnectionOutput.StreamOutput;
+import com.rawrross.server.HTTPServer.Transport;
+import com.rawrross.server.exception.BadRequestException;
+
+/**
+ * Sending a response with each kind of body, the way the server sends a
+ * handler's response: the body stream is finished, then the head and body are
+ * written to the connection and flushed. The connection discards what is
+ * written, and has no channel, so file bodies are copied through its buffer.
+ * <p>
+ * The three bodies hold the same page, so their results can be compared.
+ *
+ * @author Randy Ross
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseWriteBenchmark {
+
+	/** Rows in the page's table; 10 rows is about 1 KiB, 500 about 40 KiB. */
+	@Param({ "10", "500" })
+	public int rows;
+
+	private HTTPServer server;
+	private StreamOutput out;
+	private HTTPRequest plainRequest, gzipRequest;
+
+	private Document document;
+	private byte[] bytes;
+	private Path file;
+
+	@Setup
+	public void setup() throws IOException, BadRequestException {
+		// Only the server's settings and buffer pool are used; nothing connects to it
+		server = new HTTPServer(0, new ServerConfig().setTransport(Transport.NIO));
+		out = new StreamOutput(OutputStream.nullOutputStream(), null, server);
+		plainRequest = parse("GET /page HTTP/1.1\r\nHost: localhost\r\n\r\n");
+		gzipRequest = parse("GET /page HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip, deflate\r\n\r\n");
+
+		document = page(rows);
+		ByteBuffer rendered = DocumentWriter.render(document);
+		bytes = new byte[rendered.remaining()];
+		rendered.get(bytes);
+		file = Files.createTempFile("benchmark", ".html");
+		Files.write(file, bytes);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		out.release();
+		server.stop();
+		Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	public HTTPResponse bytes() throws IOException {
+		return send(new HTTPResponse().setBody(bytes), plainRequest);
+	}
+
+	@Benchmark
+	public HTTPResponse document() throws IOException {
+		return send(new HTTPResponse().setBody(document), plainRequest);
+	}
+
+	@Benchmark
+	public HTTPResponse path() throws IOException {
+		return send(new HTTPResponse().setBody(file), plainRequest);
+	}
+
+	@Benchmark
+	public HTTPResponse bytesGzip() throws IOException {
+		return send(new HTTPResponse().setBody(bytes), gzipRequest);
+	}
+
+	@Benchmark
+	public HTTPResponse documentGzip() throws IOException {
+		return send(new HTTPResponse().setBody(document), gzipRequest);
+	}
+
+	private HTTPResponse send(HTTPResponse response, HTTPRequest request) throws IOException {
+		response.setContentType("text/html");
+		response.attach(out, request, server);
+		response.finishStream();
+		if (!response.isCommitted())
+			response.write(out);
+		out.flush();
+		return response;
+	}
+
+	private static HTTPRequest parse(String head) throws BadRequestException {
+		ByteBuffer buf = ByteBuffer.wrap(head.getBytes(StandardCharsets.US_ASCII));
+		return new RequestParser().parse(buf, 0, buf.limit());
+	}
+
+	/**
+	 * Build a page like the example website's Pokémon list.
+	 */
+	private static Document page(int rows) {
+		Document document = Document.createShell("");
+		document.title("Pokémon");
+		Element body = document.body();
+		body.appendElement("h1").text("Pokémon");
+		Element table = body.appendElement("table");
+		Element head = table.appendElement("tr");
+		head.appendElement("th").text("#");
+		head.appendElement("th").text("Name");
+		head.appendElement("th").text("Type");
+		for (int i = 1; i <= rows; i++) {
+			Element row = table.appendElement("tr");
+			row.appendElement("td").text(Integer.toString(i));
+			row.appendElement("td").appendElement("a").attr("href", "/pokemon/" + i).text("Pokémon #" + i);
+			row.appendElement("td").text(i % 3 == 0 ? "Fire" : i % 3 == 1 ? "Grass" : "Water");
+		}
+		return document;
+	}
+
+}
@@ -0,0 +1,72 @@
+package com.rawrross.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rawrross.server.exception.BadRequestException;
+
+/**
+ * Dispatching requests over the example website's routes. The handlers do
+ * nothing, so only finding them is measured.
+ *
+ * @author Randy Ross
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouterBenchmark {
+
+	@Param({ "/", "/fortune?name=Randy&age=27", "/pokemon/index.html", "/css/index.css", "/metrics" })
+	public String target;
+
+	private Router router;
+	private HTTPRequest request;
+	private HTTPResponse response;
+
+	@Setup
+	public void setup() throws BadRequestException {
+		RequestHandler page = (request, response) -> {
+		};
+
+		// The same routes as the example website
+		router = new Router();
+		for (String path : new String[] { "/", "/fortune", "/pokemon" }) {
+			String dir = path.endsWith("/") ? path : path + "/";
+			if (!dir.equals(path))
+				router.get(path, page);
+			router.get(dir, page);
+			router.get(dir + "index.html", page);
+		}
+		router.get("/*", page);
+		router.get("/metrics", page);
+
+		String head = "GET " + target + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+		ByteBuffer buf = ByteBuffer.wrap(head.getBytes(StandardCharsets.US_ASCII));
+		request = new RequestParser().parse(buf, 0, buf.limit());
+		response = new HTTPResponse();
+	}
+
+	@Benchmark
+	public HTTPRequest dispatch() throws IOException {
+		router.handleRequest(request, response);
+		return request;
+	}
+
+}
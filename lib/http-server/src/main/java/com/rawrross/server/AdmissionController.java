@@ -0,0 +1,179 @@
+package com.rawrross.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether an {@link HTTPServer} takes on more work, so that an
+ * overloaded server turns requests away with <code>503 Service
+ * Unavailable</code> instead of queueing them until every client times out.
+ * <p>
+ * Two checks are made. Tasks waiting for a worker thread, whether connections
+ * with the blocking transport or requests with the NIO transport, are bounded
+ * by a maximum queue length. Optionally, the requests in flight, from being
+ * read until their handler returns, are bounded by a concurrency limit that
+ * adapts to their latency, increasing additively and decreasing
+ * multiplicatively: every {@value #WINDOW_MILLIS} ms, the limit is cut by a
+ * tenth if the average latency of the requests that finished exceeded the
+ * target, and otherwise grows by its square root, so a large limit is reached
+ * in seconds. Requests queueing for a worker slow down, so the limit settles
+ * where they stop queueing. The time spent writing responses is not measured,
+ * so slow clients do not shrink the limit.
+ *
+ * @author Randy Ross
+ */
+final class AdmissionController {
+
+	private static final long WINDOW_MILLIS = 100;
+	private static final long WINDOW_NANOS = WINDOW_MILLIS * 1_000_000;
+	/** The fraction of the limit kept when latency exceeds the target. */
+	private static final double BACKOFF_RATIO = 0.9;
+
+	private final int maxQueued;
+	private final AtomicInteger queued;
+
+	private final boolean adaptive;
+	private final long targetLatency;
+	private final int maxLimit;
+	private final AtomicInteger inFlight;
+	private volatile double limit;
+
+	private final AtomicLong windowStart;
+	private final LongAdder windowLatency, windowCount;
+	/** The most requests in flight at once during the window. */
+	private final AtomicInteger windowPeak;
+
+	/**
+	 * @param maxQueued     The most tasks waiting for a worker thread, or
+	 *                      <code>0</code> for no bound.
+	 * @param targetLatency The average latency, in milliseconds, to limit
+	 *                      concurrency to, or <code>0</code> not to limit it.
+	 * @param initialLimit  The concurrency limit to start from.
+	 * @param maxLimit      The highest the concurrency limit may grow.
+	 */
+	AdmissionController(int maxQueued, int targetLatency, int initialLimit, int maxLimit) {
+		this.maxQueued = maxQueued;
+		this.queued = new AtomicInteger();
+		this.adaptive = targetLatency > 0;
+		this.targetLatency = targetLatency * 1_000_000L;
+		this.maxLimit = Math.max(1, maxLimit);
+		this.inFlight = new AtomicInteger();
+		this.limit = Math.max(1, Math.min(initialLimit, this.maxLimit));
+		this.windowStart = new AtomicLong(System.nanoTime());
+		this.windowLatency = new LongAdder();
+		this.windowCount = new LongAdder();
+		this.windowPeak = new AtomicInteger();
+	}
+
+	/**
+	 * Reserve a place in the queue for a task about to be handed to the
+	 * executor. A reserved place must be given up with {@link #dequeued()} when
+	 * the task starts, or if it could not be queued.
+	 *
+	 * @return <code>False</code> if the queue is full.
+	 */
+	boolean tryEnqueue() {
+		if (queued.incrementAndGet() > maxQueued && maxQueued > 0) {
+			queued.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	void dequeued() {
+		queued.decrementAndGet();
+	}
+
+	/**
+	 * Admit a request if the concurrency limit allows. An admitted request must
+	 * be ended with {@link #release(long)} or {@link #cancel()}.
+	 *
+	 * @return <code>False</code> if the request should be turned away.
+	 */
+	boolean tryAcquire() {
+		if (!adaptive)
+			return true;
+
+		int active;
+		do {
+			active = inFlight.get();
+			if (active >= (int) limit)
+				return false;
+		} while (!inFlight.compareAndSet(active, active + 1));
+
+		if (active + 1 > windowPeak.get())
+			windowPeak.accumulateAndGet(active + 1, Math::max);
+		return true;
+	}
+
+	/**
+	 * End an admitted request whose handler has returned.
+	 *
+	 * @param latencyNanos The time from the request being read to its handler
+	 *                     returning.
+	 */
+	void release(long latencyNanos) {
+		if (!adaptive)
+			return;
+
+		inFlight.decrementAndGet();
+		windowLatency.add(latencyNanos);
+		windowCount.increment();
+
+		long now = System.nanoTime();
+		long start = windowStart.get();
+		if (now - start >= WINDOW_NANOS && windowStart.compareAndSet(start, now))
+			adjustLimit();
+	}
+
+	/**
+	 * End an admitted request that was never handled.
+	 */
+	void cancel() {
+		if (adaptive)
+			inFlight.decrementAndGet();
+	}
+
+	private void adjustLimit() {
+		long count = windowCount.sumThenReset();
+		long total = windowLatency.sumThenReset();
+		int peak = windowPeak.getAndSet(inFlight.get());
+		if (count == 0)
+			return;
+
+		double current = limit;
+		if (total / count > targetLatency) {
+			limit = Math.max(1, current * BACKOFF_RATIO);
+		} else if (peak >= current / 2) {
+			// A limit the requests are nowhere near tells nothing, and would grow without bound
+			limit = Math.min(current + Math.sqrt(current), maxLimit);
+		}
+	}
+
+	/**
+	 * The number of tasks waiting for a worker thread.
+	 */
+	int getQueued() {
+		return queued.get();
+	}
+
+	boolean isAdaptive() {
+		return adaptive;
+	}
+
+	/**
+	 * The current concurrency limit.
+	 */
+	int getLimit() {
+		return (int) limit;
+	}
+
+	/**
+	 * The number of admitted requests whose handler has not yet returned.
+	 */
+	int getInFlight() {
+		return inFlight.get();
+	}
+
+}
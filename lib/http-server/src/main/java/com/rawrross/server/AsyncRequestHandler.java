@@ -0,0 +1,42 @@
+package com.rawrross.server;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A functional interface for handling HTTP requests whose response is completed
+ * later, such as once a call to another service returns.
+ * <p>
+ * The handler returns a stage that completes once the response is ready, and
+ * the response is sent then. With the NIO transport, the worker thread is free
+ * to serve other connections meanwhile. With the blocking transport, the
+ * connection's thread waits for the stage.
+ * <p>
+ * A request must complete within its deadline, set by
+ * {@link ServerConfig#setAsyncTimeout(int)} or
+ * {@link HTTPRequest#setTimeout(long)}, or it is cancelled and answered with
+ * <code>503 Service Unavailable</code>. With the NIO transport, a request is
+ * also cancelled if the client closes the connection, once the request body has
+ * been read. A cancelled request runs the actions registered with
+ * {@link HTTPRequest#onCancel(Runnable)}, and cancels the returned stage if it
+ * is a {@link java.util.concurrent.Future Future}. The handler must not use the
+ * response after its request is cancelled.
+ */
+@FunctionalInterface
+public interface AsyncRequestHandler {
+
+	/**
+	 * Start handling an incoming HTTP request. Modify the provided response
+	 * object, and complete the returned stage once it is ready to send. The stage
+	 * completing exceptionally produces an error response, as if a
+	 * {@link RequestHandler} had thrown.
+	 *
+	 * @param request  The incoming HTTP request.
+	 * @param response The HTTP response that is sent back.
+	 * @return A stage completed once the response is ready, or <code>null</code>
+	 *         if it already is.
+	 * @throws IOException
+	 */
+	CompletionStage<Void> handleRequest(HTTPRequest request, HTTPResponse response) throws IOException;
+
+}
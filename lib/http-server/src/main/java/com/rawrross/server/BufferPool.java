@@ -0,0 +1,205 @@
+package com.rawrross.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recycles the I/O buffers used to read requests and write responses, so that
+ * serving a request does not allocate them anew.
+ * <p>
+ * Buffers come in power-of-two size classes from {@link #MIN_SIZE} to
+ * {@link #MAX_SIZE}. Connections lease their buffers when they open and return
+ * them when they close, and response bodies lease theirs for as long as they
+ * are being written. Free buffers are kept in several stripes, each with its
+ * own lock, and a thread always uses the same stripe, so threads rarely contend
+ * for a buffer and a thread tends to get back the buffers it used last.
+ * <p>
+ * Buffers that connections read from and write to channels directly can be
+ * allocated outside the heap, which saves the JDK copying them into temporary
+ * direct buffers for each socket operation. Buffers that are accessed as
+ * arrays are always on the heap.
+ *
+ * @author Randy Ross
+ */
+public class BufferPool {
+
+	/** The smallest size class, in bytes. */
+	public static final int MIN_SIZE = 4 * 1024;
+	/** The largest size class, in bytes. Larger buffers are not pooled. */
+	public static final int MAX_SIZE = 64 * 1024;
+	/** The most free buffers a stripe keeps of each size class. */
+	public static int MAX_FREE_PER_CLASS = 64;
+
+	private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+	private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+
+	/**
+	 * Free buffers for one group of threads, by kind and size class.
+	 */
+	private static final class Stripe {
+
+		private final ByteBuffer[][] free = new ByteBuffer[CLASSES * 2][MAX_FREE_PER_CLASS];
+		private final int[] count = new int[CLASSES * 2];
+
+		synchronized ByteBuffer poll(int slot) {
+			if (count[slot] == 0)
+				return null;
+			ByteBuffer buffer = free[slot][--count[slot]];
+			free[slot][count[slot]] = null;
+			return buffer;
+		}
+
+		synchronized boolean offer(int slot, ByteBuffer buffer) {
+			if (count[slot] == free[slot].length)
+				return false;
+			free[slot][count[slot]++] = buffer;
+			return true;
+		}
+
+	}
+
+	private final boolean direct;
+	private final Stripe[] stripes;
+	private final AtomicLong leases, misses;
+	private final AtomicLong leased, highWaterMark;
+
+	/**
+	 * @param direct <code>True</code> to allocate the buffers that connections use
+	 *               with channels outside the heap.
+	 */
+	public BufferPool(boolean direct) {
+		this.direct = direct;
+		int stripeCount = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+		this.stripes = new Stripe[stripeCount];
+		for (int i = 0; i < stripeCount; i++)
+			stripes[i] = new Stripe();
+		this.leases = new AtomicLong();
+		this.misses = new AtomicLong();
+		this.leased = new AtomicLong();
+		this.highWaterMark = new AtomicLong();
+	}
+
+	/**
+	 * Lease a buffer for use with channels, allocated outside the heap if the
+	 * pool is configured to.
+	 *
+	 * @param size The smallest capacity needed.
+	 * @return A cleared buffer with at least the given capacity.
+	 */
+	ByteBuffer lease(int size) {
+		return lease(size, direct);
+	}
+
+	/**
+	 * Lease an array-backed buffer.
+	 *
+	 * @param size The smallest capacity needed.
+	 * @return A cleared heap buffer with at least the given capacity.
+	 */
+	ByteBuffer leaseHeap(int size) {
+		return lease(size, false);
+	}
+
+	private ByteBuffer lease(int size, boolean direct) {
+		leases.incrementAndGet();
+		int sizeClass = sizeClass(size);
+
+		ByteBuffer buffer = null;
+		if (sizeClass >= 0) {
+			buffer = stripe().poll(slot(sizeClass, direct));
+			size = MIN_SIZE << sizeClass;
+		}
+		if (buffer == null) {
+			misses.incrementAndGet();
+			buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+		}
+
+		long now = leased.addAndGet(buffer.capacity());
+		if (now > highWaterMark.get())
+			highWaterMark.accumulateAndGet(now, Math::max);
+		return buffer;
+	}
+
+	/**
+	 * Return a leased buffer to the pool. The buffer must not be used afterwards.
+	 */
+	void release(ByteBuffer buffer) {
+		if (buffer == null)
+			return;
+		leased.addAndGet(-buffer.capacity());
+
+		int sizeClass = sizeClass(buffer.capacity());
+		if (sizeClass >= 0 && buffer.capacity() == MIN_SIZE << sizeClass)
+			stripe().offer(slot(sizeClass, buffer.isDirect()), buffer.clear());
+	}
+
+	/**
+	 * Give up a leased buffer that might still be referenced elsewhere, such as
+	 * by a write that failed partway, so it is left to the garbage collector
+	 * instead of being reused.
+	 */
+	void discard(ByteBuffer buffer) {
+		if (buffer != null)
+			leased.addAndGet(-buffer.capacity());
+	}
+
+	/**
+	 * Test whether buffers used with channels are allocated outside the heap.
+	 */
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * The number of buffers leased since the pool was created.
+	 */
+	public long getLeases() {
+		return leases.get();
+	}
+
+	/**
+	 * The number of leases that had to allocate a new buffer, because no free
+	 * buffer of the size was pooled.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * The total capacity, in bytes, of the buffers currently leased.
+	 */
+	public long getLeasedBytes() {
+		return leased.get();
+	}
+
+	/**
+	 * The most bytes that have been leased at once.
+	 */
+	public long getHighWaterMark() {
+		return highWaterMark.get();
+	}
+
+	/**
+	 * Get the size class for a capacity, rounding up.
+	 *
+	 * @return The index of the size class, or <code>-1</code> if the size is too
+	 *         large to pool.
+	 */
+	private static int sizeClass(int size) {
+		if (size > MAX_SIZE)
+			return -1;
+		if (size <= MIN_SIZE)
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+
+	private static int slot(int sizeClass, boolean direct) {
+		return direct ? CLASSES + sizeClass : sizeClass;
+	}
+
+	private Stripe stripe() {
+		long id = Thread.currentThread().threadId();
+		return stripes[(int) (id ^ (id >>> 16)) & (stripes.length - 1)];
+	}
+
+}
@@ -0,0 +1,81 @@
+package com.rawrross.server;
+
+import java.util.Arrays;
+
+/**
+ * Parses the <code>Range</code> header of a request for part of a response
+ * body.
+ *
+ * @author Randy Ross
+ */
+final class ByteRanges {
+
+	/** Requests for more ranges than this are answered with the whole body. */
+	static final int MAX_RANGES = 16;
+
+	/** Returned when no requested range overlaps the body. */
+	static final long[] UNSATISFIABLE = new long[0];
+
+	private ByteRanges() {
+	}
+
+	/**
+	 * Resolve a <code>bytes</code> range header against a body of the given
+	 * length.
+	 *
+	 * @param header The <code>Range</code> header value.
+	 * @param length The length of the full body.
+	 * @return The first and last byte offset of each satisfiable range, in
+	 *         pairs; {@link #UNSATISFIABLE} if there are none; or
+	 *         <code>null</code> if the header should be ignored and the whole
+	 *         body sent.
+	 */
+	static long[] parse(String header, long length) {
+		if (!header.regionMatches(true, 0, "bytes=", 0, 6))
+			return null;
+
+		String[] specs = header.substring(6).split(",");
+		if (specs.length > MAX_RANGES)
+			return null;
+
+		long[] ranges = new long[specs.length * 2];
+		int count = 0;
+
+		for (String spec : specs) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash < 0)
+				return null;
+
+			long first, last;
+			try {
+				if (dash == 0) {
+					// Suffix range: the final n bytes
+					long suffix = Long.parseLong(spec.substring(1));
+					if (suffix <= 0)
+						continue;
+					first = Math.max(0, length - suffix);
+					last = length - 1;
+				} else {
+					first = Long.parseLong(spec.substring(0, dash));
+					last = (dash == spec.length() - 1) ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+					if (first < 0 || last < first)
+						return null;
+					if (first >= length)
+						continue;
+					last = Math.min(last, length - 1);
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+
+			ranges[count++] = first;
+			ranges[count++] = last;
+		}
+
+		if (count == 0)
+			return UNSATISFIABLE;
+		return (count == ranges.length) ? ranges : Arrays.copyOf(ranges, count);
+	}
+
+}
@@ -0,0 +1,77 @@
+package com.rawrross.server;
+
+import java.io.IOException;
+import java.time.Instant;
+
+/**
+ * A response body held in memory between requests, along with everything
+ * needed to send it: its content type and validators, pre-encoded headers, and
+ * compressed variants computed the first time a client accepts them.
+ *
+ * @author Randy Ross
+ */
+abstract class CachedBody {
+
+	final byte[] data;
+	final String contentType;
+	/** The <code>Content-Type</code> and <code>Last-Modified</code> headers. */
+	final byte[] headers;
+	final String etag;
+	final Instant lastModified;
+	/** Compressed contents for each coding, computed on first use. */
+	private final byte[][] encoded;
+	/** The memory held by this body; guarded by the owning cache. */
+	long weight;
+
+	private static final byte[] NOT_SMALLER = new byte[0];
+
+	/**
+	 * @param lastModified When the body last changed, or <code>null</code>.
+	 */
+	CachedBody(byte[] data, String contentType, String etag, Instant lastModified) {
+		this.data = data;
+		this.weight = data.length;
+		this.contentType = contentType;
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.encoded = new byte[ContentEncoder.Coding.values().length][];
+
+		StringBuilder res = new StringBuilder();
+		res.append("Content-Type: " + contentType);
+		if (MimeType.typeIsText(contentType))
+			res.append("; charset=" + HTTPServer.DEFAULT_CHARSET.name());
+		res.append(HTTPResponse.LINE_BREAK);
+		if (lastModified != null) {
+			res.append("Last-Modified: " + HTTPServer.DATE_FORMATTER.format(lastModified));
+			res.append(HTTPResponse.LINE_BREAK);
+		}
+		this.headers = res.toString().getBytes(HTTPServer.DEFAULT_CHARSET);
+	}
+
+	/**
+	 * Get the contents compressed with the given coding, compressing them the
+	 * first time.
+	 *
+	 * @return The compressed contents, or <code>null</code> if compressing does
+	 *         not make them smaller.
+	 */
+	synchronized byte[] encode(ContentEncoder encoder, ContentEncoder.Coding coding) throws IOException {
+		byte[] result = encoded[coding.ordinal()];
+		if (result == null) {
+			result = encoder.encode(data, 0, data.length, coding);
+			if (result == null)
+				result = NOT_SMALLER;
+			encoded[coding.ordinal()] = result;
+			grew(result.length);
+		}
+		return (result == NOT_SMALLER) ? null : result;
+	}
+
+	/**
+	 * Account for a compressed variant added to this body.
+	 *
+	 * @param bytes The size of the variant.
+	 */
+	abstract void grew(long bytes);
+
+}
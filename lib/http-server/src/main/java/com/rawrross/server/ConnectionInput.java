@@ -0,0 +1,299 @@
+package com.rawrross.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import com.rawrross.server.exception.BadRequestException;
+
+/**
+ * Connection-scoped input. Raw bytes are read from the socket into a buffer
+ * that is reused for every request on the connection; request heads are parsed
+ * in place by a {@link RequestParser}, and request bodies are read through the
+ * same buffer so bytes belonging to the next request are never lost.
+ * <p>
+ * The head of the current request stays in the buffer while the request is
+ * being handled. If a body read needs that space, the request is first
+ * {@link HTTPRequest#detach() detached} from the buffer.
+ *
+ * @author Randy Ross
+ */
+class ConnectionInput {
+
+	/**
+	 * Where a connection's bytes come from.
+	 */
+	interface Source {
+
+		/**
+		 * Read at least one byte into the given buffer, blocking if necessary.
+		 *
+		 * @return The number of bytes read, or <code>-1</code> at end of stream.
+		 * @throws SocketTimeoutException If no bytes arrive in time.
+		 */
+		int read(ByteBuffer dst) throws IOException;
+
+		/**
+		 * Write an interim response, such as <code>100 Continue</code>, before the
+		 * final response.
+		 */
+		void writeInterim(byte[] data) throws IOException;
+
+		/**
+		 * Test whether reads go through the buffer's backing array, so the buffer
+		 * must be on the heap.
+		 */
+		default boolean needsArray() {
+			return false;
+		}
+
+	}
+
+	private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+	private final Source source;
+	private final long maxBodySize;
+	private final BufferPool pool;
+	private final ServerMetrics metrics;
+	private final RequestParser parser;
+	private ByteBuffer buf;
+	/** Unconsumed bytes are in [start, end). */
+	private int start, end;
+	/** Bytes before this index belong to the current request's head. */
+	private int floor;
+	private HTTPRequest current;
+
+	/**
+	 * @param server The server, for its body size limit, metrics, and the pool
+	 *               to lease the connection's buffer from. The buffer is held
+	 *               until {@link #release()}.
+	 */
+	ConnectionInput(Source source, HTTPServer server) {
+		this.source = source;
+		this.maxBodySize = server.getMaxBodySize();
+		this.pool = server.getBufferPool();
+		this.metrics = server.getMetrics();
+		this.parser = new RequestParser();
+		this.buf = lease(INITIAL_BUFFER_SIZE);
+	}
+
+	/**
+	 * Read and parse the next request head. Blocks until the head is complete, or
+	 * a socket read timeout occurs.
+	 *
+	 * @return The next request, or <code>null</code> if the client closed the
+	 *         connection before sending one.
+	 * @throws SocketTimeoutException If the socket times out while reading.
+	 * @throws BadRequestException    If the head is too large.
+	 * @throws IOException            If there is an issue reading from the
+	 *                                socket.
+	 */
+	HTTPRequest readRequest() throws IOException {
+		HTTPRequest request;
+		while ((request = nextRequest()) == null) {
+			if (fill() < 0) {
+				if (parser.hasPartialRequest())
+					throw new EOFException("Connection closed mid-request");
+				return null;
+			}
+		}
+		return request;
+	}
+
+	/**
+	 * Parse the next request from bytes already buffered, without reading. The
+	 * previous request, and its body, must be finished with.
+	 *
+	 * @return The next request, or <code>null</code> if its head is not complete.
+	 * @throws BadRequestException If the head is too large.
+	 */
+	HTTPRequest nextRequest() throws BadRequestException {
+		current = null;
+		floor = 0;
+
+		if (start == end) {
+			start = end = 0;
+			return null;
+		}
+
+		HTTPRequest request = parser.parse(buf, start, end);
+		if (request == null)
+			return null;
+
+		start += parser.headLength();
+		floor = start;
+		current = request;
+		request.setReceivedAt(System.nanoTime());
+		request.setBody(new RequestBody(request, this, maxBodySize));
+		return request;
+	}
+
+	/**
+	 * Perform a single read from the given non-blocking channel into the buffer.
+	 *
+	 * @return The number of bytes read, possibly zero, or <code>-1</code> at end
+	 *         of stream.
+	 */
+	int receive(ReadableByteChannel channel) throws IOException {
+		makeRoom();
+		int read = channel.read(buf.position(end));
+		if (read > 0) {
+			end += read;
+			metrics.received(read);
+		}
+		return read;
+	}
+
+	/**
+	 * Perform a single read from the given non-blocking channel into the free
+	 * space at the end of the buffer, without moving any buffered bytes. This is
+	 * safe while the current request is being handled on another thread, as long
+	 * as its body has been read, and is used to notice the client closing the
+	 * connection.
+	 *
+	 * @return The number of bytes read, zero if none were available or there is
+	 *         no free space, or <code>-1</code> at end of stream.
+	 */
+	int receiveInPlace(ReadableByteChannel channel) throws IOException {
+		if (end == buf.capacity())
+			return 0;
+		int read = channel.read(buf.position(end));
+		if (read > 0) {
+			end += read;
+			metrics.received(read);
+		}
+		return read;
+	}
+
+	/**
+	 * Test whether there are received bytes that have not been consumed.
+	 */
+	boolean hasBufferedData() {
+		return start < end;
+	}
+
+	int available() {
+		return end - start;
+	}
+
+	int read() throws IOException {
+		if (start == end && fill() < 0)
+			return -1;
+		return buf.get(start++) & 0xFF;
+	}
+
+	int read(byte[] b, int off, int len) throws IOException {
+		if (start == end && fill() < 0)
+			return -1;
+		int count = Math.min(len, end - start);
+		buf.get(start, b, off, count);
+		start += count;
+		return count;
+	}
+
+	long skip(long n) throws IOException {
+		if (start == end && fill() < 0)
+			return -1;
+		int count = (int) Math.min(n, end - start);
+		start += count;
+		return count;
+	}
+
+	void writeInterim(byte[] data) throws IOException {
+		source.writeInterim(data);
+	}
+
+	/**
+	 * Return the buffer to the pool once the connection is closed, and no request
+	 * from it is being handled. Releasing it again does nothing.
+	 */
+	void release() {
+		pool.release(buf);
+		buf = null;
+	}
+
+	private ByteBuffer lease(int size) {
+		return source.needsArray() ? pool.leaseHeap(size) : pool.lease(size);
+	}
+
+	/**
+	 * Block until more bytes have been read into the buffer.
+	 */
+	private int fill() throws IOException {
+		makeRoom();
+		int read = source.read(buf.position(end));
+		if (read > 0) {
+			end += read;
+			metrics.received(read);
+		}
+		return read;
+	}
+
+	/**
+	 * Ensure there is free space at the end of the buffer: reuse it once all
+	 * bytes are consumed, then move unconsumed bytes down, detaching the current
+	 * request if its head is in the way, and finally grow the buffer.
+	 */
+	private void makeRoom() {
+		if (start == end)
+			start = end = floor;
+		if (end < buf.capacity())
+			return;
+
+		if (start == floor && floor > 0) {
+			current.detach();
+			floor = 0;
+		}
+
+		int length = end - start;
+		ByteBuffer target = buf;
+		if (start == floor)
+			target = lease(Math.min(buf.capacity() * 2, RequestParser.MAX_HEAD_SIZE));
+
+		target.put(floor, buf, start, length);
+		if (target != buf)
+			pool.release(buf);
+		buf = target;
+		start = floor;
+		end = floor + length;
+	}
+
+	/**
+	 * Reads from a blocking socket stream.
+	 */
+	static class StreamSource implements Source {
+
+		private final InputStream in;
+		private final OutputStream out;
+
+		StreamSource(InputStream in, OutputStream out) {
+			this.in = in;
+			this.out = out;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			int read = in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+			if (read > 0)
+				dst.position(dst.position() + read);
+			return read;
+		}
+
+		@Override
+		public void writeInterim(byte[] data) throws IOException {
+			out.write(data);
+			out.flush();
+		}
+
+		@Override
+		public boolean needsArray() {
+			return true;
+		}
+
+	}
+
+}
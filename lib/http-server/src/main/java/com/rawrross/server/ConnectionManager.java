@@ -0,0 +1,409 @@
+package com.rawrross.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.rawrross.server.HTTPServer.Transport;
+
+/**
+ * Tracks every open connection of an {@link HTTPServer}, for either transport,
+ * and decides when idle keep-alive connections are closed.
+ * <p>
+ * A connection waiting for its next request is idle. Idle connections are
+ * scheduled on a hashed timer wheel: a ring of {@value #WHEEL_SIZE} buckets,
+ * one per tick of {@value #TICK_MILLIS} ms, each linking the connections whose
+ * deadline falls in that tick, with deadlines more than one turn of the wheel
+ * away counted down in rounds. Scheduling and cancelling a timeout takes
+ * constant time, and each tick visits a single bucket, however many
+ * connections are open. Idle connections are also linked in the order they
+ * went idle, so the oldest is always at hand.
+ * <p>
+ * The number of open connections is capped, and a connection is closed after a
+ * maximum number of requests. Once connection utilisation, or with the blocking
+ * transport and a bounded pool the utilisation of worker threads, which idle
+ * connections hold, exceeds {@link HTTPServer#KEEP_ALIVE_PRESSURE}, the
+ * keep-alive timeout shrinks in proportion down to
+ * {@link HTTPServer#MIN_KEEP_ALIVE_TIMEOUT}, including for connections already
+ * idle. When the cap is reached, or connections are waiting for a worker
+ * thread, the oldest idle connections are closed to make room.
+ *
+ * @author Randy Ross
+ */
+final class ConnectionManager {
+
+	private static final long TICK_MILLIS = 100;
+	private static final int WHEEL_SIZE = 512;
+	private static final int MASK = WHEEL_SIZE - 1;
+
+	/**
+	 * Closes a connection chosen by the manager. Called on the manager's thread,
+	 * or on the thread opening another connection, so it must not block.
+	 */
+	interface Expiry {
+
+		/**
+		 * @param reaped <code>True</code> if the connection is closed early to
+		 *               make room, or <code>false</code> if its keep-alive
+		 *               timeout has passed.
+		 */
+		void expire(boolean reaped);
+
+	}
+
+	/**
+	 * An open connection's registration with the manager. Its methods may be
+	 * called from any thread.
+	 */
+	final class Handle {
+
+		private final Expiry expiry;
+		/** Only used by the thread handling the connection's requests. */
+		private int requests;
+		private long idleSince;
+		private boolean idle, expired, closed;
+
+		/** Links within a wheel bucket. */
+		private Handle prevTimer, nextTimer;
+		private int bucket = -1;
+		private long rounds;
+
+		/** Links within the idle list, oldest first. */
+		private Handle prevIdle, nextIdle;
+
+		private Handle(Expiry expiry) {
+			this.expiry = expiry;
+		}
+
+		/**
+		 * Mark the connection as waiting for its next request, so that it times out
+		 * unless one arrives.
+		 *
+		 * @param since When the connection last received or sent anything, in
+		 *              milliseconds since the epoch.
+		 */
+		void idle(long since) {
+			synchronized (ConnectionManager.this) {
+				if (closed)
+					return;
+				unlink(this);
+				if (expired) {
+					expired = false;
+					expiring--;
+				}
+				idle = true;
+				idleSince = since;
+				appendIdle(this);
+				schedule(this, since + timeout);
+			}
+		}
+
+		/**
+		 * Mark the connection as handling a request, so that it does not time out.
+		 */
+		void busy() {
+			synchronized (ConnectionManager.this) {
+				unlink(this);
+			}
+		}
+
+		/**
+		 * Count a request about to be handled.
+		 *
+		 * @return <code>False</code> if it is the last request the connection may
+		 *         make.
+		 */
+		boolean countRequest() {
+			return maxRequests == 0 || ++requests < maxRequests;
+		}
+
+		/**
+		 * Test whether the manager has closed, or is closing, the connection.
+		 */
+		boolean isExpired() {
+			synchronized (ConnectionManager.this) {
+				return expired;
+			}
+		}
+
+		/**
+		 * Stop tracking the connection once it has closed.
+		 */
+		void close() {
+			synchronized (ConnectionManager.this) {
+				if (closed)
+					return;
+				closed = true;
+				unlink(this);
+				if (expired)
+					expiring--;
+				connections--;
+			}
+		}
+
+	}
+
+	private final int keepAliveTimeout;
+	private final int minTimeout;
+	private final int maxConnections;
+	private final int maxRequests;
+	/** The size of the worker pool each blocking connection holds a thread of, or 0. */
+	private final int workerThreads;
+
+	private final Handle[] buckets;
+	private final long startTime;
+	/** The next tick to process. */
+	private long tick;
+	private Handle idleHead, idleTail;
+	private int connections, idleCount;
+	/** Connections expired but not yet closed, which no longer count as open. */
+	private int expiring;
+	private long timedOut, reaped;
+
+	private volatile int timeout;
+	private volatile String keepAliveHeader;
+
+	private final Thread thread;
+	private volatile boolean running;
+
+	ConnectionManager(ServerConfig config) {
+		this.keepAliveTimeout = config.getKeepAliveTimeout();
+		this.minTimeout = Math.min(HTTPServer.MIN_KEEP_ALIVE_TIMEOUT, keepAliveTimeout);
+		this.maxConnections = config.getMaxConnections();
+		this.maxRequests = config.getMaxRequestsPerConnection();
+		boolean bounded = config.getExecutorStrategy().isBounded();
+		this.workerThreads = config.getTransport() == Transport.BLOCKING && bounded ? config.getWorkerThreads() : 0;
+
+		this.buckets = new Handle[WHEEL_SIZE];
+		this.startTime = System.currentTimeMillis();
+		this.tick = 1;
+		setTimeout(keepAliveTimeout);
+
+		this.thread = new Thread(this::run, "http-timer");
+		thread.setDaemon(true);
+	}
+
+	void start() {
+		running = true;
+		thread.start();
+	}
+
+	/**
+	 * Stop the timer, and close every idle connection so that none waits out its
+	 * timeout.
+	 */
+	void stop() {
+		running = false;
+		thread.interrupt();
+
+		List<Handle> idle = new ArrayList<>();
+		synchronized (this) {
+			while (idleHead != null)
+				idle.add(expire(idleHead));
+		}
+		for (Handle handle : idle)
+			handle.expiry.expire(true);
+	}
+
+	/**
+	 * Register a newly accepted connection. If the connection cap has been
+	 * reached, the oldest idle connection is closed to make room.
+	 *
+	 * @param expiry Closes the connection when the manager chooses to.
+	 * @return The connection's handle, or <code>null</code> if the cap has been
+	 *         reached and no connection is idle.
+	 */
+	Handle open(Expiry expiry) {
+		Handle oldest = null;
+		synchronized (this) {
+			if (maxConnections > 0 && connections - expiring >= maxConnections) {
+				if (idleHead == null)
+					return null;
+				oldest = expire(idleHead);
+				reaped++;
+			}
+			connections++;
+		}
+		if (oldest != null)
+			oldest.expiry.expire(true);
+		return new Handle(expiry);
+	}
+
+	/**
+	 * The keep-alive timeout currently applied to idle connections, in
+	 * milliseconds.
+	 */
+	int getKeepAliveTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * The <code>Keep-Alive</code> header value for the current timeout.
+	 */
+	String getKeepAliveHeader() {
+		return keepAliveHeader;
+	}
+
+	synchronized int getIdleConnections() {
+		return idleCount;
+	}
+
+	synchronized long getTimedOut() {
+		return timedOut;
+	}
+
+	synchronized long getReaped() {
+		return reaped;
+	}
+
+	private void run() {
+		long next = startTime + TICK_MILLIS;
+		while (running) {
+			long delay = next - System.currentTimeMillis();
+			if (delay > 0) {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					break;
+				}
+				continue;
+			}
+
+			tick(next);
+			next += TICK_MILLIS;
+		}
+	}
+
+	private void tick(long now) {
+		List<Handle> expired = new ArrayList<>();
+		int due;
+		synchronized (this) {
+			adjustTimeout();
+
+			Handle handle = buckets[(int) (tick & MASK)];
+			while (handle != null) {
+				Handle next = handle.nextTimer;
+				if (handle.rounds > 0) {
+					handle.rounds--;
+				} else if (handle.idleSince + timeout > now) {
+					// The timeout has grown back since the deadline was set
+					unlinkTimer(handle);
+					schedule(handle, handle.idleSince + timeout);
+				} else {
+					expired.add(expire(handle));
+				}
+				handle = next;
+			}
+			tick++;
+
+			// A shrunk timeout applies to connections already idle, oldest first
+			while (idleHead != null && idleHead.idleSince + timeout <= now)
+				expired.add(expire(idleHead));
+			timedOut += expired.size();
+			due = expired.size();
+
+			// Idle connections hold threads that queued connections are waiting for
+			int excess = workerThreads > 0 ? connections - expiring - workerThreads : 0;
+			for (; excess > 0 && idleHead != null; excess--) {
+				expired.add(expire(idleHead));
+				reaped++;
+			}
+		}
+
+		for (int i = 0; i < expired.size(); i++)
+			expired.get(i).expiry.expire(i >= due);
+	}
+
+	/**
+	 * Shrink the keep-alive timeout in proportion to how far utilisation is past
+	 * the pressure threshold, reaching the minimum at full utilisation.
+	 */
+	private void adjustTimeout() {
+		int open = connections - expiring;
+		double utilisation = 0;
+		if (maxConnections > 0)
+			utilisation = (double) open / maxConnections;
+		if (workerThreads > 0)
+			utilisation = Math.max(utilisation, (double) open / workerThreads);
+
+		double threshold = HTTPServer.KEEP_ALIVE_PRESSURE;
+		int target = keepAliveTimeout;
+		if (utilisation > threshold && threshold < 1) {
+			double scale = 1 - Math.min(1, (utilisation - threshold) / (1 - threshold));
+			target = Math.max(minTimeout, (int) (keepAliveTimeout * scale));
+		}
+		if (target != timeout)
+			setTimeout(target);
+	}
+
+	private void setTimeout(int timeout) {
+		this.timeout = timeout;
+		this.keepAliveHeader = "timeout=" + (timeout / 1000);
+	}
+
+	/**
+	 * Stop timing a connection that the manager is closing.
+	 */
+	private Handle expire(Handle handle) {
+		unlink(handle);
+		handle.expired = true;
+		expiring++;
+		return handle;
+	}
+
+	private void unlink(Handle handle) {
+		unlinkTimer(handle);
+		if (handle.idle) {
+			handle.idle = false;
+			if (handle.prevIdle == null)
+				idleHead = handle.nextIdle;
+			else
+				handle.prevIdle.nextIdle = handle.nextIdle;
+			if (handle.nextIdle == null)
+				idleTail = handle.prevIdle;
+			else
+				handle.nextIdle.prevIdle = handle.prevIdle;
+			handle.prevIdle = handle.nextIdle = null;
+			idleCount--;
+		}
+	}
+
+	private void appendIdle(Handle handle) {
+		handle.prevIdle = idleTail;
+		if (idleTail == null)
+			idleHead = handle;
+		else
+			idleTail.nextIdle = handle;
+		idleTail = handle;
+		idleCount++;
+	}
+
+	/**
+	 * Link a connection into the bucket for the given deadline. It is added at
+	 * the head, so a bucket being processed never meets it again in the same
+	 * tick.
+	 */
+	private void schedule(Handle handle, long deadline) {
+		long ticks = Math.max((deadline - startTime + TICK_MILLIS - 1) / TICK_MILLIS, tick);
+		handle.rounds = (ticks - tick) / WHEEL_SIZE;
+		handle.bucket = (int) (ticks & MASK);
+		handle.prevTimer = null;
+		handle.nextTimer = buckets[handle.bucket];
+		if (handle.nextTimer != null)
+			handle.nextTimer.prevTimer = handle;
+		buckets[handle.bucket] = handle;
+	}
+
+	private void unlinkTimer(Handle handle) {
+		if (handle.bucket < 0)
+			return;
+		if (handle.prevTimer == null)
+			buckets[handle.bucket] = handle.nextTimer;
+		else
+			handle.prevTimer.nextTimer = handle.nextTimer;
+		if (handle.nextTimer != null)
+			handle.nextTimer.prevTimer = handle.prevTimer;
+		handle.prevTimer = handle.nextTimer = null;
+		handle.bucket = -1;
+	}
+
+}
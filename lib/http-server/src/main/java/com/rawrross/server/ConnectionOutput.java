@@ -0,0 +1,242 @@
+package com.rawrross.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The destination an {@link HTTPResponse} is written to. Decouples response
+ * serialization from the transport, so the same response can be written to a
+ * blocking socket stream or queued for a non-blocking channel.
+ *
+ * @author Randy Ross
+ */
+abstract class ConnectionOutput {
+
+	/**
+	 * Bodies up to this size are copied alongside the response head, so both go
+	 * out in one write; larger files are transferred from the file system
+	 * directly when the connection has a channel.
+	 */
+	static final int COPY_THRESHOLD = 16 * 1024;
+
+	/** Serializes response heads into a buffer reused across responses. */
+	final HeaderWriter heads;
+	/** Where response bodies lease their buffers. */
+	final BufferPool pool;
+	final ServerMetrics metrics;
+
+	ConnectionOutput(HeaderWriter heads, HTTPServer server) {
+		this.heads = heads;
+		this.pool = server.getBufferPool();
+		this.metrics = server.getMetrics();
+	}
+
+	/**
+	 * Get the writer to serialize the next response head with. Writes copy their
+	 * data by default, so each head reuses the writer's buffer from the start.
+	 */
+	HeaderWriter beginHead() {
+		return heads.reset();
+	}
+
+	/**
+	 * Write bytes to the connection. Implementations may keep a reference to the
+	 * given array until the response has been sent, so it must not be modified
+	 * afterwards.
+	 */
+	abstract void write(byte[] data, int offset, int length) throws IOException;
+
+	void write(byte[] data) throws IOException {
+		write(data, 0, data.length);
+	}
+
+	/**
+	 * Write the remaining bytes of the given buffer. Implementations may keep a
+	 * reference to the buffer until the response has been sent.
+	 */
+	abstract void write(ByteBuffer data) throws IOException;
+
+	/**
+	 * Write <code>count</code> bytes of the given file, starting at
+	 * <code>position</code>.
+	 */
+	abstract void writeFile(Path path, long position, long count) throws IOException;
+
+	/**
+	 * Send everything written so far. Outputs may hold back small writes so that
+	 * pipelined responses share a socket write.
+	 */
+	void flush() throws IOException {
+	}
+
+	/**
+	 * Return this output's buffers to the pool once the connection is closed.
+	 */
+	void release() {
+	}
+
+	/**
+	 * Report a failed socket write as a {@link SocketException}, which the server
+	 * treats as the client going away rather than as an error. Channel-backed
+	 * sockets report a closed connection as a plain {@link IOException}.
+	 */
+	static SocketException socketError(IOException e) {
+		if (e instanceof SocketException socketException)
+			return socketException;
+		SocketException wrapped = new SocketException(e.getMessage());
+		wrapped.initCause(e);
+		return wrapped;
+	}
+
+	/**
+	 * Writes to a blocking output stream through a connection-scoped buffer. The
+	 * buffer is only flushed when it fills, or when {@link #flush()} is called
+	 * before the connection blocks waiting for its next request.
+	 * <p>
+	 * If the socket has a channel, large files are sent with
+	 * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, which lets
+	 * the operating system copy them without passing through the heap.
+	 */
+	static class StreamOutput extends ConnectionOutput {
+
+		private static final int BUFFER_SIZE = 16 * 1024;
+
+		private final OutputStream out;
+		private final WritableByteChannel channel;
+		private ByteBuffer leased;
+		private final byte[] buffer;
+		private int count;
+
+		/**
+		 * @param out     The socket's output stream.
+		 * @param channel The socket's channel, or <code>null</code> to always copy
+		 *                through the stream.
+		 * @param server  The server, for its metrics and the pool to lease the
+		 *                connection's buffer from.
+		 */
+		StreamOutput(OutputStream out, WritableByteChannel channel, HTTPServer server) {
+			super(new HeaderWriter(), server);
+			this.out = out;
+			this.channel = channel;
+			this.leased = pool.leaseHeap(BUFFER_SIZE);
+			this.buffer = leased.array();
+		}
+
+		@Override
+		void write(byte[] data, int offset, int length) throws IOException {
+			if (length > buffer.length - count) {
+				flushBuffer();
+				if (length >= buffer.length) {
+					try {
+						out.write(data, offset, length);
+					} catch (IOException e) {
+						throw socketError(e);
+					}
+					metrics.sent(length);
+					return;
+				}
+			}
+			System.arraycopy(data, offset, buffer, count, length);
+			count += length;
+		}
+
+		@Override
+		void write(ByteBuffer data) throws IOException {
+			if (data.hasArray()) {
+				write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+				data.position(data.limit());
+			} else if (channel != null && data.remaining() > COPY_THRESHOLD) {
+				flushBuffer();
+				try {
+					while (data.hasRemaining())
+						metrics.sent(channel.write(data));
+				} catch (IOException e) {
+					throw socketError(e);
+				}
+			} else {
+				while (data.hasRemaining()) {
+					if (count == buffer.length)
+						flushBuffer();
+					int length = Math.min(buffer.length - count, data.remaining());
+					data.get(buffer, count, length);
+					count += length;
+				}
+			}
+		}
+
+		@Override
+		void writeFile(Path path, long position, long count) throws IOException {
+			if (channel != null && count > COPY_THRESHOLD) {
+				flushBuffer();
+				try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+					while (count > 0) {
+						long written;
+						try {
+							written = file.transferTo(position, count, channel);
+						} catch (IOException e) {
+							throw socketError(e);
+						}
+						if (written <= 0)
+							throw new EOFException("File truncated while sending");
+						metrics.sent(written);
+						position += written;
+						count -= written;
+					}
+				}
+				return;
+			}
+
+			// Copy file bytes through the connection buffer, reading from the position
+			try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+				while (count > 0) {
+					if (this.count == buffer.length)
+						flushBuffer();
+					int length = (int) Math.min(buffer.length - this.count, count);
+					int read = file.read(ByteBuffer.wrap(buffer, this.count, length), position);
+					if (read < 0)
+						throw new EOFException("File truncated while sending");
+					this.count += read;
+					position += read;
+					count -= read;
+				}
+			}
+		}
+
+		@Override
+		void flush() throws IOException {
+			flushBuffer();
+			try {
+				out.flush();
+			} catch (IOException e) {
+				throw socketError(e);
+			}
+		}
+
+		private void flushBuffer() throws IOException {
+			if (count > 0) {
+				try {
+					out.write(buffer, 0, count);
+				} catch (IOException e) {
+					throw socketError(e);
+				}
+				metrics.sent(count);
+				count = 0;
+			}
+		}
+
+		@Override
+		void release() {
+			pool.release(leased);
+			leased = null;
+		}
+
+	}
+
+}
@@ -0,0 +1,230 @@
+package com.rawrross.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Compresses response bodies with a content coding the client accepts.
+ * <p>
+ * In-memory bodies are compressed for each response. File bodies are
+ * compressed once per coding into a cache directory, and the compressed
+ * variant is sent in their place until the file is modified.
+ *
+ * @author Randy Ross
+ */
+class ContentEncoder {
+
+	private static final Logger logger = LogManager.getLogger("Server");
+
+	/**
+	 * Content codings the server can apply, in order of preference.
+	 */
+	enum Coding {
+		GZIP("gzip"), DEFLATE("deflate");
+
+		/** The coding's name in <code>Accept-Encoding</code>. */
+		final String NAME;
+
+		private Coding(String name) {
+			NAME = name;
+		}
+
+		OutputStream wrap(OutputStream out) throws IOException {
+			return (this == GZIP) ? new GZIPOutputStream(out) : new DeflaterOutputStream(out);
+		}
+	}
+
+	/**
+	 * A compressed copy of a file, valid while the file is unchanged.
+	 *
+	 * @param file     The compressed file, or <code>null</code> if compressing did
+	 *                 not make the file smaller.
+	 * @param modified The source file's modification time.
+	 * @param size     The source file's size.
+	 */
+	private record Variant(Path file, FileTime modified, long size) {
+
+		boolean matches(BasicFileAttributes attributes) {
+			return size == attributes.size() && modified.equals(attributes.lastModifiedTime());
+		}
+
+	}
+
+	private final int minSize;
+	private final ConcurrentHashMap<String, Variant> variants;
+	private final AtomicLong variantCount;
+	private Path cacheDir;
+
+	/**
+	 * @param minSize Bodies smaller than this many bytes are sent uncompressed.
+	 */
+	ContentEncoder(int minSize) {
+		this.minSize = minSize;
+		this.variants = new ConcurrentHashMap<>();
+		this.variantCount = new AtomicLong();
+	}
+
+	/**
+	 * Test whether a body of the given type and length is worth compressing.
+	 * Responses that are eligible should carry <code>Vary: Accept-Encoding</code>,
+	 * whether or not this client accepts compression.
+	 */
+	boolean isEligible(String contentType, long contentLength) {
+		return contentLength >= minSize && MimeType.typeIsText(contentType);
+	}
+
+	/**
+	 * Choose the coding to apply from the request's <code>Accept-Encoding</code>
+	 * header, preferring gzip when both are acceptable.
+	 *
+	 * @return The coding, or <code>null</code> if the body should not be
+	 *         compressed.
+	 */
+	Coding negotiate(HTTPRequest request) {
+		String accept = request.getHeader("Accept-Encoding");
+		if (accept == null)
+			return null;
+
+		Coding best = null;
+		float bestQuality = 0;
+		float wildcard = -1;
+		float[] qualities = { -1, -1 };
+
+		for (String entry : accept.split(",")) {
+			int semicolon = entry.indexOf(';');
+			String name = ((semicolon < 0) ? entry : entry.substring(0, semicolon)).trim();
+			float quality = (semicolon < 0) ? 1 : quality(entry.substring(semicolon + 1));
+
+			if (name.equals("*")) {
+				wildcard = quality;
+				continue;
+			}
+			for (Coding coding : Coding.values()) {
+				if (coding.NAME.equalsIgnoreCase(name))
+					qualities[coding.ordinal()] = quality;
+			}
+		}
+
+		for (Coding coding : Coding.values()) {
+			float quality = qualities[coding.ordinal()];
+			if (quality < 0)
+				quality = wildcard;
+			if (quality > bestQuality) {
+				best = coding;
+				bestQuality = quality;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Compress an in-memory body.
+	 *
+	 * @return The compressed body, or <code>null</code> if compressing does not
+	 *         make it smaller.
+	 */
+	byte[] encode(byte[] data, int offset, int length, Coding coding) throws IOException {
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream(length / 3 + 64);
+		try (OutputStream out = coding.wrap(encoded)) {
+			out.write(data, offset, length);
+		}
+		return (encoded.size() < length) ? encoded.toByteArray() : null;
+	}
+
+	/**
+	 * Get the compressed variant of a file, compressing it if there is no
+	 * up-to-date variant in the cache.
+	 *
+	 * @return The compressed file, or <code>null</code> if compressing does not
+	 *         make the file smaller.
+	 */
+	Path encode(Path source, Coding coding) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+		String key = coding.NAME + ':' + source.toAbsolutePath().normalize();
+
+		Variant variant = variants.get(key);
+		if (variant != null && variant.matches(attributes))
+			return variant.file();
+
+		try {
+			// Only one thread compresses a given file at a time
+			variant = variants.compute(key, (k, old) -> {
+				if (old != null && old.matches(attributes))
+					return old;
+				if (old != null && old.file() != null)
+					delete(old.file());
+				return compress(source, attributes, coding);
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		return variant.file();
+	}
+
+	private Variant compress(Path source, BasicFileAttributes attributes, Coding coding) {
+		try {
+			Path file = getCacheDir().resolve(variantCount.incrementAndGet() + "." + coding.NAME);
+			file.toFile().deleteOnExit();
+
+			try (OutputStream out = coding.wrap(Files.newOutputStream(file))) {
+				Files.copy(source, out);
+			}
+
+			if (Files.size(file) >= attributes.size()) {
+				delete(file);
+				file = null;
+			}
+			return new Variant(file, attributes.lastModifiedTime(), attributes.size());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private synchronized Path getCacheDir() throws IOException {
+		if (cacheDir == null) {
+			cacheDir = Files.createTempDirectory("http-server-encoded");
+			cacheDir.toFile().deleteOnExit();
+		}
+		return cacheDir;
+	}
+
+	private static void delete(Path file) {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			logger.warn("Unable to delete cached variant {}", file, e);
+		}
+	}
+
+	/**
+	 * Parse the quality value of an <code>Accept-Encoding</code> entry from its
+	 * parameters.
+	 */
+	private static float quality(String params) {
+		for (String param : params.split(";")) {
+			param = param.trim();
+			if (param.startsWith("q=") || param.startsWith("Q=")) {
+				try {
+					return Float.parseFloat(param.substring(2));
+				} catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+		}
+		return 1;
+	}
+
+}
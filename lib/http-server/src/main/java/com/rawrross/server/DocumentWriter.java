@@ -0,0 +1,190 @@
+package com.rawrross.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.jsoup.SerializationException;
+import org.jsoup.nodes.Document;
+
+/**
+ * Serializes a jsoup {@link Document} as UTF-8 without building the page as a
+ * String first. jsoup appends the markup to this writer, which encodes it
+ * straight into a byte buffer; the buffer is either passed on to an output
+ * stream whenever it fills, or grown to hold the whole page.
+ * <p>
+ * Characters that cannot be encoded, such as unpaired surrogates, are replaced
+ * with <code>?</code>, as {@link String#getBytes} does.
+ *
+ * @author Randy Ross
+ */
+final class DocumentWriter implements Appendable {
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	private static final String DOCTYPE = "<!DOCTYPE html>";
+
+	private final OutputStream out;
+	private final BufferPool pool;
+	private ByteBuffer leased;
+	private byte[] buffer;
+	private int count;
+	/** A high surrogate waiting for the low surrogate that completes it. */
+	private char pending;
+
+	/**
+	 * @param out  The stream to pass full buffers to, or <code>null</code> to keep
+	 *             the whole page in memory.
+	 * @param pool The pool to lease the buffer from when it is passed on to a
+	 *             stream, or <code>null</code>.
+	 */
+	private DocumentWriter(OutputStream out, BufferPool pool) {
+		this.out = out;
+		this.pool = pool;
+		if (pool != null) {
+			this.leased = pool.leaseHeap(BUFFER_SIZE);
+			this.buffer = leased.array();
+		} else {
+			this.buffer = new byte[BUFFER_SIZE];
+		}
+	}
+
+	/**
+	 * Serialize a document into memory.
+	 *
+	 * @return A buffer holding the encoded page.
+	 */
+	static ByteBuffer render(Document document) {
+		DocumentWriter writer = new DocumentWriter(null, null);
+		try {
+			writer.write(document);
+		} catch (IOException e) {
+			// Only the output stream can fail
+			throw new UncheckedIOException(e);
+		}
+		return ByteBuffer.wrap(writer.buffer, 0, writer.count);
+	}
+
+	/**
+	 * Serialize a document to an output stream, which is not flushed or closed.
+	 * The stream must be done with each write's bytes when the write returns.
+	 */
+	static void write(Document document, OutputStream out, BufferPool pool) throws IOException {
+		DocumentWriter writer = new DocumentWriter(out, pool);
+		boolean written = false;
+		try {
+			writer.write(document);
+			written = true;
+		} finally {
+			// A failed write may have left the buffer queued on the connection
+			if (written)
+				pool.release(writer.leased);
+			else
+				pool.discard(writer.leased);
+		}
+	}
+
+	private void write(Document document) throws IOException {
+		append(DOCTYPE);
+		try {
+			document.html(this);
+		} catch (SerializationException e) {
+			if (e.getCause() instanceof IOException cause)
+				throw cause;
+			throw e;
+		}
+		if (pending != 0) {
+			pending = 0;
+			put('?');
+		}
+		if (out != null && count > 0) {
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+	}
+
+	@Override
+	public Appendable append(CharSequence csq) throws IOException {
+		return append(csq, 0, csq.length());
+	}
+
+	@Override
+	public Appendable append(CharSequence csq, int start, int end) throws IOException {
+		for (int i = start; i < end; i++) {
+			char c = csq.charAt(i);
+			if (c < 0x80 && pending == 0) {
+				if (count == buffer.length)
+					drain();
+				buffer[count++] = (byte) c;
+			} else {
+				encode(c);
+			}
+		}
+		return this;
+	}
+
+	@Override
+	public Appendable append(char c) throws IOException {
+		encode(c);
+		return this;
+	}
+
+	private void encode(char c) throws IOException {
+		if (pending != 0) {
+			char high = pending;
+			pending = 0;
+			if (Character.isLowSurrogate(c)) {
+				int codePoint = Character.toCodePoint(high, c);
+				ensure(4);
+				buffer[count++] = (byte) (0xF0 | (codePoint >> 18));
+				buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				buffer[count++] = (byte) (0x80 | (codePoint & 0x3F));
+				return;
+			}
+			put('?');
+		}
+
+		if (c < 0x80) {
+			put(c);
+		} else if (c < 0x800) {
+			ensure(2);
+			buffer[count++] = (byte) (0xC0 | (c >> 6));
+			buffer[count++] = (byte) (0x80 | (c & 0x3F));
+		} else if (Character.isHighSurrogate(c)) {
+			pending = c;
+		} else if (Character.isLowSurrogate(c)) {
+			put('?');
+		} else {
+			ensure(3);
+			buffer[count++] = (byte) (0xE0 | (c >> 12));
+			buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+			buffer[count++] = (byte) (0x80 | (c & 0x3F));
+		}
+	}
+
+	private void put(char ascii) throws IOException {
+		ensure(1);
+		buffer[count++] = (byte) ascii;
+	}
+
+	private void ensure(int length) throws IOException {
+		if (buffer.length - count < length)
+			drain();
+	}
+
+	/**
+	 * Make room in a full buffer, by writing it out or by growing it.
+	 */
+	private void drain() throws IOException {
+		if (out != null) {
+			out.write(buffer, 0, count);
+			count = 0;
+		} else {
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+		}
+	}
+
+}
@@ -0,0 +1,160 @@
+package com.rawrross.server;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+
+import com.rawrross.server.HTTPResponse.HttpStatusCode;
+
+/**
+ * The error page template, compiled once into literal segments and the slots
+ * between them. Pages are rendered by copying the segments and the encoded
+ * slot values into an array of exactly the page's size.
+ * <p>
+ * Pages without a subtitle are cached for each status, and re-rendered when
+ * the date on them changes.
+ *
+ * @author Randy Ross
+ */
+final class ErrorPage {
+
+	/**
+	 * The placeholders in the template.
+	 */
+	enum Slot {
+		TITLE, SUBTITLE, DATE;
+
+		/** The placeholder text in the template. */
+		final String TOKEN = "%" + name() + "%";
+	}
+
+	/**
+	 * A rendered page, valid for the second its date shows.
+	 */
+	private record Rendered(long second, byte[] page) {
+	}
+
+	/** Literal bytes; segment <code>i</code> is followed by slot <code>i</code>. */
+	private final byte[][] segments;
+	private final Slot[] slots;
+	private final int literalLength;
+	/** Pages without a subtitle, by status ordinal. */
+	private final Rendered[] cache;
+
+	private ErrorPage(byte[][] segments, Slot[] slots) {
+		this.segments = segments;
+		this.slots = slots;
+		int length = 0;
+		for (byte[] segment : segments)
+			length += segment.length;
+		this.literalLength = length;
+		this.cache = new Rendered[HttpStatusCode.values().length];
+	}
+
+	/**
+	 * Split a template into literal segments and slots.
+	 */
+	static ErrorPage compile(String template) {
+		ArrayList<byte[]> segments = new ArrayList<>();
+		ArrayList<Slot> slots = new ArrayList<>();
+
+		int start = 0;
+		while (true) {
+			Slot next = null;
+			int index = -1;
+			for (Slot slot : Slot.values()) {
+				int i = template.indexOf(slot.TOKEN, start);
+				if (i >= 0 && (index < 0 || i < index)) {
+					next = slot;
+					index = i;
+				}
+			}
+			if (next == null)
+				break;
+
+			segments.add(template.substring(start, index).getBytes(HTTPServer.DEFAULT_CHARSET));
+			slots.add(next);
+			start = index + next.TOKEN.length();
+		}
+		segments.add(template.substring(start).getBytes(HTTPServer.DEFAULT_CHARSET));
+
+		return new ErrorPage(segments.toArray(new byte[0][]), slots.toArray(new Slot[0]));
+	}
+
+	/**
+	 * Get the page for the given status, rendering it only if the cached page is
+	 * out of date or there is a subtitle.
+	 *
+	 * @param subtitle The subtitle, or <code>null</code> to omit it.
+	 */
+	byte[] render(HttpStatusCode status, String subtitle) {
+		if (subtitle != null && !subtitle.isEmpty())
+			return render(status.toString(), subtitle);
+
+		long second = System.currentTimeMillis() / 1000;
+		Rendered cached = cache[status.ordinal()];
+		if (cached == null || cached.second() != second) {
+			cached = new Rendered(second, render(status.toString(), null));
+			cache[status.ordinal()] = cached;
+		}
+		return cached.page();
+	}
+
+	/**
+	 * Render the page with the given title and subtitle. The subtitle is
+	 * escaped, since it often echoes part of the request.
+	 */
+	byte[] render(String title, String subtitle) {
+		byte[][] values = new byte[Slot.values().length][];
+		values[Slot.TITLE.ordinal()] = escape(title);
+		values[Slot.SUBTITLE.ordinal()] = escape(subtitle);
+		values[Slot.DATE.ordinal()] = HeaderWriter.currentDate().getBytes(HTTPServer.DEFAULT_CHARSET);
+
+		int length = literalLength;
+		for (Slot slot : slots)
+			length += values[slot.ordinal()].length;
+
+		byte[] page = new byte[length];
+		int pos = 0;
+		for (int i = 0; i < segments.length; i++) {
+			System.arraycopy(segments[i], 0, page, pos, segments[i].length);
+			pos += segments[i].length;
+			if (i < slots.length) {
+				byte[] value = values[slots[i].ordinal()];
+				System.arraycopy(value, 0, page, pos, value.length);
+				pos += value.length;
+			}
+		}
+		return page;
+	}
+
+	private static byte[] escape(String text) {
+		if (text == null)
+			return new byte[0];
+
+		ByteArrayOutputStream out = null;
+		int start = 0;
+		for (int i = 0; i < text.length(); i++) {
+			String entity = switch (text.charAt(i)) {
+				case '<' -> "&lt;";
+				case '>' -> "&gt;";
+				case '&' -> "&amp;";
+				case '"' -> "&quot;";
+				case '\'' -> "&#39;";
+				default -> null;
+			};
+			if (entity == null)
+				continue;
+			if (out == null)
+				out = new ByteArrayOutputStream(text.length() + 16);
+			out.writeBytes(text.substring(start, i).getBytes(HTTPServer.DEFAULT_CHARSET));
+			out.writeBytes(entity.getBytes(HTTPServer.DEFAULT_CHARSET));
+			start = i + 1;
+		}
+
+		if (out == null)
+			return text.getBytes(HTTPServer.DEFAULT_CHARSET);
+		out.writeBytes(text.substring(start).getBytes(HTTPServer.DEFAULT_CHARSET));
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,143 @@
+package com.rawrross.server;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A selector thread that performs all non-blocking reads and writes for the
+ * connections registered with it. Other threads interact with the loop by
+ * submitting tasks with {@link #execute(Runnable)}.
+ *
+ * @author Randy Ross
+ */
+class EventLoop implements Runnable {
+
+	private static final Logger logger = LogManager.getLogger("Server");
+
+	private final HTTPServer server;
+	private final Selector selector;
+	private final Queue<Runnable> tasks;
+	private final Thread thread;
+	private volatile boolean running;
+
+	EventLoop(HTTPServer server, String name) throws IOException {
+		this.server = server;
+		this.selector = Selector.open();
+		this.tasks = new ConcurrentLinkedQueue<>();
+		this.thread = new Thread(this, name);
+	}
+
+	Selector selector() {
+		return selector;
+	}
+
+	void start() {
+		running = true;
+		thread.start();
+	}
+
+	void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Run the given task on this event loop's thread. May be called from any
+	 * thread.
+	 */
+	void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Take ownership of a newly accepted connection. May be called from any
+	 * thread.
+	 */
+	void register(SocketChannel channel) {
+		execute(() -> {
+			NioConnection connection = new NioConnection(server, this, channel);
+			try {
+				connection.register(selector);
+			} catch (IOException e) {
+				connection.close();
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				logger.error("Selector failed", e);
+				break;
+			}
+
+			runTasks();
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				processKey(key);
+			}
+		}
+
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof NioConnection connection)
+				connection.close();
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (Exception e) {
+				logger.error("Exception in event loop task", e);
+			}
+		}
+	}
+
+	private void processKey(SelectionKey key) {
+		if (!key.isValid())
+			return;
+
+		if (key.attachment() instanceof SelectorEngine.Acceptor acceptor) {
+			acceptor.acceptConnections();
+			return;
+		}
+
+		NioConnection connection = (NioConnection) key.attachment();
+		try {
+			if (key.isReadable())
+				connection.onReadable();
+			if (key.isValid() && key.isWritable())
+				connection.onWritable();
+		} catch (IOException | CancelledKeyException e) {
+			// Connection reset, aborted, etc.
+			connection.close();
+		} catch (Exception e) {
+			logger.error("Exception processing connection", e);
+			connection.close();
+		}
+	}
+
+}
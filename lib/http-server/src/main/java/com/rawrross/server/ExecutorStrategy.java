@@ -0,0 +1,62 @@
+package com.rawrross.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Strategies for the executor that runs connection and request handling tasks.
+ * Selected per server instance with
+ * {@link ServerConfig#setExecutorStrategy(ExecutorStrategy)}.
+ *
+ * @author Randy Ross
+ */
+public enum ExecutorStrategy {
+
+	/**
+	 * A fixed pool of platform threads. With the blocking transport, at most this
+	 * many connections are served at once; further connections wait in the
+	 * executor queue.
+	 */
+	FIXED,
+	/**
+	 * An unbounded pool of platform threads, created on demand and reused when
+	 * idle.
+	 */
+	CACHED,
+	/**
+	 * A new virtual thread for every task. Blocking socket reads unmount the
+	 * virtual thread from its carrier, so idle keep-alive connections do not
+	 * hold a platform thread.
+	 */
+	VIRTUAL,
+	/**
+	 * A work-stealing {@link ForkJoinPool} in FIFO mode, with the configured
+	 * parallelism.
+	 */
+	FORK_JOIN;
+
+	/**
+	 * Test whether this strategy runs tasks on a fixed number of threads.
+	 */
+	boolean isBounded() {
+		return this == FIXED || this == FORK_JOIN;
+	}
+
+	/**
+	 * Create a new executor for this strategy.
+	 *
+	 * @param threads The number of threads, or parallelism, for the bounded
+	 *                strategies. Ignored by {@link #CACHED} and {@link #VIRTUAL}.
+	 * @return A new executor service.
+	 */
+	public ExecutorService create(int threads) {
+		return switch (this) {
+			case FIXED -> Executors.newFixedThreadPool(threads);
+			case CACHED -> Executors.newCachedThreadPool();
+			case VIRTUAL -> Executors.newVirtualThreadPerTaskExecutor();
+			case FORK_JOIN -> new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+		};
+	}
+
+}
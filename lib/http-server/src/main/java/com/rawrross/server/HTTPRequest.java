@@ -1,22 +1,33 @@
 package com.rawrross.server;
 
-import java.io.BufferedReader;
-import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.List;
 
 import com.rawrross.server.exception.BadRequestException;
 
 /**
  * Represents an HTTP request; can be used to get the HTTP method, request
  * headers, query parameters, etc.
- * 
+ * <p>
+ * Requests are parsed by {@link RequestParser} into offsets within the
+ * connection's read buffer, and Strings are only created when a field is first
+ * requested. A request must therefore not be used after its response has been
+ * sent, once the buffer may hold the connection's next request.
+ * <p>
+ * The request body is not read until the handler asks for it with
+ * {@link #getBody()}. Whatever the handler leaves unread is drained before the
+ * connection's next request is parsed.
+ *
  * @author Randy Ross
  */
 public class HTTPRequest {
@@ -25,139 +36,204 @@ public class HTTPRequest {
 		GET, HEAD, POST, PUT, DELETE, CONNECT, OPTIONS, TRACE, PATCH
 	}
 
-	private HTTPMethod method;
-	private String version;
-	private String uri;
+	private ByteBuffer buf;
+	private int headStart, headEnd;
+	private final HTTPMethod method;
+	private int targetStart, targetEnd, queryStart, versionStart, versionEnd;
+	/** Name start, name end, value start, value end for each header. */
+	private final int[] headers;
+	private final int headerCount;
 
-	private ArrayList<String> lines;
-	private HashMap<String, String> headers;
-	private HashMap<String, String> params;
+	private RequestBody body;
+	private ReadableByteChannel bodyChannel;
 
-	/**
-	 * Create an HTTP request object reading from the given socket input stream.
-	 * Blocks until the request is fully read, or a socket read timeout occurs.
-	 * <p>
-	 * Use {@link #checkParseException()} to check for exceptions in parsing the
-	 * request.
-	 * 
-	 * @param in The socket input stream to read from.
-	 * @throws SocketTimeoutException If the socket times out while reading.
-	 * @throws IOException            If there is an issue reading from the input
-	 *                                stream.
-	 */
-	HTTPRequest(InputStream in) throws SocketTimeoutException, IOException {
-		lines = new ArrayList<>();
-		headers = new HashMap<>();
-		params = new HashMap<>();
-
-		BufferedReader reader = new BufferedReader(new InputStreamReader(in, HTTPServer.DEFAULT_CHARSET));
-
-		while (true) {
-			String line = reader.readLine();
-			if (line == null || line.isBlank())
-				break;
+	private String uri;
+	private String version;
+	private String[] headerValues;
+	private HashMap<String, String> params;
+	/** Names of the path parameters captured by a {@link Router}, in order. */
+	private String[] pathParamNames;
+	/** Start and end of each path parameter, relative to the start of the path. */
+	private int[] pathParams;
+	/** The pattern of the {@link Router} route that matched, if any. */
+	private String route;
+	/** When the head was read, from {@link System#nanoTime()}. */
+	private long receivedAt;
+	private ArrayList<String> lines;
 
-			lines.add(line);
-			parseLine(line);
-		}
+	/** Milliseconds an asynchronous handler may take, or -1 for the server's default. */
+	private long timeout = -1;
+	private volatile boolean cancelled;
+	private ArrayList<Runnable> cancelActions;
 
-		if (lines.isEmpty())
-			throw new SocketTimeoutException();
+	private Exception parseException;
 
-		if (method == null || uri == null)
+	HTTPRequest(ByteBuffer buf, int headStart, int headEnd, HTTPMethod method, int targetStart, int targetEnd,
+			int queryStart, int versionStart, int versionEnd, int[] headers, int headerCount, String parseError) {
+		this.buf = buf;
+		this.headStart = headStart;
+		this.headEnd = headEnd;
+		this.method = method;
+		this.targetStart = targetStart;
+		this.targetEnd = targetEnd;
+		this.queryStart = queryStart;
+		this.versionStart = versionStart;
+		this.versionEnd = versionEnd;
+		this.headers = headers;
+		this.headerCount = headerCount;
+
+		if (parseError != null)
+			parseException = new BadRequestException(parseError);
+		else if (method == null)
 			parseException = new BadRequestException("Invalid HTTP request");
 	}
 
-	private Exception parseException;
+	void setBody(RequestBody body) {
+		this.body = body;
+		if (parseException == null)
+			parseException = body.getError();
+	}
 
 	/**
-	 * Throws any exception that occurred while parsing the HTTP request.
-	 * 
-	 * @throws Exception
+	 * Copy this request's head out of the connection buffer, so the buffer can be
+	 * reused while the request is still being handled.
 	 */
-	void checkParseException() throws Exception {
-		if (parseException != null)
-			throw parseException;
+	void detach() {
+		int shift = headStart;
+		ByteBuffer copy = ByteBuffer.allocate(headEnd - headStart);
+		copy.put(0, buf, headStart, headEnd - headStart);
+
+		buf = copy;
+		headStart -= shift;
+		headEnd -= shift;
+		targetStart -= shift;
+		targetEnd -= shift;
+		if (queryStart >= 0)
+			queryStart -= shift;
+		versionStart -= shift;
+		versionEnd -= shift;
+		for (int i = 0; i < headerCount * 4; i++)
+			headers[i] -= shift;
 	}
 
-	private void parseLine(String line) {
-		if (line.matches("^(\\w+) (.+) (.+)$")) {
-			parseHTTPMethod(line);
-		} else {
-			parseHTTPHeader(line);
-		}
+	/**
+	 * Consume any unread part of the request body.
+	 * 
+	 * @return <code>True</code> if the connection can serve another request.
+	 */
+	boolean finishBody() {
+		return body == null || body.finish();
 	}
 
-	private void parseHTTPMethod(String line) {
-		Matcher matcher = Pattern.compile("(\\w+) (.+) (.+)").matcher(line);
-
-		try {
-			matcher.find();
-			method = HTTPMethod.valueOf(matcher.group(1));
-
-			uri = matcher.group(2).split("\\?")[0];
-			uri = URLDecoder.decode(uri, HTTPServer.DEFAULT_CHARSET);
+	/**
+	 * Test whether the request body has been read to its end, or there is none.
+	 */
+	boolean isBodyFinished() {
+		return body == null || body.isFinished();
+	}
 
-			version = matcher.group(3);
-		} catch (Exception e) {
-			this.parseException = new BadRequestException("Invalid starting line '" + line + "'");
-			return;
-		}
+	/**
+	 * Set how long an {@link AsyncRequestHandler} may take to complete this
+	 * request, counted from when the request was read, in place of the server's
+	 * {@link ServerConfig#setAsyncTimeout(int) default}. It must be set before
+	 * the handler returns.
+	 * 
+	 * @param timeout The timeout in milliseconds, or <code>0</code> for none.
+	 */
+	public void setTimeout(long timeout) {
+		if (timeout < 0)
+			throw new IllegalArgumentException("Timeout must not be negative");
+		this.timeout = timeout;
+	}
 
-		if (method == null) {
-			parseException = new BadRequestException("Invalid HTTP method '" + line + "'");
-			return;
-		}
-		if (uri == null) {
-			parseException = new BadRequestException("Invalid URI '" + line + "'");
-			return;
-		}
+	/**
+	 * The timeout set by {@link #setTimeout(long)}, or <code>-1</code>.
+	 */
+	long getTimeout() {
+		return timeout;
+	}
 
-		parseQueryString(matcher.group(2));
+	/**
+	 * Test whether this request has been cancelled, because its asynchronous
+	 * handler missed its deadline or the client closed the connection. The
+	 * response to a cancelled request is no longer sent.
+	 * 
+	 * @return <code>True</code> if the request has been cancelled.
+	 */
+	public boolean isCancelled() {
+		return cancelled;
 	}
 
-	private void parseQueryString(String target) {
-		Matcher m = Pattern.compile(".+\\?(.*)").matcher(target);
-		if (m.find()) {
-			String[] queryList = m.group(1).split("&");
-			for (String query : queryList) {
-				try {
-					String[] data = query.split("=", 2);
-					String field = URLDecoder.decode(data[0], HTTPServer.DEFAULT_CHARSET);
-					String value = URLDecoder.decode(data[1], HTTPServer.DEFAULT_CHARSET);
-					this.params.put(field, value);
-				} catch (Exception e) {
-				}
+	/**
+	 * Run the given action when this request is cancelled, or now if it already
+	 * has been. Actions run on a server thread, so must not block.
+	 * 
+	 * @param action The action to run.
+	 */
+	public void onCancel(Runnable action) {
+		synchronized (this) {
+			if (!cancelled) {
+				if (cancelActions == null)
+					cancelActions = new ArrayList<>();
+				cancelActions.add(action);
+				return;
 			}
 		}
+		action.run();
 	}
 
-	private void parseHTTPHeader(String line) {
-		try {
-			// TODO headers w/ multiple values, eg connection, cookies
-			Matcher matcher = Pattern.compile("^(.+): (.+)$").matcher(line);
-			matcher.find();
-			String name = matcher.group(1).toLowerCase();
-			String value = matcher.group(2);
-			headers.put(name, value);
-		} catch (Exception e) {
-			this.parseException = e;
-			return;
+	/**
+	 * Cancel this request, running its cancel actions. Cancelling it again does
+	 * nothing.
+	 */
+	void cancel() {
+		ArrayList<Runnable> actions;
+		synchronized (this) {
+			if (cancelled)
+				return;
+			cancelled = true;
+			actions = cancelActions;
+			cancelActions = null;
+		}
+		if (actions != null) {
+			for (Runnable action : actions)
+				action.run();
 		}
 	}
 
+	/**
+	 * Throws any exception that occurred while parsing the HTTP request.
+	 *
+	 * @throws Exception
+	 */
+	void checkParseException() throws Exception {
+		if (parseException != null)
+			throw parseException;
+	}
+
 	/**
 	 * Retrieve each line of this HTTP request.
-	 * 
+	 *
 	 * @return An ArrayList of Strings.
 	 */
 	public ArrayList<String> getLines() {
+		if (lines == null) {
+			lines = new ArrayList<>();
+			int start = headStart;
+			int lf;
+			while ((lf = RequestParser.indexOf(buf, (byte) '\n', start, headEnd)) >= 0) {
+				int end = (lf > start && buf.get(lf - 1) == '\r') ? lf - 1 : lf;
+				if (end > start)
+					lines.add(string(start, end));
+				start = lf + 1;
+			}
+		}
 		return lines;
 	}
 
 	/**
 	 * Get the HTTP method of this request.
-	 * 
+	 *
 	 * @return An HTTPMethod enum object. May be <code>null</code> if this request
 	 *         is invalid.
 	 */
@@ -167,75 +243,460 @@ public class HTTPRequest {
 
 	/**
 	 * Get the requested URI.
-	 * 
+	 *
 	 * @return The URI as a String. May be <code>null</code> if this request is
 	 *         invalid.
 	 */
 	public String getUri() {
+		if (uri == null && method != null && parseException == null) {
+			int end = (queryStart < 0) ? targetEnd : queryStart - 1;
+			uri = decode(targetStart, end);
+		}
 		return uri;
 	}
 
 	/**
 	 * Get the HTTP version of this request.
-	 * 
+	 *
 	 * @return The request version as a String. May be <code>null</code> if this
 	 *         request is invalid.
 	 */
 	public String getVersion() {
+		if (version == null && method != null)
+			version = string(versionStart, versionEnd);
 		return version;
 	}
 
 	/**
 	 * Test if the given header name exists in this request.
-	 * 
+	 *
 	 * @param header The name of the desired header, case-<i>insensitive</i>.
 	 * @return <code>True</code> if the header is present.
 	 */
 	public boolean hasHeader(String header) {
-		return headers.containsKey(header);
+		return findHeader(header) >= 0;
 	}
 
 	/**
-	 * Get the value associated with the given header name.
-	 * 
+	 * Get the value associated with the given header name. If the header appears
+	 * more than once, the last value is returned, as for response headers; use
+	 * {@link #getHeaders(String)} for every value.
+	 *
 	 * @param header The name of the desired header, case-<i>insensitive</i>.
 	 * @return The value of the header as a String, or <code>null</code> if the
 	 *         header is not present.
 	 */
 	public String getHeader(String header) {
-		// TODO headers w/ multiple values, eg connection, cookies
-		return headers.get(header.toLowerCase());
+		int index = findHeader(header);
+		if (index < 0)
+			return null;
+		return headerValue(index);
+	}
+
+	/**
+	 * Get every value of the given header name, such as each <code>Cookie</code>
+	 * or <code>Connection</code> line, in the order they were sent.
+	 *
+	 * @param header The name of the desired header, case-<i>insensitive</i>.
+	 * @return The values of the header, empty if the header is not present.
+	 */
+	public List<String> getHeaders(String header) {
+		List<String> values = new ArrayList<>(1);
+		for (int i = 0; i < headerCount; i++) {
+			if (equalsIgnoreCase(headers[i * 4], headers[i * 4 + 1], header))
+				values.add(headerValue(i));
+		}
+		return values;
+	}
+
+	private String headerValue(int index) {
+		if (headerValues == null)
+			headerValues = new String[headerCount];
+		if (headerValues[index] == null)
+			headerValues[index] = string(headers[index * 4 + 2], headers[index * 4 + 3]);
+		return headerValues[index];
 	}
 
 	/**
 	 * Test if the given URI parameter name exists in this request.
-	 * 
+	 *
 	 * @param field The name of the desired parameter.
 	 * @return <code>True</code> if the parameter is present.
 	 */
 	public boolean hasParameter(String field) {
-		return params.containsKey(field);
+		return getParameters().containsKey(field);
 	}
 
 	/**
 	 * Get the value associated with the given URI parameter name.
-	 * 
+	 *
 	 * @param field The name of the desired parameter.
 	 * @return The value of the parameter as a String, or <code>null</code> if the
 	 *         parameter is not present.
 	 */
 	public String getParameter(String field) {
-		return params.get(field);
+		return getParameters().get(field);
 	}
 
 	/**
-	 * Test whether or not a keep-alive connection has been requested.
+	 * Get the raw query string, without URL decoding.
+	 *
+	 * @return The query string, or <code>null</code> if the request has none.
+	 */
+	String getQueryString() {
+		return (queryStart < 0) ? null : string(queryStart, targetEnd);
+	}
+
+	/**
+	 * Get the value of a path parameter, captured from a <code>{name}</code> or
+	 * wildcard segment of the {@link Router} route that matched this request.
+	 *
+	 * @param name The name of the parameter in the route.
+	 * @return The URL-decoded value of the parameter, or <code>null</code> if the
+	 *         route has no such parameter.
+	 */
+	public String getPathParameter(String name) {
+		if (pathParamNames == null)
+			return null;
+		for (int i = 0; i < pathParamNames.length; i++) {
+			if (pathParamNames[i].equals(name)) {
+				try {
+					return decode(targetStart + pathParams[i * 2], targetStart + pathParams[i * 2 + 1]);
+				} catch (IllegalArgumentException e) {
+					return null;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get the length of the raw request path, without the query string.
+	 */
+	int pathLength() {
+		return ((queryStart < 0) ? targetEnd : queryStart - 1) - targetStart;
+	}
+
+	/**
+	 * Get a byte of the raw request path, before URL decoding.
+	 */
+	byte pathByte(int index) {
+		return buf.get(targetStart + index);
+	}
+
+	/**
+	 * Get the array path parameter offsets are captured in, allocating it the
+	 * first time.
+	 */
+	int[] pathCaptures(int size) {
+		if (pathParams == null || pathParams.length < size)
+			pathParams = new int[size];
+		return pathParams;
+	}
+
+	void setPathParameterNames(String[] names) {
+		this.pathParamNames = names;
+	}
+
+	String getRoute() {
+		return route;
+	}
+
+	void setRoute(String route) {
+		this.route = route;
+	}
+
+	long getReceivedAt() {
+		return receivedAt;
+	}
+
+	void setReceivedAt(long receivedAt) {
+		this.receivedAt = receivedAt;
+	}
+
+	/**
+	 * Test whether this request has a body, declared by a non-zero
+	 * <code>Content-Length</code> or by <code>Transfer-Encoding: chunked</code>.
+	 * 
+	 * @return <code>True</code> if the request has a body.
+	 */
+	public boolean hasBody() {
+		return body != null && (body.isChunked() || body.getContentLength() > 0);
+	}
+
+	/**
+	 * Get the length of the request body.
+	 * 
+	 * @return The <code>Content-Length</code> of the body, <code>0</code> if there
+	 *         is no body, or <code>-1</code> if the body is chunked.
+	 */
+	public long getContentLength() {
+		return (body == null) ? 0 : body.getContentLength();
+	}
+
+	/**
+	 * Get a stream of the request body. The body is read from the connection as
+	 * the stream is read, and decoded if it was sent with chunked transfer coding.
+	 * The stream ends at the end of the body; it does not need to be closed.
+	 * <p>
+	 * If the body is larger than the server's
+	 * {@link ServerConfig#setMaxBodySize(long) maximum body size}, reading throws
+	 * a {@link com.rawrross.server.exception.PayloadTooLargeException
+	 * PayloadTooLargeException}.
 	 * 
-	 * @return <code>True</code> if the <code>Connection</code> header is set to
-	 *         <code>keep-alive</code>.
+	 * @return An input stream of the body, which is empty if the request has no
+	 *         body.
+	 */
+	public InputStream getBody() {
+		return (body == null) ? InputStream.nullInputStream() : body;
+	}
+
+	/**
+	 * Get the request body as a channel. Reads from the channel and from
+	 * {@link #getBody()} consume the same bytes.
+	 * 
+	 * @return A readable channel of the body.
+	 */
+	public ReadableByteChannel getBodyChannel() {
+		if (bodyChannel == null)
+			bodyChannel = Channels.newChannel(getBody());
+		return bodyChannel;
+	}
+
+	/**
+	 * Evaluate this request's <code>If-None-Match</code> and
+	 * <code>If-Modified-Since</code> preconditions against the current validators
+	 * of the requested resource. Handlers can use this to skip generating a body
+	 * the client already has; the server applies it to every response
+	 * automatically.
+	 * <p>
+	 * Entity tags are compared weakly, and a content-coding suffix such as
+	 * <code>-gzip</code> added by the server is ignored.
+	 * <code>If-Modified-Since</code> is only considered when
+	 * <code>If-None-Match</code> is absent.
+	 * 
+	 * @param etag         The resource's entity tag, or <code>null</code>.
+	 * @param lastModified When the resource last changed, or <code>null</code>.
+	 * @return <code>True</code> if the client's copy is current, and a
+	 *         <code>304 Not Modified</code> response applies.
+	 */
+	public boolean isNotModified(String etag, Instant lastModified) {
+		if (method != HTTPMethod.GET && method != HTTPMethod.HEAD)
+			return false;
+
+		String ifNoneMatch = getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			if (etag == null)
+				return false;
+			String tag = baseTag(etag);
+			for (String candidate : ifNoneMatch.split(",")) {
+				candidate = candidate.trim();
+				if (candidate.equals("*") || baseTag(candidate).equals(tag))
+					return true;
+			}
+			return false;
+		}
+
+		String ifModifiedSince = getHeader("If-Modified-Since");
+		if (ifModifiedSince != null && lastModified != null) {
+			try {
+				Instant since = ZonedDateTime.parse(ifModifiedSince, HTTPServer.DATE_FORMATTER).toInstant();
+				// HTTP dates only have second precision
+				return lastModified.getEpochSecond() <= since.getEpochSecond();
+			} catch (DateTimeParseException e) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Test whether this request's <code>Range</code> header should be honored.
+	 * An <code>If-Range</code> precondition must match the resource's current
+	 * validators exactly; otherwise the client's partial copy is stale and the
+	 * whole body is sent instead.
+	 *
+	 * @param etag         The resource's entity tag, or <code>null</code>.
+	 * @param lastModified When the resource last changed, or <code>null</code>.
+	 * @return <code>True</code> if this is a <code>GET</code> request for part of
+	 *         the current body.
+	 */
+	public boolean isRangeRequest(String etag, Instant lastModified) {
+		if (method != HTTPMethod.GET || !hasHeader("Range"))
+			return false;
+
+		String ifRange = getHeader("If-Range");
+		if (ifRange == null)
+			return true;
+
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			// Strong comparison, so weak tags never match
+			return etag != null && !etag.startsWith("W/") && ifRange.equals(etag);
+		}
+
+		if (lastModified == null)
+			return false;
+		try {
+			Instant date = ZonedDateTime.parse(ifRange, HTTPServer.DATE_FORMATTER).toInstant();
+			return lastModified.getEpochSecond() == date.getEpochSecond();
+		} catch (DateTimeParseException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Strip the weakness indicator and any content-coding suffix from an entity
+	 * tag, for weak comparison.
+	 */
+	private static String baseTag(String etag) {
+		if (etag.startsWith("W/"))
+			etag = etag.substring(2);
+		for (ContentEncoder.Coding coding : ContentEncoder.Coding.values()) {
+			String suffix = "-" + coding.NAME + "\"";
+			if (etag.endsWith(suffix))
+				return etag.substring(0, etag.length() - suffix.length()) + "\"";
+		}
+		return etag;
+	}
+
+	/**
+	 * Test whether or not the client wants the connection kept open after this
+	 * request. HTTP/1.1 connections are persistent unless the
+	 * <code>Connection</code> header contains <code>close</code>, while HTTP/1.0
+	 * connections must ask for <code>keep-alive</code>.
+	 *
+	 * @return <code>True</code> if the connection should be kept alive.
 	 */
 	public boolean isConnectionKeepAlive() {
-		return headers.getOrDefault("connection", "").equalsIgnoreCase("keep-alive");
+		if (hasConnectionToken("close"))
+			return false;
+		if (isHttp10())
+			return hasConnectionToken("keep-alive");
+		return true;
+	}
+
+	/**
+	 * Test whether this is an HTTP/1.0 request, whose client may not support
+	 * persistent connections or chunked transfer coding.
+	 */
+	boolean isHttp10() {
+		return method != null && equalsIgnoreCase(versionStart, versionEnd, "HTTP/1.0");
+	}
+
+	/**
+	 * Test whether any <code>Connection</code> header lists the given token.
+	 */
+	private boolean hasConnectionToken(String token) {
+		for (int i = 0; i < headerCount; i++) {
+			if (!equalsIgnoreCase(headers[i * 4], headers[i * 4 + 1], "connection"))
+				continue;
+
+			int start = headers[i * 4 + 2];
+			int end = headers[i * 4 + 3];
+			while (start < end) {
+				int comma = RequestParser.indexOf(buf, (byte) ',', start, end);
+				int tokenEnd = (comma < 0) ? end : comma;
+
+				int s = start, e = tokenEnd;
+				while (s < e && buf.get(s) == ' ')
+					s++;
+				while (e > s && buf.get(e - 1) == ' ')
+					e--;
+				if (equalsIgnoreCase(s, e, token))
+					return true;
+
+				start = tokenEnd + 1;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Find the last header with the given name, so later duplicates take
+	 * precedence.
+	 *
+	 * @return The header's index, or <code>-1</code>.
+	 */
+	private int findHeader(String name) {
+		for (int i = headerCount - 1; i >= 0; i--) {
+			if (equalsIgnoreCase(headers[i * 4], headers[i * 4 + 1], name))
+				return i;
+		}
+		return -1;
+	}
+
+	private HashMap<String, String> getParameters() {
+		if (params == null) {
+			params = new HashMap<>();
+			if (queryStart >= 0 && parseException == null)
+				parseQueryString(queryStart, targetEnd);
+		}
+		return params;
+	}
+
+	private void parseQueryString(int start, int end) {
+		while (start < end) {
+			int amp = RequestParser.indexOf(buf, (byte) '&', start, end);
+			int fieldEnd = (amp < 0) ? end : amp;
+			int eq = RequestParser.indexOf(buf, (byte) '=', start, fieldEnd);
+
+			// Fields without a value are ignored
+			if (eq >= 0) {
+				try {
+					params.put(decode(start, eq), decode(eq + 1, fieldEnd));
+				} catch (IllegalArgumentException e) {
+				}
+			}
+
+			start = fieldEnd + 1;
+		}
+	}
+
+	/**
+	 * Test whether the bytes in [start, end) equal the given ASCII String,
+	 * ignoring case, without creating a String.
+	 */
+	private boolean equalsIgnoreCase(int start, int end, String value) {
+		if (end - start != value.length())
+			return false;
+		for (int i = 0; i < value.length(); i++) {
+			int a = buf.get(start + i);
+			int b = value.charAt(i);
+			if (a != b && toLowerCase(a) != toLowerCase(b))
+				return false;
+		}
+		return true;
+	}
+
+	private static int toLowerCase(int c) {
+		return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+	}
+
+	/**
+	 * URL-decode the bytes in [start, end), skipping the decoder when there is
+	 * nothing to decode.
+	 */
+	private String decode(int start, int end) {
+		for (int i = start; i < end; i++) {
+			byte b = buf.get(i);
+			if (b == '%' || b == '+')
+				return URLDecoder.decode(string(start, end), HTTPServer.DEFAULT_CHARSET);
+		}
+		return string(start, end);
+	}
+
+	private String string(int start, int end) {
+		return string(buf, start, end, HTTPServer.DEFAULT_CHARSET);
+	}
+
+	static String string(ByteBuffer buf, int start, int end, Charset charset) {
+		if (buf.hasArray())
+			return new String(buf.array(), buf.arrayOffset() + start, end - start, charset);
+
+		byte[] bytes = new byte[end - start];
+		buf.get(start, bytes);
+		return new String(bytes, charset);
 	}
 
 }
@@ -1,17 +1,31 @@
 package com.rawrross.server;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
-import java.util.Map.Entry;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.jsoup.nodes.Document;
 
+import com.rawrross.server.HTTPRequest.HTTPMethod;
+
 /**
  * Used to construct a response to an HTTP request.
+ * <p>
+ * The body is either set up front, with one of the <code>setBody</code>
+ * methods, or written by the request handler through
+ * {@link #getOutputStream()}, in which case it is streamed to the client as it
+ * is produced.
  * 
  * @author Randy Ross
  */
@@ -23,14 +37,21 @@ public class HTTPResponse {
 	public enum HttpStatusCode {
 		OK(200, "OK"),
 		NO_CONTENT(204, "No Content"),
+		PARTIAL_CONTENT(206, "Partial Content"),
+
+		NOT_MODIFIED(304, "Not Modified"),
 
 		BAD_REQUEST(400, "Bad Request"),
 		FORBIDDEN(403, "Forbidden"),
 		NOT_FOUND(404, "Not Found"),
+		METHOD_NOT_ALLOWED(405, "Method Not Allowed"),
 		REQUEST_TIMEOUT(408, "Request Timeout"),
+		PAYLOAD_TOO_LARGE(413, "Payload Too Large"),
+		RANGE_NOT_SATISFIABLE(416, "Range Not Satisfiable"),
 
 		INTERNAL_SERVER_ERROR(500, "Internal Server Error"),
-		NOT_IMPLEMENTED(501, "Not Implemented");
+		NOT_IMPLEMENTED(501, "Not Implemented"),
+		SERVICE_UNAVAILABLE(503, "Service Unavailable");
 
 		/** The code number for this status. */
 		public final int CODE;
@@ -52,10 +73,29 @@ public class HTTPResponse {
 	private String contentType;
 	private byte[] body;
 	private Path bodyPath;
-	private HashMap<String, String> headers;
+	private ByteBuffer bodyBuffer;
+	private CachedBody cachedBody;
+	/** A page to serialize once the handler returns. */
+	private Document document;
+	/** Pre-encoded headers sent in place of <code>Content-Type</code>. */
+	private byte[] presetHeaders;
+	private Headers headers;
+	private LinkedHashMap<String, String> trailers;
+
+	private ConnectionOutput output;
+	private HTTPRequest request;
+	private ContentEncoder encoder;
+	private boolean hashETags;
+	/** The body's modification time, if known, for conditional requests. */
+	private Instant lastModified;
+	private ResponseBodyStream stream;
+	/** <code>True</code> if this answers a <code>HEAD</code> request, so the body is not sent. */
+	private boolean headOnly;
+	private boolean committed;
+	private boolean aborted;
 
 	HTTPResponse() {
-		headers = new HashMap<>();
+		headers = new Headers();
 	}
 
 	/**
@@ -80,6 +120,7 @@ public class HTTPResponse {
 	 */
 	public HTTPResponse setContentType(String contentType) {
 		this.contentType = contentType;
+		this.presetHeaders = null;
 		return this;
 	}
 
@@ -93,6 +134,10 @@ public class HTTPResponse {
 	public HTTPResponse setBody(String data) {
 		this.body = data.getBytes(HTTPServer.DEFAULT_CHARSET);
 		this.bodyPath = null;
+		this.bodyBuffer = null;
+		this.cachedBody = null;
+		this.document = null;
+		this.presetHeaders = null;
 		return this;
 	}
 
@@ -105,12 +150,54 @@ public class HTTPResponse {
 	public HTTPResponse setBody(byte[] data) {
 		this.body = data;
 		this.bodyPath = null;
+		this.bodyBuffer = null;
+		this.cachedBody = null;
+		this.document = null;
+		this.presetHeaders = null;
 		return this;
 	}
 
+	/**
+	 * Set the body of this response to the remaining bytes of the given buffer.
+	 * Direct and memory-mapped buffers are written to the connection without
+	 * being copied into the heap. The buffer's position is not changed, and its
+	 * contents must not be modified until the response has been sent.
+	 * 
+	 * @param data A buffer of bytes.
+	 * @return This HTTP response for chaining.
+	 */
+	public HTTPResponse setBody(ByteBuffer data) {
+		this.body = null;
+		this.bodyPath = null;
+		this.bodyBuffer = data.duplicate();
+		this.cachedBody = null;
+		this.document = null;
+		this.presetHeaders = null;
+		return this;
+	}
+
+	/**
+	 * Set the body of this response to one held in memory by a
+	 * {@link StaticFileHandler} or {@link ResponseCache}. The body's pre-encoded
+	 * headers replace <code>Content-Type</code> and <code>Last-Modified</code>.
+	 */
+	void setBody(CachedBody cached) {
+		this.body = cached.data;
+		this.bodyPath = null;
+		this.bodyBuffer = null;
+		this.cachedBody = cached;
+		this.document = null;
+		this.contentType = cached.contentType;
+		this.presetHeaders = cached.headers;
+		this.lastModified = cached.lastModified;
+		headers.remove("Last-Modified");
+	}
+
 	/**
 	 * Set the body of this response to the contents of the specified file. This
 	 * file will be streamed to the client once response transmission begins.
+	 * Large files are sent without copying them through the heap where the
+	 * connection supports it.
 	 * 
 	 * @param filePath The path to the desired file.
 	 * @return This HTTP response for chaining.
@@ -118,18 +205,34 @@ public class HTTPResponse {
 	public HTTPResponse setBody(Path filePath) {
 		this.body = null;
 		this.bodyPath = filePath;
+		this.bodyBuffer = null;
+		this.cachedBody = null;
+		this.document = null;
+		this.presetHeaders = null;
 		return this;
 	}
 
 	/**
-	 * 
+	 * Set the body of this response to an HTML document, preceded by an HTML5
+	 * doctype. The document is serialized when the request handler returns, so
+	 * changes made to it until then are included.
+	 * <p>
+	 * The page is encoded as it is serialized, without building it as a String.
+	 * If nothing needs the whole page up front, such as compression or
+	 * validators, it is written to the connection as it is encoded: small pages
+	 * are sent with a <code>Content-Length</code>, and larger ones with chunked
+	 * transfer coding.
 	 * 
 	 * @param html An HTML document to use as the response body
 	 * @return This HTTP response for chaining.
 	 */
 	public HTTPResponse setBody(Document html) {
-		this.body = ("<!DOCTYPE html>" + html.toString()).getBytes(HTTPServer.DEFAULT_CHARSET);
+		this.body = null;
 		this.bodyPath = null;
+		this.bodyBuffer = null;
+		this.cachedBody = null;
+		this.document = html;
+		this.presetHeaders = null;
 		this.contentType = MimeType.TEXT_HTML.MIME;
 		return this;
 	}
@@ -146,43 +249,48 @@ public class HTTPResponse {
 	 * @return This HTTP response for chaining.
 	 */
 	public HTTPResponse setErrorStatus(HttpStatusCode status, String message) {
-		this.body = HTTPServer.errDoc(status.toString(), message).getBytes(HTTPServer.DEFAULT_CHARSET);
+		this.body = HTTPServer.errorPage(status, message);
 		this.bodyPath = null;
+		this.bodyBuffer = null;
+		this.cachedBody = null;
+		this.document = null;
+		this.presetHeaders = null;
 		this.contentType = MimeType.TEXT_HTML.MIME;
 		this.statusCode = status;
 		return this;
 	}
 
 	/**
-	 * Append the given value to the specified response header.
+	 * Add a value for the specified response header, after any it already has.
+	 * Each value is sent as its own header line, as <code>Set-Cookie</code>
+	 * requires.
 	 * 
-	 * @param name  The name of the header to append.
-	 * @param value The value to append.
+	 * @param name  The name of the header to add, case-<i>insensitive</i>.
+	 * @param value The value to add.
 	 * @return This HTTP response for chaining.
 	 */
 	public HTTPResponse addHeader(String name, String value) {
-		// TODO append header
-		headers.put(name, value);
+		headers.add(name, value);
 		return this;
 	}
 
 	/**
 	 * Set the value of the specified response header to the given value,
-	 * overwriting the old value.
+	 * overwriting any old values.
 	 * 
-	 * @param name  The name of the header to set.
+	 * @param name  The name of the header to set, case-<i>insensitive</i>.
 	 * @param value The value to set the header to.
 	 * @return This HTTP response for chaining.
 	 */
 	public HTTPResponse setHeader(String name, String value) {
-		headers.put(name, value);
+		headers.set(name, value);
 		return this;
 	}
 
 	/**
-	 * Remove the specified header and value from this response.
+	 * Remove every value of the specified header from this response.
 	 * 
-	 * @param name The header to remove.
+	 * @param name The header to remove, case-<i>insensitive</i>.
 	 * @return This HTTP response for chaining.
 	 */
 	public HTTPResponse removeHeader(String name) {
@@ -191,70 +299,597 @@ public class HTTPResponse {
 	}
 
 	/**
-	 * Write this HTTP response to the given output stream.
+	 * Set the <code>Last-Modified</code> header of this response, which is also
+	 * used to answer <code>If-Modified-Since</code> requests with
+	 * <code>304 Not Modified</code>. File bodies get this header automatically.
+	 * 
+	 * @param lastModified When the response body last changed.
+	 * @return This HTTP response for chaining.
+	 */
+	public HTTPResponse setLastModified(Instant lastModified) {
+		this.lastModified = lastModified;
+		headers.set("Last-Modified", HTTPServer.DATE_FORMATTER.format(lastModified));
+		return this;
+	}
+
+	/**
+	 * Set a trailer field, sent after the body when the body is streamed with
+	 * chunked transfer coding. Trailers set before the response is committed are
+	 * announced in the <code>Trailer</code> header. If the body ends up being sent
+	 * with a <code>Content-Length</code>, trailers are sent as headers instead.
+	 * 
+	 * @param name  The name of the trailer to set.
+	 * @param value The value to set the trailer to.
+	 * @return This HTTP response for chaining.
+	 * @see #getOutputStream()
+	 */
+	public HTTPResponse setTrailer(String name, String value) {
+		if (trailers == null)
+			trailers = new LinkedHashMap<>();
+		trailers.put(name, value);
+		return this;
+	}
+
+	/**
+	 * Get a stream to write the response body to while the request is being
+	 * handled. The status and headers are sent the first time the stream is
+	 * flushed, after which they can no longer be changed, and the body is sent
+	 * with <code>Transfer-Encoding: chunked</code>. The stream is closed when the
+	 * request handler returns, if the handler has not closed it already.
+	 * <p>
+	 * A body set with a <code>setBody</code> method is not sent once the stream
+	 * has been requested.
+	 * <p>
+	 * Streamed bodies are only compressed if they are small enough to be sent
+	 * with a <code>Content-Length</code>.
+	 * 
+	 * @return An output stream of the response body.
+	 * @throws IllegalStateException If this response is not being sent on a
+	 *                               connection.
+	 */
+	public OutputStream getOutputStream() {
+		return getBodyStream();
+	}
+
+	/**
+	 * Get the response body as a channel. Writes to the channel and to
+	 * {@link #getOutputStream()} go to the same body.
+	 * 
+	 * @return A writable channel of the body.
+	 * @throws IllegalStateException If this response is not being sent on a
+	 *                               connection.
+	 */
+	public WritableByteChannel getBodyChannel() {
+		return getBodyStream();
+	}
+
+	/**
+	 * Test whether the status and headers of this response have been sent.
+	 * 
+	 * @return <code>True</code> once the response has been committed.
+	 */
+	public boolean isCommitted() {
+		return committed;
+	}
+
+	private ResponseBodyStream getBodyStream() {
+		if (stream == null) {
+			if (output == null)
+				throw new IllegalStateException("Response is not attached to a connection");
+			stream = new ResponseBodyStream(this, output, !request.isHttp10(), headOnly);
+		}
+		return stream;
+	}
+
+	/**
+	 * Attach this response to the request it answers and the connection it will
+	 * be sent on, allowing the body to be streamed, compressed, and answered
+	 * with <code>304 Not Modified</code>.
+	 * 
+	 * @param out     The connection output.
+	 * @param request The request being answered.
+	 * @param server  The server, for its compression and validator settings.
+	 */
+	void attach(ConnectionOutput out, HTTPRequest request, HTTPServer server) {
+		this.output = out;
+		this.request = request;
+		this.headOnly = request.getMethod() == HTTPMethod.HEAD;
+		this.encoder = server.getEncoder();
+		this.hashETags = server.isHashETags();
+	}
+
+	/**
+	 * Close the body stream, if the handler used one. Otherwise, a document body
+	 * is streamed if it can be, so it never needs to be held in memory whole.
+	 */
+	void finishStream() throws IOException {
+		if (stream == null && document != null && isDocumentStreamable()) {
+			Document html = document;
+			document = null;
+			if (encoder != null)
+				addVary("Accept-Encoding");
+			DocumentWriter.write(html, getBodyStream(), output.pool);
+		}
+		if (stream != null)
+			stream.close();
+	}
+
+	/**
+	 * End the body stream, if the handler used one, after the handler failed.
+	 */
+	void abandonStream() {
+		if (stream != null)
+			stream.abandon();
+	}
+
+	/**
+	 * Test whether a document body can be sent as it is serialized. Compression,
+	 * validators and ranges need the whole body, and clients without chunked
+	 * coding would need the connection closed to end a large one.
+	 */
+	private boolean isDocumentStreamable() {
+		if (output == null || request.isHttp10() || hashETags || lastModified != null || headers.contains("ETag"))
+			return false;
+		resolveContentType();
+		return encoder == null || headers.contains("Content-Encoding") || !MimeType.typeIsText(contentType)
+				|| encoder.negotiate(request) == null;
+	}
+
+	/**
+	 * Serialize a document body into memory.
+	 */
+	private void renderDocument() {
+		bodyBuffer = DocumentWriter.render(document);
+		document = null;
+	}
+
+	/**
+	 * Test whether the connection can be reused once this response is finished.
+	 * A streamed body without chunked coding is ended by closing the connection.
+	 */
+	boolean isReusable() {
+		return !aborted && (stream == null || stream.isFramed());
+	}
+
+	/**
+	 * Set whether this response answers a <code>HEAD</code> request. Its head is
+	 * sent as it would be for <code>GET</code>, with the same
+	 * <code>Content-Length</code>, but the body is not.
+	 */
+	void setHeadOnly(boolean headOnly) {
+		this.headOnly = headOnly;
+	}
+
+	/**
+	 * Mark a committed response as incomplete, so the connection is closed.
+	 */
+	void abort() {
+		aborted = true;
+	}
+
+	/**
+	 * Write the status and headers of a streamed body.
+	 */
+	void commit(ConnectionOutput out, boolean chunked) throws IOException {
+		committed = true;
+		if (chunked) {
+			if (trailers != null)
+				headers.set("Trailer", String.join(", ", trailers.keySet()));
+		} else {
+			headers.set("Connection", "close");
+			headers.remove("Keep-Alive");
+		}
+		writeHead(out, -1, chunked);
+	}
+
+	/**
+	 * Use a streamed body that was closed before it was committed as an ordinary
+	 * body.
+	 */
+	void setStreamedBody(byte[] data) {
+		this.body = data;
+		this.bodyPath = null;
+		this.bodyBuffer = null;
+		this.cachedBody = null;
+		this.document = null;
+		this.presetHeaders = null;
+		if (trailers != null)
+			trailers.forEach(headers::set);
+	}
+
+	Map<String, String> getTrailers() {
+		return trailers;
+	}
+
+	/**
+	 * Get the body of a successful response that was set in memory, for caching.
+	 * 
+	 * @return The body, or <code>null</code> if the response has another status,
+	 *         a file body, or a streamed body.
+	 */
+	byte[] getCacheableBody() {
+		if (stream != null || committed || (statusCode != null && statusCode != HttpStatusCode.OK))
+			return null;
+		if (document != null)
+			renderDocument();
+		if (body != null)
+			return body;
+		if (bodyBuffer != null) {
+			byte[] data = new byte[bodyBuffer.remaining()];
+			bodyBuffer.get(bodyBuffer.position(), data);
+			return data;
+		}
+		return null;
+	}
+
+	String getContentType() {
+		resolveContentType();
+		return contentType;
+	}
+
+	/**
+	 * Get the status that was sent, once the response has been written.
+	 */
+	HttpStatusCode getStatusCode() {
+		return (statusCode != null) ? statusCode : HttpStatusCode.OK;
+	}
+
+	Instant getLastModified() {
+		return lastModified;
+	}
+
+	Headers getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * Write this HTTP response to the given connection output. The body is left
+	 * out of a response to a <code>HEAD</code> request, whose head is otherwise
+	 * the same as for <code>GET</code>.
 	 * 
-	 * @param out The output stream to write.
+	 * @param out The connection output to write.
 	 * @throws IOException
 	 */
-	void write(OutputStream out) throws IOException {
+	void write(ConnectionOutput out) throws IOException {
+		if (document != null)
+			renderDocument();
+
 		long contentLength = 0;
-		if (body != null)
+		if (body != null) {
 			contentLength = body.length;
-		else if (bodyPath != null)
-			contentLength = Files.size(bodyPath);
+		} else if (bodyPath != null) {
+			BasicFileAttributes attributes = Files.readAttributes(bodyPath, BasicFileAttributes.class);
+			contentLength = attributes.size();
+			if (isValidatable())
+				setFileValidators(attributes);
+		} else if (bodyBuffer != null) {
+			contentLength = bodyBuffer.remaining();
+		}
 
-		StringBuilder res = new StringBuilder();
+		if (isValidatable()) {
+			if (cachedBody != null) {
+				headers.putIfAbsent("ETag", cachedBody.etag);
+			} else if (hashETags && contentLength > 0 && bodyPath == null) {
+				headers.putIfAbsent("ETag", hashETag());
+			}
 
-		if (statusCode == null)
-			statusCode = HttpStatusCode.OK;
+			if (request != null && request.isNotModified(headers.get("ETag"), lastModified)) {
+				writeNotModified(out, contentLength);
+				return;
+			}
 
-		if (contentLength == 0)
-			statusCode = HttpStatusCode.NO_CONTENT;
+			if (contentLength > 0) {
+				if (request != null && request.isRangeRequest(headers.get("ETag"), lastModified)) {
+					long[] ranges = ByteRanges.parse(request.getHeader("Range"), contentLength);
+					if (ranges == ByteRanges.UNSATISFIABLE) {
+						writeRangeNotSatisfiable(out, contentLength);
+						return;
+					} else if (ranges != null) {
+						writeRanges(out, ranges, contentLength);
+						return;
+					}
+				}
+				headers.set("Accept-Ranges", "bytes");
+			}
+		}
 
-		res.append("HTTP/1.1 " + statusCode);
-		res.append(LINE_BREAK);
+		if (encoder != null && contentLength > 0)
+			contentLength = encodeBody(contentLength);
 
-		res.append("Date: " + HTTPServer.getDate());
-		res.append(LINE_BREAK);
+		writeHead(out, contentLength, false);
+		if (headOnly)
+			return;
 
-		res.append("Content-Length: " + contentLength);
-		res.append(LINE_BREAK);
+		if (body != null) {
+			out.write(body);
+		} else if (bodyPath != null) {
+			out.writeFile(bodyPath, 0, contentLength);
+		} else if (bodyBuffer != null) {
+			out.write(bodyBuffer.duplicate());
+		}
+	}
 
-		if (body != null || bodyPath != null) {
-			if (contentType == null) {
-				if (bodyPath != null)
-					contentType = MimeType.getMimeFromFilename(bodyPath);
-				else
-					contentType = MimeType.APPLICATION_OCTET_STREAM.MIME;
+	/**
+	 * Replace the body with a compressed one if it is a text type, large enough,
+	 * and the client accepts a coding the server supports. File bodies are
+	 * replaced with a cached compressed variant.
+	 * 
+	 * @return The length of the body that will be sent.
+	 */
+	private long encodeBody(long contentLength) throws IOException {
+		if (!isEncodable(contentLength))
+			return contentLength;
+
+		addVary("Accept-Encoding");
+		ContentEncoder.Coding coding = encoder.negotiate(request);
+		if (coding == null)
+			return contentLength;
+
+		if (cachedBody != null) {
+			byte[] encoded = cachedBody.encode(encoder, coding);
+			if (encoded == null)
+				return contentLength;
+			body = encoded;
+			contentLength = encoded.length;
+		} else if (body != null) {
+			byte[] encoded = encoder.encode(body, 0, body.length, coding);
+			if (encoded == null)
+				return contentLength;
+			body = encoded;
+			contentLength = encoded.length;
+		} else if (bodyBuffer != null) {
+			byte[] encoded;
+			if (bodyBuffer.hasArray()) {
+				encoded = encoder.encode(bodyBuffer.array(), bodyBuffer.arrayOffset() + bodyBuffer.position(),
+						bodyBuffer.remaining(), coding);
+			} else {
+				byte[] data = new byte[bodyBuffer.remaining()];
+				bodyBuffer.get(bodyBuffer.position(), data);
+				encoded = encoder.encode(data, 0, data.length, coding);
 			}
+			if (encoded == null)
+				return contentLength;
+			body = encoded;
+			bodyBuffer = null;
+			contentLength = encoded.length;
+		} else {
+			Path encoded = encoder.encode(bodyPath, coding);
+			if (encoded == null)
+				return contentLength;
+			bodyPath = encoded;
+			contentLength = Files.size(encoded);
+		}
+
+		headers.set("Content-Encoding", coding.NAME);
+		// Ranges are only served from the uncompressed body
+		headers.remove("Accept-Ranges");
+		tagCoding(coding);
+		return contentLength;
+	}
+
+	/**
+	 * Test whether the server may compress this response's body, in which case
+	 * the response varies on <code>Accept-Encoding</code>.
+	 */
+	private boolean isEncodable(long contentLength) {
+		resolveContentType();
+		return encoder != null && !headers.contains("Content-Encoding")
+				&& encoder.isEligible(contentType, contentLength);
+	}
+
+	/**
+	 * Add a request header to the <code>Vary</code> header, keeping any the
+	 * handler already listed.
+	 */
+	private void addVary(String header) {
+		for (int i = 0; i < headers.size(); i++) {
+			if (!Headers.equalsIgnoreCase(headers.name(i), "Vary"))
+				continue;
+			for (String name : headers.value(i).split(",")) {
+				if (name.trim().equalsIgnoreCase(header))
+					return;
+			}
+		}
+		headers.add("Vary", header);
+	}
+
+	/**
+	 * Give the entity tag a suffix for the content coding, since each
+	 * representation needs its own tag.
+	 */
+	private void tagCoding(ContentEncoder.Coding coding) {
+		String etag = headers.get("ETag");
+		if (etag != null && etag.endsWith("\""))
+			headers.set("ETag", etag.substring(0, etag.length() - 1) + "-" + coding.NAME + "\"");
+	}
 
-			res.append("Content-Type: " + contentType);
-			if (MimeType.typeIsText(contentType))
-				res.append("; charset=" + HTTPServer.DEFAULT_CHARSET.name());
-			res.append(LINE_BREAK);
+	/**
+	 * Test whether this response can carry validators and be answered with
+	 * <code>304 Not Modified</code>.
+	 */
+	private boolean isValidatable() {
+		return statusCode == null || statusCode == HttpStatusCode.OK;
+	}
+
+	/**
+	 * Derive validators for a file body from its size and modification time, so
+	 * the file does not need to be read.
+	 */
+	private void setFileValidators(BasicFileAttributes attributes) {
+		Instant modified = attributes.lastModifiedTime().toInstant();
+		headers.putIfAbsent("ETag", fileETag(attributes.size(), modified));
+		if (lastModified == null)
+			setLastModified(modified);
+	}
+
+	static String fileETag(long size, Instant modified) {
+		return "\"" + Long.toHexString(size) + "-" + Long.toHexString(modified.toEpochMilli()) + "\"";
+	}
+
+	/**
+	 * Compute a strong entity tag from a hash of an in-memory body.
+	 */
+	private String hashETag() {
+		return hashETag((body != null) ? ByteBuffer.wrap(body) : bodyBuffer.duplicate());
+	}
+
+	static String hashETag(ByteBuffer data) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
 		}
 
-		for (Entry<String, String> header : headers.entrySet()) {
-			res.append(header.getKey() + ": " + header.getValue());
-			res.append(LINE_BREAK);
+		digest.update(data);
+		byte[] hash = digest.digest();
+		return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(hash).substring(0, 22) + "\"";
+	}
+
+	/**
+	 * Write a <code>304 Not Modified</code> response in place of this one. The
+	 * body is neither read nor sent.
+	 */
+	private void writeNotModified(ConnectionOutput out, long contentLength) throws IOException {
+		if (isEncodable(contentLength)) {
+			addVary("Accept-Encoding");
+			ContentEncoder.Coding coding = encoder.negotiate(request);
+			if (coding != null)
+				tagCoding(coding);
 		}
+		if (lastModified != null)
+			headers.putIfAbsent("Last-Modified", HTTPServer.DATE_FORMATTER.format(lastModified));
 
-		res.append(LINE_BREAK);
+		statusCode = HttpStatusCode.NOT_MODIFIED;
+		writeHead(out, -1, false);
+	}
 
-		out.write(res.toString().getBytes(HTTPServer.DEFAULT_CHARSET));
+	/**
+	 * Write a <code>206 Partial Content</code> response with the requested ranges
+	 * of the uncompressed body. A single range is sent as the body itself, with a
+	 * <code>Content-Range</code> header; several ranges are sent as a
+	 * <code>multipart/byteranges</code> body. Each range is read from its own
+	 * offset, so only the requested bytes are sent.
+	 * 
+	 * @param ranges The first and last offset of each range, in pairs.
+	 */
+	private void writeRanges(ConnectionOutput out, long[] ranges, long contentLength) throws IOException {
+		if (isEncodable(contentLength))
+			addVary("Accept-Encoding");
+		headers.set("Accept-Ranges", "bytes");
+		statusCode = HttpStatusCode.PARTIAL_CONTENT;
+
+		if (ranges.length == 2) {
+			long first = ranges[0], last = ranges[1];
+			headers.set("Content-Range", "bytes " + first + "-" + last + "/" + contentLength);
+			writeHead(out, last - first + 1, false);
+			writeBodyRange(out, first, last - first + 1);
+			return;
+		}
 
+		String partType = "Content-Type: " + contentType;
+		if (MimeType.typeIsText(contentType))
+			partType += "; charset=" + HTTPServer.DEFAULT_CHARSET.name();
+		String boundary = String.format("%016x", ThreadLocalRandom.current().nextLong());
+
+		byte[][] partHeads = new byte[ranges.length / 2][];
+		long length = 0;
+		for (int i = 0; i < partHeads.length; i++) {
+			long first = ranges[i * 2], last = ranges[i * 2 + 1];
+			String partHead = LINE_BREAK + "--" + boundary + LINE_BREAK + partType + LINE_BREAK + "Content-Range: bytes "
+					+ first + "-" + last + "/" + contentLength + LINE_BREAK + LINE_BREAK;
+			partHeads[i] = partHead.getBytes(HTTPServer.DEFAULT_CHARSET);
+			length += partHeads[i].length + last - first + 1;
+		}
+		byte[] end = (LINE_BREAK + "--" + boundary + "--" + LINE_BREAK).getBytes(HTTPServer.DEFAULT_CHARSET);
+		length += end.length;
+
+		// The content type and validators move from the preset headers into the parts
+		presetHeaders = null;
+		if (lastModified != null)
+			headers.putIfAbsent("Last-Modified", HTTPServer.DATE_FORMATTER.format(lastModified));
+		contentType = "multipart/byteranges; boundary=" + boundary;
+
+		writeHead(out, length, false);
+		for (int i = 0; i < partHeads.length; i++) {
+			out.write(partHeads[i]);
+			writeBodyRange(out, ranges[i * 2], ranges[i * 2 + 1] - ranges[i * 2] + 1);
+		}
+		out.write(end);
+	}
+
+	/**
+	 * Write part of the uncompressed body, starting at the given offset.
+	 */
+	private void writeBodyRange(ConnectionOutput out, long offset, long length) throws IOException {
 		if (body != null) {
-			out.write(body);
+			out.write(body, (int) offset, (int) length);
 		} else if (bodyPath != null) {
-			// Stream file bytes
-			try (InputStream in = Files.newInputStream(bodyPath)) {
-				int read;
-				byte[] buffer = new byte[8 * 1024];
-				while ((read = in.read(buffer)) > 0) {
-					out.write(buffer, 0, read);
-				}
+			out.writeFile(bodyPath, offset, length);
+		} else {
+			out.write(bodyBuffer.slice(bodyBuffer.position() + (int) offset, (int) length));
+		}
+	}
+
+	/**
+	 * Write a <code>416 Range Not Satisfiable</code> response, telling the client
+	 * the length of the body none of its ranges overlapped.
+	 */
+	private void writeRangeNotSatisfiable(ConnectionOutput out, long contentLength) throws IOException {
+		setErrorStatus(HttpStatusCode.RANGE_NOT_SATISFIABLE, null);
+		headers.remove("ETag");
+		headers.remove("Last-Modified");
+		headers.set("Content-Range", "bytes */" + contentLength);
+		writeHead(out, body.length, false);
+		out.write(body);
+	}
+
+	private void resolveContentType() {
+		if (contentType == null) {
+			if (bodyPath != null)
+				contentType = MimeType.getMimeFromFilename(bodyPath);
+			else
+				contentType = MimeType.APPLICATION_OCTET_STREAM.MIME;
+		}
+	}
+
+	/**
+	 * Write the status line and headers.
+	 * 
+	 * @param contentLength The length of the body, or <code>-1</code> if it is
+	 *                      streamed.
+	 * @param chunked       <code>True</code> if a streamed body is sent with
+	 *                      chunked transfer coding.
+	 */
+	private void writeHead(ConnectionOutput out, long contentLength, boolean chunked) throws IOException {
+		if (statusCode == null)
+			statusCode = HttpStatusCode.OK;
+
+		if (contentLength == 0)
+			statusCode = HttpStatusCode.NO_CONTENT;
+		boolean hasBody = statusCode != HttpStatusCode.NOT_MODIFIED;
+
+		HeaderWriter head = out.beginHead().status(statusCode);
+
+		// A 304 response only repeats the validators, which are among the headers
+		if (hasBody) {
+			if (contentLength >= 0)
+				head.header(HeaderWriter.CONTENT_LENGTH, contentLength);
+			else if (chunked)
+				head.header(HeaderWriter.TRANSFER_ENCODING, HeaderWriter.CHUNKED);
+
+			if (presetHeaders != null) {
+				head.raw(presetHeaders);
+			} else if (body != null || bodyPath != null || bodyBuffer != null || contentLength < 0) {
+				resolveContentType();
+				head.contentType(contentType);
 			}
 		}
+
+		for (int i = 0; i < headers.size(); i++)
+			head.header(headers.name(i), headers.value(i));
+
+		head.writeTo(out);
 	}
 
 }
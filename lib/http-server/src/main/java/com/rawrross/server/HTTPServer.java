@@ -1,23 +1,38 @@
 package com.rawrross.server;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.rawrross.server.ConnectionInput.StreamSource;
+import com.rawrross.server.ConnectionOutput.StreamOutput;
+import com.rawrross.server.HTTPRequest.HTTPMethod;
 import com.rawrross.server.HTTPResponse.HttpStatusCode;
 import com.rawrross.server.exception.BadRequestException;
+import com.rawrross.server.exception.NotImplementedException;
+import com.rawrross.server.exception.PayloadTooLargeException;
 
 /**
  * A simple HTTP 1.1 server which supports accepting requests and returning a
@@ -30,10 +45,42 @@ public class HTTPServer {
 
 	private static final Logger logger = LogManager.getLogger("Server");
 
+	/**
+	 * How the server accepts connections and reads requests.
+	 */
+	public enum Transport {
+		/**
+		 * Each connection is handled by a pool thread using blocking socket I/O,
+		 * and holds that thread for as long as the connection is kept alive.
+		 */
+		BLOCKING,
+		/**
+		 * Connections are multiplexed over selector threads using non-blocking I/O.
+		 * Pool threads are only used while a complete request is being handled.
+		 */
+		NIO
+	}
+
 	public static final Charset DEFAULT_CHARSET = StandardCharsets.UTF_8;
 
 	public static int DEFAULT_KEEP_ALIVE_TIMEOUT = 7000;
+	public static long DEFAULT_MAX_BODY_SIZE = 10 * 1024 * 1024;
+	public static int DEFAULT_COMPRESSION_MIN_SIZE = 1024;
 	public static double CORE_THREAD_RATIO = 2;
+	public static int DEFAULT_MAX_QUEUED_TASKS = 1024;
+	public static int DEFAULT_RETRY_AFTER = 1;
+	public static int DEFAULT_MAX_CONNECTIONS = 10000;
+	public static int DEFAULT_MAX_REQUESTS_PER_CONNECTION = 1000;
+	public static int DEFAULT_BACKLOG = 1024;
+	public static int DEFAULT_ASYNC_TIMEOUT = 30000;
+	/** The shortest a keep-alive timeout is shrunk to under pressure, in milliseconds. */
+	public static int MIN_KEEP_ALIVE_TIMEOUT = 1000;
+	/** The connection or worker thread utilisation past which keep-alive timeouts shrink. */
+	public static double KEEP_ALIVE_PRESSURE = 0.75;
+	/** The highest an adaptive concurrency limit may grow. */
+	public static int MAX_CONCURRENCY_LIMIT = 1000;
+	/** How long a connection turned away when overloaded may take to send its request, in milliseconds. */
+	public static int REJECT_TIMEOUT = 1000;
 
 	public static final String DATE_TIME_FORMAT = "EEE, dd LLL yyyy HH:mm:ss zzz";
 	public static final String TIME_ZONE = "GMT";
@@ -47,15 +94,15 @@ public class HTTPServer {
 	 * @return The current date as a String.
 	 */
 	public static String getDate() {
-		return DATE_FORMATTER.format(Instant.now());
+		return HeaderWriter.currentDate();
 	}
 
-	private static String ERROR_PAGE;
+	private static ErrorPage ERROR_PAGE;
 
 	static {
 		try {
-			ERROR_PAGE = new String(ClassLoader.getSystemResourceAsStream("error.html").readAllBytes(),
-					DEFAULT_CHARSET);
+			ERROR_PAGE = ErrorPage.compile(new String(
+					ClassLoader.getSystemResourceAsStream("error.html").readAllBytes(), DEFAULT_CHARSET));
 		} catch (Exception e) {
 			logger.fatal("Unable to read error.html", e);
 			System.exit(1);
@@ -67,23 +114,40 @@ public class HTTPServer {
 	 * 
 	 * @param title    Used as the webpage's title and displayed in large text on
 	 *                 the webpage.
-	 * @param subtitle Displayed in smaller text on the webpage. Pass
-	 *                 <code>null</code> to omit the subtitle.
+	 * @param subtitle Displayed in smaller text on the webpage, with HTML
+	 *                 special characters escaped. Pass <code>null</code> to omit
+	 *                 the subtitle.
 	 * @return An HTML document as a String.
 	 */
 	public static String errDoc(String title, String subtitle) {
-		String page = new String(ERROR_PAGE);
-		page = page.replaceAll("%TITLE%", title);
-		page = page.replaceAll("%SUBTITLE%", (subtitle != null) ? subtitle : "");
-		page = page.replaceAll("%DATE%", HTTPServer.getDate());
-		return page;
+		return new String(ERROR_PAGE.render(title, subtitle), DEFAULT_CHARSET);
+	}
+
+	/**
+	 * Get the encoded error page for the given status. Pages without a subtitle
+	 * are shared between responses, and must not be modified.
+	 */
+	static byte[] errorPage(HttpStatusCode status, String subtitle) {
+		return ERROR_PAGE.render(status, subtitle);
 	}
 
 	private ExecutorService threadPool;
-	private ServerSocket server;
+	private ServerSocketChannel[] listeners;
+	private SelectorEngine selectorEngine;
 	private boolean running;
 	private RequestHandler requestHandler;
+	/** Used in place of the request handler, if set. */
+	private AsyncRequestHandler asyncHandler;
+	private int asyncTimeout;
 	private int keepAliveTimeout;
+	private long maxBodySize;
+	private ContentEncoder encoder;
+	private boolean hashETags;
+	private BufferPool bufferPool;
+	private ServerMetrics metrics;
+	private AdmissionController admission;
+	private ConnectionManager connections;
+	private String retryAfterHeader;
 
 	/**
 	 * Start an HTTP server on a new thread, listening on the given port number.
@@ -93,25 +157,67 @@ public class HTTPServer {
 	 * @throws IOException If there is an issue starting the server socket.
 	 */
 	public HTTPServer(int port) throws IOException {
-		if (CORE_THREAD_RATIO <= 0) {
-			threadPool = Executors.newCachedThreadPool();
-		} else {
-			int numThreads = (int) Math.ceil(Runtime.getRuntime().availableProcessors() * CORE_THREAD_RATIO);
-			threadPool = Executors.newFixedThreadPool(numThreads);
-		}
-		// threadPool = Executors.newVirtualThreadPerTaskExecutor();
+		this(port, new ServerConfig());
+	}
 
-		server = new ServerSocket(port);
+	/**
+	 * Start an HTTP server listening on the given port number, using the given
+	 * configuration.
+	 * 
+	 * @param port   The desired port number, or <code>0</code> to use an
+	 *               automatically allocated port.
+	 * @param config The server configuration.
+	 * @throws IOException If there is an issue starting the server socket.
+	 */
+	public HTTPServer(int port, ServerConfig config) throws IOException {
+		threadPool = config.getExecutorStrategy().create(config.getWorkerThreads());
 		requestHandler = this::defaultRequestHandler;
-		keepAliveTimeout = HTTPServer.DEFAULT_KEEP_ALIVE_TIMEOUT;
+		keepAliveTimeout = config.getKeepAliveTimeout();
+		asyncTimeout = config.getAsyncTimeout();
+		maxBodySize = config.getMaxBodySize();
+		if (config.isCompressionEnabled())
+			encoder = new ContentEncoder(config.getCompressionMinSize());
+		hashETags = config.isHashETags();
+		bufferPool = new BufferPool(config.isDirectBuffers());
+		admission = new AdmissionController(config.getMaxQueuedTasks(), config.getTargetLatency(),
+				config.getWorkerThreads(), MAX_CONCURRENCY_LIMIT);
+		retryAfterHeader = Integer.toString(config.getRetryAfter());
+		connections = new ConnectionManager(config);
+		metrics = new ServerMetrics(threadPool, bufferPool, admission, connections);
+		connections.start();
+
+		if (config.getTransport() == Transport.NIO) {
+			selectorEngine = new SelectorEngine(this, port, config);
+			running = true;
+
+			logger.info("Listening on port {} (NIO, {} event loops, {} acceptors)", getPort(), config.getEventLoops(),
+					config.getAcceptors());
+
+			selectorEngine.start();
+		} else {
+			// Sockets accepted through a channel can use zero-copy file transfers
+			listeners = Listeners.open(port, config.getAcceptors(), config.getBacklog());
+			running = true;
 
-		logger.info("Listening on port {}", getPort());
+			logger.info("Listening on port {} ({} acceptors)", getPort(), config.getAcceptors());
 
-		startServerThread(port);
+			startAcceptors(config.getAcceptors());
+		}
 	}
 
 	public void setRequestHandler(RequestHandler handler) {
 		requestHandler = handler;
+		asyncHandler = null;
+	}
+
+	/**
+	 * Handle requests with an asynchronous handler, in place of the
+	 * {@link RequestHandler}.
+	 * 
+	 * @param handler The handler, whose responses may complete after it returns.
+	 */
+	public void setAsyncRequestHandler(AsyncRequestHandler handler) {
+		asyncHandler = handler;
 	}
 
 	/**
@@ -120,42 +226,81 @@ public class HTTPServer {
 	 * @return The port number of this server.
 	 */
 	public int getPort() {
-		return server.getLocalPort();
+		if (selectorEngine != null)
+			return selectorEngine.getPort();
+		return listeners[0].socket().getLocalPort();
 	}
 
 	/**
-	 * Closes this server to new connections.
-	 * <p>
-	 * Due to blocking socket reads, each thread may not terminate until its
-	 * keep-alive timeout is reached.
+	 * The pool this server's connections lease their I/O buffers from, whose
+	 * counters show how often buffers are reused.
+	 * 
+	 * @return The buffer pool.
+	 */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * The counters describing this server's connections, requests and latencies.
+	 * Serve them with a {@link MetricsHandler} to have them scraped.
+	 * 
+	 * @return The server's metrics.
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Closes this server to new connections. Idle keep-alive connections are
+	 * closed, and the rest are closed once their current request is served.
 	 */
 	public void stop() {
 		running = false;
+		connections.stop();
 
-		try {
-			server.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+		if (selectorEngine != null) {
+			selectorEngine.stop();
+		} else {
+			Listeners.close(listeners);
 		}
 
 		threadPool.shutdownNow();
 	}
 
-	private void startServerThread(int port) {
-		new Thread(() -> {
-			running = true;
+	/**
+	 * Start the threads accepting connections for the blocking transport. Each
+	 * takes a listening socket in turn, so with as many sockets as acceptors,
+	 * each acceptor has its own. The acceptors share one worker pool, since the
+	 * kernel may spread connections unevenly between the sockets, and a
+	 * connection holds its worker thread while idle.
+	 */
+	private void startAcceptors(int count) {
+		for (int i = 0; i < count; i++) {
+			ServerSocket server = listeners[i % listeners.length].socket();
+			new Thread(() -> acceptConnections(server), "http-acceptor-" + i).start();
+		}
+	}
 
-			while (running) {
-				try {
-					Socket socket = server.accept();
-					threadPool.execute(() -> gotConnection(socket));
-				} catch (SocketException e) {
-					// Server is closing, ignore SocketException
-				} catch (IOException e) {
-					e.printStackTrace();
+	private void acceptConnections(ServerSocket server) {
+		while (running) {
+			try {
+				Socket socket = server.accept();
+				ConnectionManager.Handle connection = connections.open(reaped -> shutdownInput(socket));
+				if (connection == null) {
+					rejectConnection(socket);
+				} else if (!submit(() -> gotConnection(socket, connection))) {
+					connection.close();
+					rejectConnection(socket);
 				}
+			} catch (SocketException e) {
+				// Server is closing, ignore SocketException
+			} catch (IOException e) {
+				// Accepts interrupted by the server closing are expected
+				if (running)
+					e.printStackTrace();
 			}
-		}).start();
+		}
 	}
 
 	/**
@@ -163,45 +308,584 @@ public class HTTPServer {
 	 * until the connection is terminated, and the given socket will be closed after
 	 * this method returns.
 	 * 
-	 * @param socket This socket is closed after this method returns.
+	 * @param socket     This socket is closed after this method returns.
+	 * @param connection The connection's registration with the connection
+	 *                   manager, which times it out by shutting down the socket's
+	 *                   input.
 	 */
-	private void gotConnection(Socket socket) {
+	private void gotConnection(Socket socket, ConnectionManager.Handle connection) {
 		HTTPRequest request = null;
-		HTTPResponse response;
+		boolean keepAlive;
+		ConnectionInput in = null;
+		ConnectionOutput out = null;
+		metrics.connectionOpened();
 
 		try (socket) {
 			socket.setSoTimeout(keepAliveTimeout);
+			in = new ConnectionInput(new StreamSource(socket.getInputStream(), socket.getOutputStream()), this);
+			out = new StreamOutput(socket.getOutputStream(), socket.getChannel(), this);
 
 			do {
 				request = null;
+				connection.idle(System.currentTimeMillis());
 
 				try {
-					request = new HTTPRequest(socket.getInputStream());
-					request.checkParseException();
-
-					response = new HTTPResponse();
-					response.addHeader("Connection", "keep-alive");
-					response.addHeader("Keep-Alive", "timeout=" + (keepAliveTimeout / 1000));
-					requestHandler.handleRequest(request, response);
-				} catch (SocketTimeoutException e) {
-					// Keep alive timeout reached, so close the idle connection
+					request = in.readRequest();
+				} catch (SocketTimeoutException | EOFException e) {
+					// Keep-alive timeout reached, or the client closed the connection
+					// mid-request; a client that stalled is told why
+					if (in.hasBufferedData() && (e instanceof SocketTimeoutException || connection.isExpired())) {
+						writeError(out, HttpStatusCode.REQUEST_TIMEOUT, null);
+						out.flush();
+					}
 					return;
 				} catch (BadRequestException e) {
-					response = new HTTPResponse();
-					response.setErrorStatus(HttpStatusCode.BAD_REQUEST, e.getMessage());
-				} catch (Exception e) {
-					printException(e, request);
-					response = new HTTPResponse();
-					response.setErrorStatus(HttpStatusCode.INTERNAL_SERVER_ERROR, null);
+					writeError(out, HttpStatusCode.BAD_REQUEST, e.getMessage());
+					out.flush();
+					return;
 				}
 
-				response.write(socket.getOutputStream());
-			} while (running && request != null && request.isConnectionKeepAlive());
+				if (request == null)
+					return;
+				connection.busy();
+
+				keepAlive = serve(request, connection, in, out);
+
+				// Nothing more is buffered, so send the responses before blocking
+				out.flush();
+			} while (keepAlive);
 		} catch (SocketException e) {
 			// Ignore socket exceptions (connection reset, connection aborted, etc.)
 		} catch (IOException e) {
 			printException(e, request);
+		} finally {
+			if (in != null)
+				in.release();
+			if (out != null)
+				out.release();
+			connection.close();
+			metrics.connectionClosed();
+		}
+	}
+
+	/**
+	 * Shut down the input of a blocking connection's socket, so that a thread
+	 * waiting for its next request sees the end of the stream.
+	 */
+	private static void shutdownInput(Socket socket) {
+		try {
+			socket.shutdownInput();
+		} catch (IOException e) {
+			// Already closed
+		}
+	}
+
+	/**
+	 * Lets a transport free its worker thread while an
+	 * {@link AsyncRequestHandler} completes a request.
+	 */
+	interface Continuation {
+
+		/**
+		 * Called on the worker thread once a request's handler has returned without
+		 * completing it, before it can resume.
+		 */
+		void suspended(HTTPRequest request);
+
+		/**
+		 * Continue serving the connection by running the given task on a worker
+		 * thread. May be called from any thread.
+		 */
+		void resume(Runnable task);
+
+	}
+
+	/**
+	 * Respond to the given request, then to any further pipelined requests whose
+	 * heads are already buffered, without reading from the socket. Responses are
+	 * written in request order, and are not flushed, so that the output can send
+	 * them together.
+	 * <p>
+	 * A request over the concurrency limit is answered with
+	 * <code>503 Service Unavailable</code> instead of being handled, and the
+	 * connection is closed. So is the connection after its last permitted
+	 * request, or after a request that was cancelled.
+	 * <p>
+	 * When an {@link AsyncRequestHandler} returns before completing a request,
+	 * the rest is left to the given continuation, and this method returns
+	 * without waiting. Without a continuation, the calling thread waits.
+	 * 
+	 * @param request      The first request to respond to.
+	 * @param admitted     <code>True</code> if the first request has already been
+	 *                     admitted by the concurrency limit.
+	 * @param connection   The connection's registration with the connection
+	 *                     manager, which counts its requests.
+	 * @param in           The connection's input.
+	 * @param out          The connection's output.
+	 * @param continuation Resumes serving the connection after a request
+	 *                     completes asynchronously, or <code>null</code>.
+	 * @return Completed with <code>true</code> if the connection should be kept
+	 *         alive, or exceptionally if there is an issue writing a response.
+	 */
+	CompletableFuture<Boolean> serve(HTTPRequest request, boolean admitted, ConnectionManager.Handle connection,
+			ConnectionInput in, ConnectionOutput out, Continuation continuation) {
+		CompletableFuture<Boolean> served = new CompletableFuture<>();
+		serve(request, admitted, connection, in, out, continuation, served);
+		return served;
+	}
+
+	/**
+	 * Serve requests on a blocking connection's thread.
+	 * 
+	 * @return <code>True</code> if the connection should be kept alive.
+	 */
+	private boolean serve(HTTPRequest request, ConnectionManager.Handle connection, ConnectionInput in,
+			ConnectionOutput out) throws IOException {
+		try {
+			return serve(request, false, connection, in, out, null).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof IOException cause)
+				throw cause;
+			throw e;
+		}
+	}
+
+	private void serve(HTTPRequest request, boolean admitted, ConnectionManager.Handle connection,
+			ConnectionInput in, ConnectionOutput out, Continuation continuation, CompletableFuture<Boolean> served) {
+		try {
+			while (request != null) {
+				boolean reusable = connection.countRequest();
+				if (!admitted && !admission.tryAcquire()) {
+					request = respond(request, overloadedResponse(), false, in, out, served);
+					continue;
+				}
+				admitted = false;
+
+				if (asyncHandler == null) {
+					request = finished(request, handle(request, out, reusable), reusable, in, out, served);
+					continue;
+				}
+
+				PendingResponse pending = handleAsync(request, out, reusable);
+				if (!pending.isDone() && continuation != null) {
+					continuation.suspended(request);
+					pending.whenDone(() -> continuation.resume(() -> {
+						try {
+							HTTPRequest next = finished(pending.request, pending.finish(), reusable, in, out, served);
+							serve(next, false, connection, in, out, continuation, served);
+						} catch (IOException | RuntimeException e) {
+							served.completeExceptionally(e);
+						}
+					}));
+					return;
+				}
+				request = finished(request, pending.finish(), reusable, in, out, served);
+			}
+		} catch (IOException | RuntimeException e) {
+			served.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * End an admitted request, and send its response.
+	 * 
+	 * @param response The response, or <code>null</code> if the client is gone.
+	 * @return The next request to serve, or <code>null</code> once
+	 *         <code>served</code> has been completed.
+	 */
+	private HTTPRequest finished(HTTPRequest request, HTTPResponse response, boolean reusable, ConnectionInput in,
+			ConnectionOutput out, CompletableFuture<Boolean> served) throws IOException {
+		admission.release(System.nanoTime() - request.getReceivedAt());
+		if (response == null) {
+			served.complete(false);
+			return null;
+		}
+		// A cancelled request's handler may still be reading the body
+		boolean keepAlive = reusable && running && request.isConnectionKeepAlive() && !request.isCancelled()
+				&& request.finishBody();
+		return respond(request, response, keepAlive, in, out, served);
+	}
+
+	/**
+	 * Write a response, then read the next pipelined request if the connection is
+	 * kept alive.
+	 * 
+	 * @return The next request to serve, or <code>null</code> once
+	 *         <code>served</code> has been completed.
+	 */
+	private HTTPRequest respond(HTTPRequest request, HTTPResponse response, boolean keepAlive, ConnectionInput in,
+			ConnectionOutput out, CompletableFuture<Boolean> served) throws IOException {
+		if (response.isCommitted()) {
+			// The body was streamed while the handler ran
+			keepAlive = keepAlive && response.isReusable();
+		} else {
+			setConnectionHeaders(response, keepAlive);
+			response.setHeadOnly(request.getMethod() == HTTPMethod.HEAD);
+			response.write(out);
+		}
+		metrics.responded(request.getRoute(), response.getStatusCode(), System.nanoTime() - request.getReceivedAt());
+
+		if (!keepAlive) {
+			served.complete(false);
+			return null;
+		}
+
+		HTTPRequest next;
+		try {
+			next = in.nextRequest();
+		} catch (BadRequestException e) {
+			writeError(out, HttpStatusCode.BAD_REQUEST, e.getMessage());
+			served.complete(false);
+			return null;
+		}
+
+		if (next == null)
+			served.complete(true);
+		return next;
+	}
+
+	int getKeepAliveTimeout() {
+		return keepAliveTimeout;
+	}
+
+	ConnectionManager getConnections() {
+		return connections;
+	}
+
+	long getMaxBodySize() {
+		return maxBodySize;
+	}
+
+	ContentEncoder getEncoder() {
+		return encoder;
+	}
+
+	boolean isHashETags() {
+		return hashETags;
+	}
+
+	/**
+	 * Hand a complete request, read by the NIO transport, to the thread pool for
+	 * handling. The response is queued back on the connection once the request
+	 * handler returns. If the server is overloaded, the request is answered with
+	 * <code>503 Service Unavailable</code> on the event loop instead, and the
+	 * connection is closed.
+	 * 
+	 * @param connection The connection the request was read from.
+	 * @param request    The parsed request.
+	 */
+	void dispatch(NioConnection connection, HTTPRequest request) {
+		if (!admission.tryAcquire()) {
+			connection.reject(HttpStatusCode.SERVICE_UNAVAILABLE, null);
+			return;
+		}
+		if (!submit(() -> connection.serve(request))) {
+			admission.cancel();
+			connection.reject(HttpStatusCode.SERVICE_UNAVAILABLE, null);
+		}
+	}
+
+	/**
+	 * Run a task for a request already admitted on the worker pool, bypassing the
+	 * queue bound. While the server stops, the task gets a virtual thread, so the
+	 * request is still finished.
+	 */
+	void execute(Runnable task) {
+		try {
+			threadPool.execute(task);
+		} catch (RejectedExecutionException e) {
+			Thread.ofVirtual().start(task);
+		}
+	}
+
+	/**
+	 * Hand a task to the thread pool, unless too many tasks are already waiting
+	 * for a worker thread.
+	 * 
+	 * @return <code>False</code> if the queue is full, or the server is stopping.
+	 */
+	private boolean submit(Runnable task) {
+		if (!admission.tryEnqueue())
+			return false;
+
+		try {
+			threadPool.execute(() -> {
+				admission.dequeued();
+				task.run();
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			admission.dequeued();
+			return false;
+		}
+	}
+
+	/**
+	 * Turn away a connection accepted while the queue is full. The client's
+	 * request is read and discarded after the response is sent, since closing a
+	 * socket with unread data resets the connection, losing the response. This
+	 * takes a virtual thread rather than the accepting thread, which must not
+	 * wait on clients.
+	 */
+	private void rejectConnection(Socket socket) {
+		Thread.ofVirtual().start(() -> {
+			metrics.connectionOpened();
+			ConnectionOutput out = null;
+			try (socket) {
+				socket.setSoTimeout(REJECT_TIMEOUT);
+				out = new StreamOutput(socket.getOutputStream(), null, this);
+				writeError(out, HttpStatusCode.SERVICE_UNAVAILABLE, null);
+				out.flush();
+				socket.shutdownOutput();
+
+				InputStream in = socket.getInputStream();
+				byte[] discard = new byte[4096];
+				long remaining = RequestParser.MAX_HEAD_SIZE;
+				int read;
+				while (remaining > 0 && (read = in.read(discard)) >= 0)
+					remaining -= read;
+			} catch (IOException e) {
+				// The client is gone or too slow; either way it is done with
+			} finally {
+				if (out != null)
+					out.release();
+				metrics.connectionClosed();
+			}
+		});
+	}
+
+	private HTTPResponse overloadedResponse() {
+		metrics.rejected(HttpStatusCode.SERVICE_UNAVAILABLE);
+		return new HTTPResponse().setErrorStatus(HttpStatusCode.SERVICE_UNAVAILABLE, null)
+				.setHeader("Retry-After", retryAfterHeader);
+	}
+
+	/**
+	 * Write an error response that closes the connection.
+	 */
+	void writeError(ConnectionOutput out, HttpStatusCode status, String message) throws IOException {
+		metrics.rejected(status);
+		HTTPResponse response = new HTTPResponse().setErrorStatus(status, message);
+		if (status == HttpStatusCode.SERVICE_UNAVAILABLE)
+			response.setHeader("Retry-After", retryAfterHeader);
+		setConnectionHeaders(response, false);
+		response.write(out);
+	}
+
+	private void setConnectionHeaders(HTTPResponse response, boolean keepAlive) {
+		if (keepAlive) {
+			response.setHeader("Connection", "keep-alive");
+			response.setHeader("Keep-Alive", connections.getKeepAliveHeader());
+		} else {
+			response.setHeader("Connection", "close");
+			response.removeHeader("Keep-Alive");
+		}
+	}
+
+	/**
+	 * Run the request handler for the given request, mapping any exception to an
+	 * error response. If the handler streamed its response body, the response has
+	 * already been sent when this method returns.
+	 * 
+	 * @param request  The parsed request.
+	 * @param out      The connection output, for streamed response bodies.
+	 * @param reusable <code>False</code> if the connection must close after this
+	 *                 request.
+	 * @return The response to send.
+	 */
+	private HTTPResponse handle(HTTPRequest request, ConnectionOutput out, boolean reusable) {
+		HTTPResponse response = null;
+		metrics.handlerStarted();
+
+		try {
+			request.checkParseException();
+
+			response = new HTTPResponse();
+			// Sent if the handler commits a streamed body before it returns
+			setConnectionHeaders(response, reusable && running && request.isConnectionKeepAlive());
+			response.attach(out, request, this);
+			requestHandler.handleRequest(request, response);
+			response.finishStream();
+		} catch (Exception e) {
+			response = failed(e, request, response);
+		} finally {
+			metrics.handlerFinished();
+		}
+
+		return response;
+	}
+
+	/**
+	 * Run the asynchronous request handler for the given request, and set the
+	 * request's deadline if the handler returns before completing it.
+	 * 
+	 * @param request  The parsed request.
+	 * @param out      The connection output, for streamed response bodies.
+	 * @param reusable <code>False</code> if the connection must close after this
+	 *                 request.
+	 * @return The response, once the handler completes it.
+	 */
+	private PendingResponse handleAsync(HTTPRequest request, ConnectionOutput out, boolean reusable) {
+		HTTPResponse response = null;
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		metrics.handlerStarted();
+
+		try {
+			request.checkParseException();
+
+			response = new HTTPResponse();
+			// Sent if the handler commits a streamed body
+			setConnectionHeaders(response, reusable && running && request.isConnectionKeepAlive());
+			response.attach(out, request, this);
+			CompletionStage<Void> stage = asyncHandler.handleRequest(request, response);
+			if (stage == null) {
+				done.complete(null);
+			} else {
+				stage.whenComplete((result, e) -> {
+					if (e == null)
+						done.complete(null);
+					else
+						done.completeExceptionally(e);
+				});
+				request.onCancel(() -> {
+					done.cancel(false);
+					if (stage instanceof Future<?> future)
+						future.cancel(true);
+				});
+			}
+		} catch (Exception e) {
+			done.completeExceptionally(e);
+		}
+
+		if (!done.isDone()) {
+			long timeout = request.getTimeout() >= 0 ? request.getTimeout() : asyncTimeout;
+			if (timeout > 0) {
+				long elapsed = (System.nanoTime() - request.getReceivedAt()) / 1_000_000;
+				done.orTimeout(Math.max(0, timeout - elapsed), TimeUnit.MILLISECONDS);
+			}
+		}
+		return new PendingResponse(request, response, done);
+	}
+
+	/**
+	 * The response from an {@link AsyncRequestHandler}, which may complete after
+	 * the handler returns.
+	 */
+	private final class PendingResponse {
+
+		private final HTTPRequest request;
+		/** The handler's response, or <code>null</code> if it never ran. */
+		private final HTTPResponse response;
+		/** Completed by the handler, or exceptionally by the deadline or a cancel. */
+		private final CompletableFuture<Void> done;
+
+		PendingResponse(HTTPRequest request, HTTPResponse response, CompletableFuture<Void> done) {
+			this.request = request;
+			this.response = response;
+			this.done = done;
+		}
+
+		boolean isDone() {
+			return done.isDone();
+		}
+
+		/**
+		 * Run an action on whichever thread completes the response.
+		 */
+		void whenDone(Runnable action) {
+			done.whenComplete((result, e) -> action.run());
+		}
+
+		/**
+		 * Wait for the response to complete, mapping a failure to an error response
+		 * as {@link HTTPServer#handle} does.
+		 * 
+		 * @return The response to send, or <code>null</code> if the request was
+		 *         cancelled by the client leaving.
+		 */
+		HTTPResponse finish() {
+			try {
+				done.get();
+				response.finishStream();
+				return response;
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof CompletionException && cause.getCause() != null)
+					cause = cause.getCause();
+				if (cause instanceof TimeoutException timeout)
+					return timedOut(timeout);
+				return failed(cause instanceof Exception ex ? ex : e, request, response);
+			} catch (CancellationException e) {
+				if (request.isCancelled())
+					return null;
+				return failed(e, request, response);
+			} catch (InterruptedException e) {
+				// The server is stopping
+				Thread.currentThread().interrupt();
+				request.cancel();
+				return null;
+			} catch (IOException e) {
+				return failed(e, request, response);
+			} finally {
+				metrics.handlerFinished();
+			}
+		}
+
+		/**
+		 * Answer a request that missed its deadline. The handler may still be
+		 * running, so its response is only used if it has already been committed.
+		 */
+		private HTTPResponse timedOut(TimeoutException e) {
+			request.cancel();
+			if (response.isCommitted()) {
+				response.abort();
+				return response;
+			}
+			return errorResponse(e, request);
+		}
+
+	}
+
+	/**
+	 * Map an exception thrown while handling a request to the response to send.
+	 * 
+	 * @param response The handler's response, or <code>null</code> if the handler
+	 *                 never ran.
+	 */
+	private HTTPResponse failed(Exception e, HTTPRequest request, HTTPResponse response) {
+		if (response != null)
+			response.abandonStream();
+		if (response != null && response.isCommitted()) {
+			// Too late for an error response; the unterminated body tells the client
+			if (!(e instanceof SocketException))
+				printException(e, request);
+			response.abort();
+			return response;
+		}
+		return errorResponse(e, request);
+	}
+
+	private HTTPResponse errorResponse(Exception e, HTTPRequest request) {
+		HTTPResponse response = new HTTPResponse();
+
+		if (e instanceof BadRequestException) {
+			response.setErrorStatus(HttpStatusCode.BAD_REQUEST, e.getMessage());
+		} else if (e instanceof PayloadTooLargeException) {
+			response.setErrorStatus(HttpStatusCode.PAYLOAD_TOO_LARGE, e.getMessage());
+		} else if (e instanceof NotImplementedException) {
+			response.setErrorStatus(HttpStatusCode.NOT_IMPLEMENTED, e.getMessage());
+		} else if (e instanceof SocketTimeoutException) {
+			// The client stopped sending the request body
+			response.setErrorStatus(HttpStatusCode.REQUEST_TIMEOUT, null);
+		} else if (e instanceof TimeoutException) {
+			// An asynchronous handler missed the request's deadline
+			response.setErrorStatus(HttpStatusCode.SERVICE_UNAVAILABLE, null);
+		} else {
+			printException(e, request);
+			response.setErrorStatus(HttpStatusCode.INTERNAL_SERVER_ERROR, null);
 		}
+
+		return response;
 	}
 
 	private void printException(Exception e, HTTPRequest request) {
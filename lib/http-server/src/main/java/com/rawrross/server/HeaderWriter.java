@@ -0,0 +1,243 @@
+package com.rawrross.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.HashMap;
+
+import com.rawrross.server.HTTPResponse.HttpStatusCode;
+
+/**
+ * Serializes response heads as ASCII bytes into a buffer reused across the
+ * responses on a connection. Status lines and common header names are encoded
+ * once, numbers are formatted as digits in place, and the <code>Date</code>
+ * header comes from a cache refreshed once per second, so writing a head
+ * allocates nothing in the common case.
+ * <p>
+ * A head is written between {@link ConnectionOutput#beginHead()} and
+ * {@link #writeTo(ConnectionOutput)}.
+ *
+ * @author Randy Ross
+ */
+final class HeaderWriter {
+
+	private static final int INITIAL_SIZE = 1024;
+
+	static final byte[] CONTENT_LENGTH = name("Content-Length");
+	static final byte[] CONTENT_TYPE = name("Content-Type");
+	static final byte[] TRANSFER_ENCODING = name("Transfer-Encoding");
+	static final byte[] CHUNKED = ascii("chunked");
+	static final byte[] CHARSET = ascii("; charset=" + HTTPServer.DEFAULT_CHARSET.name());
+
+	private static final byte[] DATE = name("Date");
+	private static final byte[] CRLF = ascii(HTTPResponse.LINE_BREAK);
+	private static final byte[] COLON = ascii(": ");
+
+	/** Pre-encoded names of the headers {@link Headers} interns. */
+	private static final HashMap<String, byte[]> KNOWN_NAMES = new HashMap<>();
+
+	static {
+		for (String name : Headers.WELL_KNOWN)
+			KNOWN_NAMES.put(name, name(name));
+	}
+
+	/** The status line of each status code, by ordinal. */
+	private static final byte[][] STATUS_LINES;
+
+	static {
+		HttpStatusCode[] codes = HttpStatusCode.values();
+		STATUS_LINES = new byte[codes.length][];
+		for (HttpStatusCode code : codes)
+			STATUS_LINES[code.ordinal()] = ascii("HTTP/1.1 " + code + HTTPResponse.LINE_BREAK);
+	}
+
+	/**
+	 * The formatted date for one second.
+	 */
+	private record CachedDate(long second, String text, byte[] bytes) {
+	}
+
+	private static volatile CachedDate date = formatDate(System.currentTimeMillis() / 1000);
+
+	private byte[] buf;
+	/** The start of the head being written; earlier bytes may still be queued. */
+	private int start;
+	private int count;
+
+	HeaderWriter() {
+		this.buf = new byte[INITIAL_SIZE];
+	}
+
+	/**
+	 * Get the current date in standard HTTP date-time format, formatted at most
+	 * once per second.
+	 */
+	static String currentDate() {
+		return cachedDate().text();
+	}
+
+	private static CachedDate cachedDate() {
+		long second = System.currentTimeMillis() / 1000;
+		CachedDate cached = date;
+		if (cached.second() != second) {
+			cached = formatDate(second);
+			date = cached;
+		}
+		return cached;
+	}
+
+	private static CachedDate formatDate(long second) {
+		String text = HTTPServer.DATE_FORMATTER.format(Instant.ofEpochSecond(second));
+		return new CachedDate(second, text, ascii(text));
+	}
+
+	/**
+	 * Start a new head after any heads still queued from this buffer.
+	 */
+	HeaderWriter begin() {
+		start = count;
+		return this;
+	}
+
+	/**
+	 * Start a new head at the beginning of the buffer. Only safe once every head
+	 * written earlier has been copied or sent.
+	 */
+	HeaderWriter reset() {
+		start = count = 0;
+		return this;
+	}
+
+	/**
+	 * Write the status line, followed by the <code>Date</code> header.
+	 */
+	HeaderWriter status(HttpStatusCode status) {
+		append(STATUS_LINES[status.ordinal()]);
+		return header(DATE, cachedDate().bytes());
+	}
+
+	HeaderWriter header(byte[] name, byte[] value) {
+		append(name);
+		append(value);
+		append(CRLF);
+		return this;
+	}
+
+	HeaderWriter header(byte[] name, String value) {
+		append(name);
+		append(value);
+		append(CRLF);
+		return this;
+	}
+
+	HeaderWriter header(byte[] name, long value) {
+		append(name);
+		append(value);
+		append(CRLF);
+		return this;
+	}
+
+	HeaderWriter header(String name, String value) {
+		byte[] known = KNOWN_NAMES.get(name);
+		if (known != null) {
+			append(known);
+		} else {
+			append(name);
+			append(COLON);
+		}
+		append(value);
+		append(CRLF);
+		return this;
+	}
+
+	/**
+	 * Append the <code>Content-Type</code> header, with the charset parameter for
+	 * text types.
+	 */
+	HeaderWriter contentType(String contentType) {
+		append(CONTENT_TYPE);
+		append(contentType);
+		if (MimeType.typeIsText(contentType))
+			append(CHARSET);
+		append(CRLF);
+		return this;
+	}
+
+	/**
+	 * Append pre-encoded header lines.
+	 */
+	HeaderWriter raw(byte[] lines) {
+		append(lines);
+		return this;
+	}
+
+	/**
+	 * End the head with an empty line and write it to the output.
+	 */
+	void writeTo(ConnectionOutput out) throws IOException {
+		append(CRLF);
+		out.write(buf, start, count - start);
+	}
+
+	private void append(byte[] bytes) {
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buf, count, bytes.length);
+		count += bytes.length;
+	}
+
+	private void append(String s) {
+		int length = s.length();
+		ensureCapacity(length);
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x80) {
+				// Rare non-ASCII values are encoded in the default charset
+				count -= i;
+				append(s.getBytes(HTTPServer.DEFAULT_CHARSET));
+				return;
+			}
+			buf[count++] = (byte) c;
+		}
+	}
+
+	private void append(long value) {
+		if (value < 0) {
+			append("" + value);
+			return;
+		}
+		int digits = 1;
+		for (long v = value / 10; v > 0; v /= 10)
+			digits++;
+		ensureCapacity(digits);
+		for (int i = count + digits - 1; i >= count; i--) {
+			buf[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		count += digits;
+	}
+
+	/**
+	 * Make room for more bytes. Heads before the current one may still be
+	 * referenced by queued writes, so a full buffer is replaced rather than
+	 * compacted.
+	 */
+	private void ensureCapacity(int length) {
+		if (count + length <= buf.length)
+			return;
+		int used = count - start;
+		byte[] grown = new byte[Math.max(buf.length, (used + length) * 2)];
+		System.arraycopy(buf, start, grown, 0, used);
+		buf = grown;
+		start = 0;
+		count = used;
+	}
+
+	private static byte[] name(String name) {
+		return ascii(name + ": ");
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+}
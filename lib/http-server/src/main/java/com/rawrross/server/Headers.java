@@ -0,0 +1,226 @@
+package com.rawrross.server;
+
+import java.util.Arrays;
+
+/**
+ * Header fields in the order they were added, kept in flat parallel arrays of
+ * names and values. A name may have several values, each sent as its own field
+ * line, as <code>Set-Cookie</code> requires.
+ * <p>
+ * Names are compared ignoring ASCII case, without allocating. Well-known names
+ * are interned as the constants of this class when added, so lookups with a
+ * constant match by reference, and the {@link HeaderWriter} finds their
+ * pre-encoded bytes whatever case the caller used. String literals are
+ * interned too, so a literal such as <code>"Connection"</code> is the same
+ * reference as {@link #CONNECTION}.
+ *
+ * @author Randy Ross
+ */
+final class Headers {
+
+	static final String HOST = "Host";
+	static final String CONNECTION = "Connection";
+	static final String KEEP_ALIVE = "Keep-Alive";
+	static final String ACCEPT_ENCODING = "Accept-Encoding";
+	static final String COOKIE = "Cookie";
+	static final String SET_COOKIE = "Set-Cookie";
+	static final String CONTENT_ENCODING = "Content-Encoding";
+	static final String ETAG = "ETag";
+	static final String LAST_MODIFIED = "Last-Modified";
+	static final String VARY = "Vary";
+	static final String ACCEPT_RANGES = "Accept-Ranges";
+	static final String CONTENT_RANGE = "Content-Range";
+	static final String CACHE_CONTROL = "Cache-Control";
+	static final String LOCATION = "Location";
+	static final String TRAILER = "Trailer";
+	static final String RETRY_AFTER = "Retry-After";
+	static final String CONTENT_TYPE = "Content-Type";
+	static final String CONTENT_LENGTH = "Content-Length";
+	static final String TRANSFER_ENCODING = "Transfer-Encoding";
+	static final String DATE = "Date";
+	static final String SERVER = "Server";
+
+	/** The names interned when added. */
+	static final String[] WELL_KNOWN = { HOST, CONNECTION, KEEP_ALIVE, ACCEPT_ENCODING, COOKIE, SET_COOKIE,
+			CONTENT_ENCODING, ETAG, LAST_MODIFIED, VARY, ACCEPT_RANGES, CONTENT_RANGE, CACHE_CONTROL, LOCATION,
+			TRAILER, RETRY_AFTER, CONTENT_TYPE, CONTENT_LENGTH, TRANSFER_ENCODING, DATE, SERVER };
+
+	private static final int INITIAL_SIZE = 8;
+
+	private String[] names;
+	private String[] values;
+	private int size;
+
+	Headers() {
+		names = new String[INITIAL_SIZE];
+		values = new String[INITIAL_SIZE];
+	}
+
+	/**
+	 * Copy the given fields.
+	 */
+	Headers(Headers other) {
+		names = Arrays.copyOf(other.names, Math.max(other.size, INITIAL_SIZE));
+		values = Arrays.copyOf(other.values, names.length);
+		size = other.size;
+	}
+
+	int size() {
+		return size;
+	}
+
+	String name(int index) {
+		return names[index];
+	}
+
+	String value(int index) {
+		return values[index];
+	}
+
+	boolean contains(String name) {
+		return indexOf(name, 0) >= 0;
+	}
+
+	/**
+	 * Get the value of the given field. If the field appears more than once, the
+	 * last value is returned, as {@link HTTPRequest#getHeader(String)} does.
+	 *
+	 * @return The value, or <code>null</code> if the field is not present.
+	 */
+	String get(String name) {
+		int index = lastIndexOf(name);
+		return (index < 0) ? null : values[index];
+	}
+
+	/**
+	 * Add a field, after any with the same name.
+	 */
+	void add(String name, String value) {
+		if (size == names.length) {
+			names = Arrays.copyOf(names, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+		}
+		names[size] = intern(name);
+		values[size] = value;
+		size++;
+	}
+
+	/**
+	 * Set a field to a single value. The first field with the name keeps its
+	 * place, and any others are removed.
+	 */
+	void set(String name, String value) {
+		int index = indexOf(name, 0);
+		if (index < 0) {
+			add(name, value);
+			return;
+		}
+		values[index] = value;
+		removeFrom(name, index + 1);
+	}
+
+	/**
+	 * Add a field unless one with the name is already present.
+	 */
+	void putIfAbsent(String name, String value) {
+		if (indexOf(name, 0) < 0)
+			add(name, value);
+	}
+
+	/**
+	 * Remove every field with the given name.
+	 *
+	 * @return The last value removed, or <code>null</code> if the field was not
+	 *         present.
+	 */
+	String remove(String name) {
+		int index = lastIndexOf(name);
+		if (index < 0)
+			return null;
+		String value = values[index];
+		removeFrom(name, 0);
+		return value;
+	}
+
+	/**
+	 * Replace the fields named in the given headers with their values there.
+	 */
+	void setAll(Headers other) {
+		for (int i = 0; i < other.size; i++)
+			removeFrom(other.names[i], 0);
+		for (int i = 0; i < other.size; i++)
+			add(other.names[i], other.values[i]);
+	}
+
+	private int indexOf(String name, int from) {
+		for (int i = from; i < size; i++) {
+			if (equalsIgnoreCase(names[i], name))
+				return i;
+		}
+		return -1;
+	}
+
+	private int lastIndexOf(String name) {
+		for (int i = size - 1; i >= 0; i--) {
+			if (equalsIgnoreCase(names[i], name))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Remove the fields with the given name at or after an index, keeping the
+	 * order of the rest.
+	 */
+	private void removeFrom(String name, int from) {
+		int kept = from;
+		for (int i = from; i < size; i++) {
+			if (equalsIgnoreCase(names[i], name))
+				continue;
+			names[kept] = names[i];
+			values[kept] = values[i];
+			kept++;
+		}
+		Arrays.fill(names, kept, size, null);
+		Arrays.fill(values, kept, size, null);
+		size = kept;
+	}
+
+	/**
+	 * Get the constant for a well-known name, in any case, or the name itself.
+	 */
+	static String intern(String name) {
+		for (String known : WELL_KNOWN) {
+			if (known == name)
+				return known;
+		}
+		for (String known : WELL_KNOWN) {
+			if (equalsIgnoreCase(known, name))
+				return known;
+		}
+		return name;
+	}
+
+	/**
+	 * Compare two names ignoring ASCII case, without creating Strings.
+	 */
+	static boolean equalsIgnoreCase(String a, String b) {
+		if (a == b)
+			return true;
+		int length = a.length();
+		if (b.length() != length)
+			return false;
+		for (int i = 0; i < length; i++) {
+			int x = a.charAt(i);
+			int y = b.charAt(i);
+			if (x != y && toLowerCase(x) != toLowerCase(y))
+				return false;
+		}
+		return true;
+	}
+
+	private static int toLowerCase(int c) {
+		return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+	}
+
+}
@@ -0,0 +1,92 @@
+package com.rawrross.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Opens the listening sockets a server accepts connections on.
+ * <p>
+ * Where the platform supports <code>SO_REUSEPORT</code>, as Linux does, each
+ * acceptor gets its own socket bound to the same port, and the kernel spreads
+ * incoming connections across them, so acceptors neither contend for one
+ * accept queue nor all wake for the same connection. Elsewhere, the acceptors
+ * share a single socket.
+ * <p>
+ * <code>SO_REUSEPORT</code> also lets any other process of the same user bind
+ * the port while the server is running, and take a share of its connections.
+ *
+ * @author Randy Ross
+ */
+final class Listeners {
+
+	private static final Logger logger = LogManager.getLogger("Server");
+
+	private Listeners() {
+	}
+
+	/**
+	 * Open and bind listening sockets in blocking mode.
+	 *
+	 * @param port    The port to listen on, or <code>0</code> to use an
+	 *                automatically allocated port.
+	 * @param count   The number of sockets wanted, one per acceptor.
+	 * @param backlog The length of each socket's queue of connections not yet
+	 *                accepted, or <code>0</code> for the system default.
+	 * @return <code>count</code> sockets if <code>SO_REUSEPORT</code> is
+	 *         supported, and otherwise a single socket.
+	 * @throws IOException If a socket could not be opened or bound.
+	 */
+	static ServerSocketChannel[] open(int port, int count, int backlog) throws IOException {
+		ServerSocketChannel first = ServerSocketChannel.open();
+		boolean reusePort = count > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		if (count > 1 && !reusePort)
+			logger.info("SO_REUSEPORT is not supported; {} acceptors will share one socket", count);
+
+		ServerSocketChannel[] channels = new ServerSocketChannel[reusePort ? count : 1];
+		try {
+			channels[0] = bind(first, port, backlog, reusePort);
+			// With port 0, the rest must join the port the first was given
+			port = first.socket().getLocalPort();
+			for (int i = 1; i < channels.length; i++)
+				channels[i] = bind(ServerSocketChannel.open(), port, backlog, true);
+		} catch (IOException e) {
+			first.close();
+			close(channels);
+			throw e;
+		}
+		return channels;
+	}
+
+	private static ServerSocketChannel bind(ServerSocketChannel channel, int port, int backlog, boolean reusePort)
+			throws IOException {
+		try {
+			if (reusePort)
+				channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			return channel.bind(new InetSocketAddress(port), backlog);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Close every socket opened, ignoring failures.
+	 */
+	static void close(ServerSocketChannel[] channels) {
+		for (ServerSocketChannel channel : channels) {
+			if (channel == null)
+				continue;
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+
+}
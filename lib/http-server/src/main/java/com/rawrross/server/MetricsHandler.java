@@ -0,0 +1,35 @@
+package com.rawrross.server;
+
+import java.io.IOException;
+
+/**
+ * Serves a server's {@link ServerMetrics} in the Prometheus text exposition
+ * format, for scraping. Add it to a {@link Router}, usually as
+ * <code>/metrics</code>, to expose the metrics.
+ *
+ * @author Randy Ross
+ */
+public class MetricsHandler implements RequestHandler {
+
+	/** The content type of the text exposition format. */
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final ServerMetrics metrics;
+
+	/**
+	 * @param metrics The metrics to serve, from {@link HTTPServer#getMetrics()}.
+	 */
+	public MetricsHandler(ServerMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void handleRequest(HTTPRequest request, HTTPResponse response) throws IOException {
+		StringBuilder body = new StringBuilder(4096);
+		metrics.writePrometheus(body);
+		response.setContentType(CONTENT_TYPE)
+				.setHeader("Cache-Control", "no-store")
+				.setBody(body.toString());
+	}
+
+}
@@ -29,14 +29,20 @@ public enum MimeType {
 	APPLICATION_OCTET_STREAM("application/octet-stream", "bin");
 
 	public static boolean typeIsText(String mime) {
-		return switch (MIME_TO_ENUM.get(mime)) {
+		MimeType type = MIME_TO_ENUM.get(mime);
+		if (type == null)
+			return false;
+		return switch (type) {
 			case TEXT_PLAIN, TEXT_HTML, TEXT_CSS, TEXT_JAVASCRIPT, APPLICATION_JSON -> true;
 			default -> false;
 		};
 	}
 
 	public static boolean typeIsImage(String mime) {
-		return switch (MIME_TO_ENUM.get(mime)) {
+		MimeType type = MIME_TO_ENUM.get(mime);
+		if (type == null)
+			return false;
+		return switch (type) {
 			case IMAGE_JPEG, IMAGE_PNG, IMAGE_GIF, IMAGE_WEBP -> true;
 			default -> false;
 		};
@@ -0,0 +1,695 @@
+package com.rawrross.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.rawrross.server.HTTPResponse.HttpStatusCode;
+import com.rawrross.server.exception.BadRequestException;
+
+/**
+ * A single non-blocking client connection owned by an {@link EventLoop}.
+ * <p>
+ * Request heads are accumulated in a per-connection buffer and parsed
+ * incrementally as bytes arrive, and only complete requests are handed to the
+ * server's worker pool. While a request is in flight the connection stops
+ * reading, so responses are always sent in request order. The worker also
+ * serves any pipelined requests already buffered behind the first, and the
+ * queued responses are written by the event loop with gathering writes as the
+ * socket becomes writable.
+ * <p>
+ * When a handler reads the request body, the worker reads from the channel
+ * directly; if no bytes are available, it waits for the event loop to report
+ * the channel readable. When a handler streams its response body, each flush
+ * hands the data written so far to the event loop and waits until it has been
+ * written.
+ * <p>
+ * Idle timeouts are kept by the server's {@link ConnectionManager}, which hands
+ * an expired connection back to its event loop to be closed.
+ * <p>
+ * While an {@link AsyncRequestHandler} completes a request, no worker thread
+ * is held. If the request body has been read, the event loop reads ahead
+ * meanwhile, leaving any pipelined requests buffered, so that the request is
+ * cancelled if the client closes the connection.
+ * <p>
+ * Unless stated otherwise, methods must only be called from the owning event
+ * loop thread.
+ *
+ * @author Randy Ross
+ */
+class NioConnection implements HTTPServer.Continuation {
+
+	private static final Logger logger = LogManager.getLogger("Server");
+
+	/** Most buffers passed to a single gathering write. */
+	private static final int MAX_GATHER = 64;
+
+	private final HTTPServer server;
+	private final EventLoop loop;
+	private final SocketChannel channel;
+	private SelectionKey key;
+	/** The registration with the connection manager, or <code>null</code> if the connection cap was reached. */
+	private final ConnectionManager.Handle handle;
+
+	private final ConnectionInput in;
+	/** Response heads for this connection, reused once the previous responses are sent. */
+	private final HeaderWriter heads;
+	/** A worker waiting for the channel to become ready, if any. */
+	private CompletableFuture<Void> waiter;
+	/** A worker waiting for its flushed response data to be written, if any. */
+	private CompletableFuture<Void> drainWaiter;
+
+	/** Queued response data, either ByteBuffers or FileRegions. */
+	private final ArrayDeque<Object> pending;
+	/** Pooled buffers among the pending data, returned once it is written. */
+	private final ArrayDeque<ByteBuffer> leased;
+	private final ByteBuffer[] gather;
+	private boolean inFlight;
+	/** Set once the worker has queued the end of its responses. */
+	private boolean responseQueued;
+	private boolean closeAfterWrite;
+	private boolean closed;
+	private long lastActive;
+	/** A request being completed asynchronously, cancelled if the client leaves. */
+	private HTTPRequest watched;
+
+	NioConnection(HTTPServer server, EventLoop loop, SocketChannel channel) {
+		this.server = server;
+		this.loop = loop;
+		this.channel = channel;
+		this.in = new ConnectionInput(new NioSource(), server);
+		this.heads = new HeaderWriter();
+		this.pending = new ArrayDeque<>();
+		this.leased = new ArrayDeque<>();
+		this.gather = new ByteBuffer[MAX_GATHER];
+		this.lastActive = System.currentTimeMillis();
+		this.handle = server.getConnections().open(this::expire);
+		server.getMetrics().connectionOpened();
+	}
+
+	/**
+	 * Register this connection with its event loop's selector. A connection over
+	 * the connection cap is answered with <code>503 Service Unavailable</code>
+	 * and closed.
+	 */
+	void register(Selector selector) throws IOException {
+		channel.configureBlocking(false);
+		key = channel.register(selector, SelectionKey.OP_READ, this);
+
+		if (handle == null)
+			reject(HttpStatusCode.SERVICE_UNAVAILABLE, null);
+		else
+			handle.idle(lastActive);
+	}
+
+	/**
+	 * Called by the connection manager when this connection's idle deadline
+	 * passes, or to close it early. Reads since the connection went idle push the
+	 * deadline back, unless it is being closed early. May be called from any
+	 * thread.
+	 */
+	private void expire(boolean reaped) {
+		loop.execute(() -> {
+			if (closed || inFlight)
+				return;
+			if (!reaped && lastActive + server.getConnections().getKeepAliveTimeout() > System.currentTimeMillis()) {
+				handle.idle(lastActive);
+				return;
+			}
+			timeOut();
+		});
+	}
+
+	/**
+	 * Close this connection once it has been idle too long. A client that stalled
+	 * partway through a request is sent <code>408 Request Timeout</code> first.
+	 */
+	private void timeOut() {
+		if (in.hasBufferedData())
+			reject(HttpStatusCode.REQUEST_TIMEOUT, null);
+		else
+			close();
+	}
+
+	void onReadable() throws IOException {
+		if (wakeWaiter())
+			return;
+		if (watched != null) {
+			watchRead();
+			return;
+		}
+
+		int read = in.receive(channel);
+		if (read < 0) {
+			close();
+			return;
+		}
+
+		lastActive = System.currentTimeMillis();
+		parseBuffered();
+	}
+
+	void onWritable() throws IOException {
+		if (wakeWaiter())
+			return;
+
+		flushPending();
+	}
+
+	private boolean wakeWaiter() {
+		if (waiter == null)
+			return false;
+
+		key.interestOps(0);
+		CompletableFuture<Void> ready = waiter;
+		waiter = null;
+		ready.complete(null);
+		return true;
+	}
+
+	/**
+	 * Read while a request is completed asynchronously, to notice the client
+	 * closing the connection.
+	 */
+	private void watchRead() throws IOException {
+		int read = in.receiveInPlace(channel);
+		if (read > 0) {
+			lastActive = System.currentTimeMillis();
+			return;
+		}
+
+		// Either the client left, or the buffer is full and reading must wait
+		HTTPRequest request = watched;
+		watched = null;
+		key.interestOps(0);
+		if (read < 0) {
+			request.cancel();
+			close();
+		}
+	}
+
+	/**
+	 * Dispatch the next request if a complete head has been buffered.
+	 */
+	private void parseBuffered() {
+		HTTPRequest request;
+		try {
+			request = in.nextRequest();
+		} catch (BadRequestException e) {
+			reject(HttpStatusCode.BAD_REQUEST, e.getMessage());
+			return;
+		}
+
+		if (request == null)
+			return;
+
+		inFlight = true;
+		key.interestOps(0);
+		handle.busy();
+		server.dispatch(this, request);
+	}
+
+	/**
+	 * Respond to a dispatched request, and to any pipelined requests buffered
+	 * behind it, on the calling worker thread. The responses are then queued for
+	 * the event loop to write.
+	 */
+	void serve(HTTPRequest request) {
+		NioOutput out = new NioOutput(heads.reset());
+		server.serve(request, true, handle, in, out, this).whenComplete((keepAlive, e) -> {
+			if (e == null) {
+				send(out, keepAlive);
+				return;
+			}
+			logger.error("Exception writing response", e);
+			out.release();
+			loop.execute(() -> {
+				inFlight = false;
+				close();
+				in.release();
+			});
+		});
+	}
+
+	/**
+	 * Watch for the client leaving while the request is completed, unless the
+	 * handler may still read the request body. Called on the worker thread.
+	 */
+	@Override
+	public void suspended(HTTPRequest request) {
+		if (!request.isBodyFinished())
+			return;
+		loop.execute(() -> {
+			if (closed) {
+				request.cancel();
+				return;
+			}
+			watched = request;
+			key.interestOps(SelectionKey.OP_READ);
+		});
+	}
+
+	/**
+	 * Stop watching the connection, and continue serving it on a worker thread.
+	 * May be called from any thread.
+	 */
+	@Override
+	public void resume(Runnable task) {
+		loop.execute(() -> {
+			if (watched != null) {
+				watched = null;
+				if (!closed)
+					key.interestOps(0);
+			}
+			server.execute(task);
+		});
+	}
+
+	/**
+	 * Queue serialized responses on this connection. May be called from any
+	 * thread.
+	 */
+	private void send(NioOutput out, boolean keepAlive) {
+		loop.execute(() -> {
+			if (closed) {
+				out.release();
+				// Nothing else uses the connection's buffers now
+				inFlight = false;
+				in.release();
+				return;
+			}
+			pending.addAll(out.items);
+			leased.addAll(out.leased);
+			responseQueued = true;
+			closeAfterWrite = !keepAlive;
+			try {
+				flushPending();
+			} catch (IOException e) {
+				close();
+			}
+		});
+	}
+
+	/**
+	 * Send an error response generated on the event loop and close the connection.
+	 */
+	void reject(HttpStatusCode status, String message) {
+		inFlight = true;
+		key.interestOps(0);
+		if (handle != null)
+			handle.busy();
+
+		NioOutput out = new NioOutput(heads.reset());
+		try {
+			server.writeError(out, status, message);
+		} catch (IOException e) {
+			close();
+			return;
+		}
+		send(out, false);
+	}
+
+	private void flushPending() throws IOException {
+		while (!pending.isEmpty()) {
+			Object next = pending.peek();
+
+			if (next instanceof ByteBuffer) {
+				if (!writeBuffers()) {
+					key.interestOps(SelectionKey.OP_WRITE);
+					return;
+				}
+				continue;
+			} else if (next instanceof FileRegion region) {
+				if (!region.write(channel, server.getMetrics())) {
+					key.interestOps(SelectionKey.OP_WRITE);
+					return;
+				}
+				region.close();
+			}
+
+			pending.poll();
+		}
+
+		while (!leased.isEmpty())
+			server.getBufferPool().release(leased.poll());
+
+		if (drainWaiter != null) {
+			drainWaiter.complete(null);
+			drainWaiter = null;
+		}
+
+		// The worker is still producing a streamed response
+		if (!responseQueued) {
+			key.interestOps(watched != null ? SelectionKey.OP_READ : 0);
+			return;
+		}
+
+		// Response fully sent
+		responseQueued = false;
+		inFlight = false;
+		lastActive = System.currentTimeMillis();
+
+		if (closeAfterWrite) {
+			close();
+			return;
+		}
+
+		key.interestOps(SelectionKey.OP_READ);
+		handle.idle(lastActive);
+		parseBuffered();
+	}
+
+	/**
+	 * Write the consecutive buffers at the head of the pending queue with a single
+	 * gathering write, removing those that were fully written.
+	 *
+	 * @return <code>False</code> if the socket did not accept all of them.
+	 */
+	private boolean writeBuffers() throws IOException {
+		int count = 0;
+		for (Object item : pending) {
+			if (!(item instanceof ByteBuffer buf) || count == gather.length)
+				break;
+			gather[count++] = buf;
+		}
+
+		server.getMetrics().sent(channel.write(gather, 0, count));
+
+		boolean complete = !gather[count - 1].hasRemaining();
+		for (int i = 0; i < count; i++) {
+			if (gather[i].hasRemaining())
+				break;
+			pending.poll();
+		}
+		Arrays.fill(gather, 0, count, null);
+		return complete;
+	}
+
+	void close() {
+		if (closed)
+			return;
+		closed = true;
+		if (handle != null)
+			handle.close();
+		server.getMetrics().connectionClosed();
+
+		if (key != null)
+			key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+
+		release(pending);
+		pending.clear();
+		// The socket is closed, so nothing still references the pending buffers
+		while (!leased.isEmpty())
+			server.getBufferPool().release(leased.poll());
+		// A worker handling a request still reads the input buffer, and releases it when done
+		if (!inFlight)
+			in.release();
+
+		if (waiter != null) {
+			waiter.completeExceptionally(new ClosedChannelException());
+			waiter = null;
+		}
+		if (drainWaiter != null) {
+			drainWaiter.completeExceptionally(new ClosedChannelException());
+			drainWaiter = null;
+		}
+		if (watched != null) {
+			watched.cancel();
+			watched = null;
+		}
+	}
+
+	private static void release(Iterable<Object> items) {
+		for (Object item : items) {
+			if (item instanceof FileRegion region)
+				region.close();
+		}
+	}
+
+	/**
+	 * Wait on a worker thread until the event loop reports the channel ready for
+	 * the given operation.
+	 *
+	 * @throws SocketTimeoutException If the channel is not ready within the
+	 *                                keep-alive timeout. A stalled write closes
+	 *                                the connection, while a stalled read leaves
+	 *                                it open for a <code>408</code> response.
+	 */
+	private void awaitReady(int ops) throws IOException {
+		CompletableFuture<Void> ready = new CompletableFuture<>();
+		loop.execute(() -> {
+			if (closed) {
+				ready.completeExceptionally(new ClosedChannelException());
+			} else {
+				waiter = ready;
+				key.interestOps(ops);
+			}
+		});
+
+		try {
+			await(ready);
+		} catch (SocketTimeoutException e) {
+			if (ops == SelectionKey.OP_WRITE) {
+				loop.execute(this::close);
+			} else {
+				loop.execute(() -> {
+					if (waiter == ready) {
+						waiter = null;
+						if (!closed)
+							key.interestOps(0);
+					}
+				});
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Wait on a worker thread for the event loop to complete the given future.
+	 *
+	 * @throws SocketTimeoutException If it is not completed within the
+	 *                                keep-alive timeout.
+	 */
+	private void await(CompletableFuture<Void> future) throws IOException {
+		try {
+			future.get(server.getKeepAliveTimeout(), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			throw new SocketTimeoutException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException cause)
+				throw cause;
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * Reads request bodies on a worker thread, waiting for readiness through the
+	 * event loop.
+	 */
+	private class NioSource implements ConnectionInput.Source {
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			while (true) {
+				int read = channel.read(dst);
+				if (read != 0)
+					return read;
+				awaitReady(SelectionKey.OP_READ);
+			}
+		}
+
+		@Override
+		public void writeInterim(byte[] data) throws IOException {
+			ByteBuffer buf = ByteBuffer.wrap(data);
+			while (true) {
+				channel.write(buf);
+				if (!buf.hasRemaining())
+					return;
+				awaitReady(SelectionKey.OP_WRITE);
+			}
+		}
+
+	}
+
+	/**
+	 * Collects the serialized response on a worker thread.
+	 */
+	private class NioOutput extends ConnectionOutput {
+
+		private final ArrayDeque<Object> items = new ArrayDeque<>();
+		private final ArrayDeque<ByteBuffer> leased = new ArrayDeque<>();
+
+		/**
+		 * @param heads The connection's head writer, with nothing from it still
+		 *              queued.
+		 */
+		NioOutput(HeaderWriter heads) {
+			super(heads, server);
+		}
+
+		/**
+		 * Queued writes reference the buffer until the event loop writes them, so
+		 * each head is written after the previous ones.
+		 */
+		@Override
+		HeaderWriter beginHead() {
+			return heads.begin();
+		}
+
+		@Override
+		void write(byte[] data, int offset, int length) throws IOException {
+			items.add(ByteBuffer.wrap(data, offset, length));
+		}
+
+		@Override
+		void write(ByteBuffer data) throws IOException {
+			items.add(data);
+		}
+
+		/**
+		 * Hand everything written so far to the event loop, and wait until it has
+		 * been written to the socket.
+		 */
+		@Override
+		void flush() throws IOException {
+			if (items.isEmpty())
+				return;
+
+			ArrayDeque<Object> batch = new ArrayDeque<>(items);
+			ArrayDeque<ByteBuffer> batchLeased = new ArrayDeque<>(leased);
+			items.clear();
+			leased.clear();
+
+			CompletableFuture<Void> drained = new CompletableFuture<>();
+			loop.execute(() -> {
+				if (closed) {
+					NioConnection.release(batch);
+					for (ByteBuffer buffer : batchLeased)
+						pool.release(buffer);
+					drained.completeExceptionally(new ClosedChannelException());
+					return;
+				}
+				pending.addAll(batch);
+				NioConnection.this.leased.addAll(batchLeased);
+				drainWaiter = drained;
+				try {
+					flushPending();
+				} catch (IOException e) {
+					close();
+				}
+			});
+
+			try {
+				await(drained);
+			} catch (SocketTimeoutException e) {
+				// The client stopped reading
+				loop.execute(NioConnection.this::close);
+				throw e;
+			} catch (ClosedChannelException e) {
+				throw socketError(e);
+			}
+		}
+
+		@Override
+		void writeFile(Path path, long position, long count) throws IOException {
+			FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+			if (count > COPY_THRESHOLD) {
+				items.add(new FileRegion(file, position, count));
+				return;
+			}
+
+			// Small files are read now, into a pooled buffer, so they join the gathering write
+			ByteBuffer data = pool.lease((int) count).limit((int) count);
+			leased.add(data);
+			try (file) {
+				while (data.hasRemaining()) {
+					if (file.read(data, position + data.position()) < 0)
+						throw new EOFException("File truncated while sending");
+				}
+				items.add(data.flip());
+			}
+		}
+
+		@Override
+		void release() {
+			NioConnection.release(items);
+			for (ByteBuffer buffer : leased)
+				pool.release(buffer);
+			leased.clear();
+		}
+
+	}
+
+	/**
+	 * A section of a file transferred to the socket by the operating system,
+	 * without copying it through the heap.
+	 */
+	private static class FileRegion {
+
+		private final FileChannel file;
+		private long position;
+		private long remaining;
+
+		FileRegion(FileChannel file, long position, long count) {
+			this.file = file;
+			this.position = position;
+			this.remaining = count;
+		}
+
+		/**
+		 * Write as much of the region as the socket accepts.
+		 *
+		 * @return <code>True</code> once the whole region has been written.
+		 */
+		boolean write(SocketChannel channel, ServerMetrics metrics) throws IOException {
+			while (remaining > 0) {
+				long written = file.transferTo(position, remaining, channel);
+				if (written == 0) {
+					if (position >= file.size())
+						throw new EOFException("File truncated while sending");
+					return false;
+				}
+				metrics.sent(written);
+				position += written;
+				remaining -= written;
+			}
+			return true;
+		}
+
+		void close() {
+			try {
+				file.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+
+	}
+
+}
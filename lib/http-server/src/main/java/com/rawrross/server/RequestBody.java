@@ -0,0 +1,347 @@
+package com.rawrross.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import com.rawrross.server.exception.BadRequestException;
+import com.rawrross.server.exception.NotImplementedException;
+import com.rawrross.server.exception.PayloadTooLargeException;
+
+/**
+ * The body of an HTTP request, read lazily from the connection. The body is
+ * bounded by the request's <code>Content-Length</code>, or decoded from
+ * <code>Transfer-Encoding: chunked</code>, so reading past its end never
+ * consumes the connection's next request.
+ * <p>
+ * Framing is strict, since a body framed differently by the server and a proxy
+ * in front of it lets a client smuggle a request: conflicting
+ * <code>Content-Length</code> values, or one that is not only digits, are
+ * rejected with <code>400 Bad Request</code>, and any transfer coding other
+ * than a single <code>chunked</code> with <code>501 Not Implemented</code>.
+ *
+ * @author Randy Ross
+ */
+class RequestBody extends InputStream {
+
+	private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Unread bodies up to this size are drained so the connection can be reused;
+	 * larger ones cause the connection to be closed instead.
+	 */
+	private static final long MAX_DRAIN = 256 * 1024;
+	/** Longest chunk-size line or trailer line accepted. */
+	private static final int MAX_LINE_LENGTH = 4 * 1024;
+
+	private static final int CHUNK_SIZE = 0, CHUNK_DATA = 1, CHUNK_END = 2, DONE = 3;
+
+	private final ConnectionInput input;
+	private final long maxSize;
+	private final boolean chunked;
+	private final long contentLength;
+	/** Unread bytes of the body, or of the current chunk. */
+	private long remaining;
+	private int state;
+	private long total;
+
+	private boolean expectContinue;
+	private boolean started;
+	/** Set when framing is invalid or reading failed, so the connection must close. */
+	private boolean broken;
+	private IOException error;
+
+	RequestBody(HTTPRequest request, ConnectionInput input, long maxSize) {
+		this.input = input;
+		this.maxSize = maxSize;
+
+		List<String> transferEncodings = request.getHeaders("Transfer-Encoding");
+		List<String> contentLengths = request.getHeaders("Content-Length");
+		long length = 0;
+		boolean isChunked = false;
+
+		try {
+			request.checkParseException();
+
+			if (!transferEncodings.isEmpty()) {
+				if (!contentLengths.isEmpty())
+					throw new BadRequestException("Both Transfer-Encoding and Content-Length are present");
+				if (transferEncodings.size() > 1 || !transferEncodings.get(0).trim().equalsIgnoreCase("chunked"))
+					throw new NotImplementedException(
+							"Unsupported Transfer-Encoding '" + String.join(", ", transferEncodings) + "'");
+				isChunked = true;
+			} else if (!contentLengths.isEmpty()) {
+				length = parseContentLength(contentLengths.get(0));
+				for (int i = 1; i < contentLengths.size(); i++) {
+					if (parseContentLength(contentLengths.get(i)) != length)
+						throw new BadRequestException("Conflicting Content-Length headers");
+				}
+				if (length > maxSize)
+					throw new PayloadTooLargeException("Request body exceeds " + maxSize + " bytes");
+			}
+		} catch (IOException e) {
+			error = e;
+		} catch (Exception e) {
+			// Request line or headers are invalid, so the body cannot be framed
+			broken = true;
+		}
+
+		if (error != null)
+			broken = true;
+
+		this.chunked = isChunked;
+		this.contentLength = isChunked ? -1 : length;
+		this.remaining = isChunked ? 0 : length;
+		this.state = (isChunked) ? CHUNK_SIZE : (length > 0 ? CHUNK_DATA : DONE);
+		this.expectContinue = !broken && (isChunked || length > 0)
+				&& "100-continue".equalsIgnoreCase(request.getHeader("Expect"));
+		if (broken)
+			state = DONE;
+	}
+
+	/**
+	 * An exception describing invalid framing, or <code>null</code>.
+	 */
+	IOException getError() {
+		return error;
+	}
+
+	boolean isChunked() {
+		return chunked;
+	}
+
+	/**
+	 * Test whether the whole body has been read, so reading it does not touch the
+	 * connection.
+	 */
+	boolean isFinished() {
+		return state == DONE;
+	}
+
+	/**
+	 * The declared body length, or <code>-1</code> if the body is chunked.
+	 */
+	long getContentLength() {
+		return contentLength;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!prepare())
+			return -1;
+
+		int b;
+		try {
+			b = input.read();
+		} catch (IOException e) {
+			throw fail(e);
+		}
+		if (b < 0)
+			throw fail(new EOFException("Connection closed mid-body"));
+		consumed(1);
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (!prepare())
+			return -1;
+
+		int read;
+		try {
+			read = input.read(b, off, (int) Math.min(len, remaining));
+		} catch (IOException e) {
+			throw fail(e);
+		}
+		if (read < 0)
+			throw fail(new EOFException("Connection closed mid-body"));
+		consumed(read);
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0 || !prepare())
+			return 0;
+
+		long skipped;
+		try {
+			skipped = input.skip(Math.min(n, remaining));
+		} catch (IOException e) {
+			throw fail(e);
+		}
+		if (skipped < 0)
+			throw fail(new EOFException("Connection closed mid-body"));
+		consumed(skipped);
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		if (state != CHUNK_DATA)
+			return 0;
+		return (int) Math.min(input.available(), remaining);
+	}
+
+	/**
+	 * Consume any of the body the handler did not read, so the connection can
+	 * serve its next request.
+	 *
+	 * @return <code>True</code> if the connection can be reused.
+	 */
+	boolean finish() {
+		if (broken)
+			return false;
+		if (state == DONE)
+			return true;
+
+		// The client is waiting for permission before sending the body
+		if (expectContinue && !started)
+			return false;
+
+		try {
+			long drained = 0;
+			while (state != DONE) {
+				if (drained > MAX_DRAIN || (!chunked && remaining > MAX_DRAIN))
+					return false;
+				long skipped = skip(MAX_DRAIN);
+				drained += skipped;
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Position the stream at body data, reading chunk framing as needed.
+	 *
+	 * @return <code>False</code> at the end of the body.
+	 */
+	private boolean prepare() throws IOException {
+		if (error != null && broken)
+			throw error;
+
+		if (!started) {
+			started = true;
+			if (expectContinue)
+				input.writeInterim(CONTINUE);
+		}
+
+		try {
+			while (true) {
+				switch (state) {
+					case CHUNK_DATA:
+						if (remaining > 0)
+							return true;
+						state = chunked ? CHUNK_END : DONE;
+						break;
+					case CHUNK_END:
+						if (readLine() != 0)
+							throw new BadRequestException("Invalid chunk terminator");
+						state = CHUNK_SIZE;
+						break;
+					case CHUNK_SIZE:
+						readChunkSize();
+						break;
+					default:
+						return false;
+				}
+			}
+		} catch (IOException e) {
+			throw fail(e);
+		}
+	}
+
+	private void readChunkSize() throws IOException {
+		long size = 0;
+		int digits = 0;
+		int length = 0;
+		int b;
+
+		while ((b = input.read()) != '\n') {
+			if (b < 0)
+				throw new EOFException("Connection closed mid-body");
+			if (++length > MAX_LINE_LENGTH)
+				throw new BadRequestException("Chunk size line too long");
+
+			int digit = Character.digit(b, 16);
+			if (digit >= 0 && digits >= 0) {
+				if (++digits > 15)
+					throw new BadRequestException("Chunk size too large");
+				size = (size << 4) | digit;
+			} else if (digits >= 0) {
+				// Anything after the size, such as extensions, is ignored
+				digits = (digits == 0) ? -2 : -1;
+			}
+		}
+
+		if (digits == 0 || digits == -2)
+			throw new BadRequestException("Invalid chunk size");
+
+		if (size == 0) {
+			// Last chunk; discard trailers
+			while (readLine() != 0)
+				;
+			state = DONE;
+			return;
+		}
+
+		if (total + size > maxSize)
+			throw new PayloadTooLargeException("Request body exceeds " + maxSize + " bytes");
+		remaining = size;
+		state = CHUNK_DATA;
+	}
+
+	/**
+	 * Read and discard a line.
+	 *
+	 * @return The line's length, excluding the line break.
+	 */
+	private int readLine() throws IOException {
+		int length = 0;
+		int b;
+		while ((b = input.read()) != '\n') {
+			if (b < 0)
+				throw new EOFException("Connection closed mid-body");
+			if (b != '\r' && ++length > MAX_LINE_LENGTH)
+				throw new BadRequestException("Trailer line too long");
+		}
+		return length;
+	}
+
+	private void consumed(long count) {
+		remaining -= count;
+		total += count;
+	}
+
+	private IOException fail(IOException e) {
+		broken = true;
+		state = DONE;
+		error = e;
+		return e;
+	}
+
+	/**
+	 * Parse a <code>Content-Length</code> value, which must be only digits.
+	 */
+	private static long parseContentLength(String value) throws BadRequestException {
+		// Eighteen digits cannot overflow a long
+		if (value.isEmpty() || value.length() > 18)
+			throw new BadRequestException("Invalid Content-Length '" + value + "'");
+
+		long length = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9')
+				throw new BadRequestException("Invalid Content-Length '" + value + "'");
+			length = length * 10 + (c - '0');
+		}
+		return length;
+	}
+
+}
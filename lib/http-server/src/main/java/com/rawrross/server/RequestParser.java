@@ -0,0 +1,241 @@
+package com.rawrross.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.rawrross.server.HTTPRequest.HTTPMethod;
+import com.rawrross.server.exception.BadRequestException;
+
+/**
+ * An incremental, byte-level parser for HTTP request heads.
+ * <p>
+ * The parser scans raw bytes line by line and records the positions of the
+ * method, target, version, and each header name and value. No Strings are
+ * created while parsing; the resulting {@link HTTPRequest} decodes fields
+ * lazily from the same buffer. A head may arrive over several reads, and the
+ * buffer may be compacted in between, since all progress is tracked relative to
+ * the start of the head.
+ * <p>
+ * One parser is reused for every request on a connection.
+ *
+ * @author Randy Ross
+ */
+class RequestParser {
+
+	/** Largest request head accepted before the request is rejected. */
+	static final int MAX_HEAD_SIZE = 64 * 1024;
+
+	private static final HTTPMethod[] METHODS = HTTPMethod.values();
+	private static final byte[][] METHOD_NAMES = Arrays.stream(METHODS)
+			.map(m -> m.name().getBytes(StandardCharsets.US_ASCII))
+			.toArray(byte[][]::new);
+
+	/** Start of the current line, relative to the head. */
+	private int lineStart;
+	/** Start of the request line, relative to the head, after any empty lines. */
+	private int requestStart;
+	private boolean requestLineDone;
+
+	private HTTPMethod method;
+	private int targetStart, targetEnd, versionStart, versionEnd;
+	private int queryStart = -1;
+	private String parseError;
+
+	/** Name start, name end, value start, value end for each header. */
+	private int[] headers = new int[16 * 4];
+	private int headerCount;
+
+	private int headLength;
+
+	/**
+	 * Continue parsing a request head whose first byte is at <code>base</code>.
+	 * Bytes before <code>end</code> that were already parsed by a previous call
+	 * are not scanned again.
+	 *
+	 * @param buf  The buffer holding the head.
+	 * @param base Index of the first byte of the head.
+	 * @param end  Index after the last byte received.
+	 * @return The parsed request, or <code>null</code> if the head is not yet
+	 *         complete.
+	 * @throws BadRequestException If the head exceeds {@link #MAX_HEAD_SIZE}.
+	 */
+	HTTPRequest parse(ByteBuffer buf, int base, int end) throws BadRequestException {
+		int lf;
+		while ((lf = indexOf(buf, (byte) '\n', base + lineStart, end)) >= 0) {
+			int start = base + lineStart;
+			int lineEnd = (lf > start && buf.get(lf - 1) == '\r') ? lf - 1 : lf;
+			lineStart = lf + 1 - base;
+
+			if (!requestLineDone) {
+				if (lineEnd == start) {
+					// Ignore empty lines preceding a request
+					requestStart = lineStart;
+					continue;
+				}
+				parseRequestLine(buf, base, start, lineEnd);
+				requestLineDone = true;
+			} else if (lineEnd == start) {
+				headLength = lineStart;
+				return finish(buf, base);
+			} else {
+				parseHeader(buf, base, start, lineEnd);
+			}
+		}
+
+		if (end - base >= MAX_HEAD_SIZE) {
+			reset();
+			throw new BadRequestException("Request header too large");
+		}
+		return null;
+	}
+
+	/**
+	 * The number of bytes, from the head's base, used by the last parsed request.
+	 */
+	int headLength() {
+		return headLength;
+	}
+
+	/**
+	 * Test whether some of a request head has been received.
+	 */
+	boolean hasPartialRequest() {
+		return requestLineDone || lineStart > requestStart;
+	}
+
+	/**
+	 * Forget any partially parsed head.
+	 */
+	void reset() {
+		lineStart = 0;
+		requestStart = 0;
+		requestLineDone = false;
+		method = null;
+		targetStart = targetEnd = versionStart = versionEnd = 0;
+		queryStart = -1;
+		parseError = null;
+		headerCount = 0;
+	}
+
+	private HTTPRequest finish(ByteBuffer buf, int base) {
+		HTTPRequest request = new HTTPRequest(buf, base + requestStart, base + headLength, method,
+				base + targetStart, base + targetEnd, queryStart < 0 ? -1 : base + queryStart,
+				base + versionStart, base + versionEnd, rebase(base), headerCount, parseError);
+		reset();
+		return request;
+	}
+
+	private int[] rebase(int base) {
+		int[] offsets = new int[headerCount * 4];
+		for (int i = 0; i < offsets.length; i++)
+			offsets[i] = base + headers[i];
+		return offsets;
+	}
+
+	private void parseRequestLine(ByteBuffer buf, int base, int start, int end) {
+		// Method is everything up to the first space, version everything after the
+		// last space, and the target is in between
+		int firstSpace = indexOf(buf, (byte) ' ', start, end);
+		int lastSpace = end - 1;
+		while (lastSpace > start && buf.get(lastSpace) != ' ')
+			lastSpace--;
+
+		if (firstSpace < 0 || lastSpace <= firstSpace + 1 || lastSpace == end - 1) {
+			parseError = "Invalid starting line '" + ascii(buf, start, end) + "'";
+			return;
+		}
+
+		method = matchMethod(buf, start, firstSpace);
+		if (method == null) {
+			parseError = "Invalid HTTP method '" + ascii(buf, start, end) + "'";
+			return;
+		}
+
+		targetStart = firstSpace + 1 - base;
+		targetEnd = lastSpace - base;
+		versionStart = lastSpace + 1 - base;
+		versionEnd = end - base;
+
+		int query = indexOf(buf, (byte) '?', firstSpace + 1, lastSpace);
+		queryStart = (query < 0) ? -1 : query + 1 - base;
+
+		if (!validPercentEncoding(buf, firstSpace + 1, query < 0 ? lastSpace : query))
+			parseError = "Invalid URI '" + ascii(buf, start, end) + "'";
+	}
+
+	private void parseHeader(ByteBuffer buf, int base, int start, int end) {
+		int colon = indexOf(buf, (byte) ':', start, end);
+		if (colon <= start || isWhitespace(buf.get(start)) || isWhitespace(buf.get(colon - 1))) {
+			// Missing name, or obsolete line folding
+			if (parseError == null)
+				parseError = "Invalid header '" + ascii(buf, start, end) + "'";
+			return;
+		}
+
+		int valueStart = colon + 1;
+		while (valueStart < end && isWhitespace(buf.get(valueStart)))
+			valueStart++;
+		int valueEnd = end;
+		while (valueEnd > valueStart && isWhitespace(buf.get(valueEnd - 1)))
+			valueEnd--;
+
+		if (headerCount * 4 == headers.length)
+			headers = Arrays.copyOf(headers, headers.length * 2);
+
+		int i = headerCount++ * 4;
+		headers[i] = start - base;
+		headers[i + 1] = colon - base;
+		headers[i + 2] = valueStart - base;
+		headers[i + 3] = valueEnd - base;
+	}
+
+	private static HTTPMethod matchMethod(ByteBuffer buf, int start, int end) {
+		int length = end - start;
+		outer: for (int m = 0; m < METHODS.length; m++) {
+			byte[] name = METHOD_NAMES[m];
+			if (name.length != length)
+				continue;
+			for (int i = 0; i < length; i++) {
+				if (buf.get(start + i) != name[i])
+					continue outer;
+			}
+			return METHODS[m];
+		}
+		return null;
+	}
+
+	private static boolean validPercentEncoding(ByteBuffer buf, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (buf.get(i) == '%') {
+				if (i + 2 >= end || !isHex(buf.get(i + 1)) || !isHex(buf.get(i + 2)))
+					return false;
+				i += 2;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isHex(byte b) {
+		return (b >= '0' && b <= '9') || (b >= 'a' && b <= 'f') || (b >= 'A' && b <= 'F');
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	static int indexOf(ByteBuffer buf, byte b, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (buf.get(i) == b)
+				return i;
+		}
+		return -1;
+	}
+
+	private static String ascii(ByteBuffer buf, int start, int end) {
+		byte[] bytes = new byte[end - start];
+		buf.get(start, bytes);
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+
+}
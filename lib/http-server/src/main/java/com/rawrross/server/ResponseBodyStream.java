@@ -0,0 +1,244 @@
+package com.rawrross.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A response body written by the request handler while the response is being
+ * sent. Writes are buffered, and the response head is committed the first time
+ * the buffer is flushed; the body is then sent with
+ * <code>Transfer-Encoding: chunked</code>, one chunk per flush, followed by any
+ * trailers once the stream is closed.
+ * <p>
+ * If the stream is closed before anything has been flushed, the buffered bytes
+ * are sent as an ordinary body with a <code>Content-Length</code> instead.
+ * Clients that do not support chunked coding receive the body unframed, and the
+ * connection is closed to mark its end.
+ * <p>
+ * Each flush waits until the connection has accepted the data, so a handler
+ * cannot produce a body faster than the client reads it. The body of a
+ * response to a <code>HEAD</code> request is discarded once the head is sent.
+ *
+ * @author Randy Ross
+ */
+class ResponseBodyStream extends OutputStream implements WritableByteChannel {
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] LAST_CHUNK = { '0', '\r', '\n' };
+
+	private final HTTPResponse response;
+	private final ConnectionOutput out;
+	private final boolean chunked;
+	private final boolean headOnly;
+	/** The buffer leased from the connection's pool, until the stream ends. */
+	private ByteBuffer leased;
+	private final byte[] buffer;
+	private int count;
+	private boolean closed;
+
+	/**
+	 * @param response The response this stream is the body of.
+	 * @param out      The connection output the response is written to.
+	 * @param chunked  <code>False</code> if the client does not support chunked
+	 *                 transfer coding.
+	 * @param headOnly <code>True</code> if only the head is sent, for a
+	 *                 <code>HEAD</code> request.
+	 */
+	ResponseBodyStream(HTTPResponse response, ConnectionOutput out, boolean chunked, boolean headOnly) {
+		this.response = response;
+		this.out = out;
+		this.chunked = chunked;
+		this.headOnly = headOnly;
+		this.leased = out.pool.leaseHeap(BUFFER_SIZE);
+		this.buffer = leased.array();
+	}
+
+	/**
+	 * Test whether the body was framed, so the connection can be reused once the
+	 * stream is closed.
+	 */
+	boolean isFramed() {
+		return chunked || !response.isCommitted();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+		if (count == buffer.length)
+			flushBuffer();
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		if (len > buffer.length - count) {
+			flushBuffer();
+			if (len >= buffer.length) {
+				writeChunk(b, off, len);
+				return;
+			}
+		}
+		System.arraycopy(b, off, buffer, count, len);
+		count += len;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		ensureOpen();
+		int length = src.remaining();
+		if (src.hasArray()) {
+			write(src.array(), src.arrayOffset() + src.position(), length);
+		} else if (length > buffer.length - count) {
+			flushBuffer();
+			if (length >= buffer.length) {
+				commitIfNeeded();
+				if (!headOnly) {
+					if (chunked)
+						out.write(chunkHeader(length));
+					out.write(src.duplicate());
+					if (chunked)
+						out.write(CRLF);
+				}
+				out.flush();
+			} else {
+				src.get(src.position(), buffer, 0, length);
+				count = length;
+			}
+		} else {
+			src.get(src.position(), buffer, count, length);
+			count += length;
+		}
+		src.position(src.limit());
+		return length;
+	}
+
+	/**
+	 * Send everything written so far, committing the response head if it has not
+	 * been sent yet.
+	 */
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		if (count > 0) {
+			flushBuffer();
+		} else {
+			commitIfNeeded();
+			out.flush();
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	/**
+	 * End the body. If nothing has been sent yet, the buffered bytes become the
+	 * response's body; otherwise the last chunk and any trailers are written.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+
+		if (!response.isCommitted()) {
+			response.setStreamedBody(Arrays.copyOf(buffer, count));
+			returnBuffer(true);
+			return;
+		}
+
+		boolean sent = false;
+		try {
+			if (count > 0)
+				writeChunk(buffer, 0, count);
+			count = 0;
+
+			if (chunked && !headOnly) {
+				out.write(LAST_CHUNK);
+				Map<String, String> trailers = response.getTrailers();
+				if (trailers != null) {
+					StringBuilder res = new StringBuilder();
+					for (Entry<String, String> trailer : trailers.entrySet())
+						res.append(trailer.getKey()).append(": ").append(trailer.getValue()).append("\r\n");
+					out.write(res.toString().getBytes(HTTPServer.DEFAULT_CHARSET));
+				}
+				out.write(CRLF);
+			}
+			out.flush();
+			sent = true;
+		} finally {
+			returnBuffer(sent);
+		}
+	}
+
+	/**
+	 * End the stream after the request handler failed.
+	 */
+	void abandon() {
+		closed = true;
+		returnBuffer(!response.isCommitted());
+	}
+
+	private void flushBuffer() throws IOException {
+		if (count > 0) {
+			writeChunk(buffer, 0, count);
+			count = 0;
+		}
+	}
+
+	/**
+	 * Write a chunk and wait for the connection to accept it, since the given
+	 * array may be reused as soon as this method returns.
+	 */
+	private void writeChunk(byte[] data, int offset, int length) throws IOException {
+		commitIfNeeded();
+		if (!headOnly) {
+			if (chunked)
+				out.write(chunkHeader(length));
+			out.write(data, offset, length);
+			if (chunked)
+				out.write(CRLF);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Give the buffer back to the pool. After a failed write the connection may
+	 * still reference it, so it is only reused if everything written was sent.
+	 */
+	private void returnBuffer(boolean reusable) {
+		if (leased == null)
+			return;
+		if (reusable)
+			out.pool.release(leased);
+		else
+			out.pool.discard(leased);
+		leased = null;
+	}
+
+	private void commitIfNeeded() throws IOException {
+		if (!response.isCommitted())
+			response.commit(out, chunked);
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed)
+			throw new ClosedChannelException();
+	}
+
+	private static byte[] chunkHeader(int length) {
+		return (Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+	}
+
+}
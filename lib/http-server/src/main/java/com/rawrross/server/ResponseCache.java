@@ -0,0 +1,408 @@
+package com.rawrross.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.rawrross.server.HTTPRequest.HTTPMethod;
+
+/**
+ * Caches the responses of request handlers in memory, so pages that are
+ * expensive to generate are only generated once until they expire.
+ * <p>
+ * Handlers are wrapped with {@link #cache(RequestHandler, Policy)}, and a
+ * {@link Policy} declares how long their responses stay fresh and which parts
+ * of the request they depend on. Only successful <code>GET</code> responses
+ * with an in-memory body are cached, along with their headers and validators,
+ * and <code>HEAD</code> requests are answered from them; compressed variants
+ * are kept alongside them as clients ask for them. A handler can keep a response out of the cache by
+ * setting <code>Cache-Control: no-store</code>, <code>no-cache</code>,
+ * <code>private</code> or <code>max-age=0</code>, and a shorter
+ * <code>max-age</code> shortens how long it stays fresh. Responses that set a
+ * cookie are never cached, so one client's cookie is not sent to others.
+ * <p>
+ * The cache is bounded by the total size of the cached bodies, evicting the
+ * least recently used responses first. When several requests miss on the same
+ * key at once, the handler runs for the first, and the rest wait for its
+ * response, for up to {@link #COALESCE_TIMEOUT} ms before running the handler
+ * themselves.
+ *
+ * @author Randy Ross
+ */
+public class ResponseCache {
+
+	public static long DEFAULT_CACHE_SIZE = 16 * 1024 * 1024;
+	/** The longest a request waits for another generating the same response, in milliseconds. */
+	public static long COALESCE_TIMEOUT = 10000;
+
+	/**
+	 * How a handler's responses are cached.
+	 */
+	public static class Policy {
+
+		private final Duration ttl;
+		private String[] parameters;
+		private String[] vary;
+
+		/**
+		 * @param ttl How long a cached response stays fresh.
+		 */
+		public Policy(Duration ttl) {
+			this.ttl = ttl;
+			this.vary = new String[0];
+		}
+
+		/**
+		 * Set the query parameters the response depends on. Other parameters are
+		 * ignored when looking up a cached response. By default the whole query
+		 * string is part of the key.
+		 *
+		 * @param names The names of the parameters.
+		 * @return This policy for chaining.
+		 */
+		public Policy setParameters(String... names) {
+			this.parameters = names.clone();
+			return this;
+		}
+
+		/**
+		 * Set the request headers the response depends on. A response is cached
+		 * separately for each combination of their values, and lists them in its
+		 * <code>Vary</code> header.
+		 *
+		 * @param headers The names of the headers.
+		 * @return This policy for chaining.
+		 */
+		public Policy setVary(String... headers) {
+			this.vary = headers.clone();
+			return this;
+		}
+
+	}
+
+	/**
+	 * A cached response.
+	 */
+	private final class Entry extends CachedBody {
+
+		private final Key key;
+		private final Headers responseHeaders;
+		private final long expires;
+
+		private Entry(Key key, byte[] data, String contentType, String etag, Instant lastModified,
+				Headers responseHeaders, long expires) {
+			super(data, contentType, etag, lastModified);
+			this.key = key;
+			this.responseHeaders = responseHeaders;
+			this.expires = expires;
+		}
+
+		boolean isFresh(long now) {
+			return now - expires < 0;
+		}
+
+		void apply(HTTPResponse response) {
+			response.getHeaders().setAll(responseHeaders);
+			response.setBody(this);
+		}
+
+		@Override
+		void grew(long bytes) {
+			ResponseCache.this.grew(this, bytes);
+		}
+
+	}
+
+	/**
+	 * @param handler The wrapped handler the key belongs to.
+	 * @param request The parts of the request the response depends on.
+	 */
+	private record Key(CachingHandler handler, String request) {
+	}
+
+	/**
+	 * Serves a handler's responses from the cache.
+	 */
+	private final class CachingHandler implements RequestHandler {
+
+		private final RequestHandler handler;
+		private final Policy policy;
+
+		private CachingHandler(RequestHandler handler, Policy policy) {
+			this.handler = handler;
+			this.policy = policy;
+		}
+
+		@Override
+		public void handleRequest(HTTPRequest request, HTTPResponse response) throws IOException {
+			if (request.getMethod() != HTTPMethod.GET && request.getMethod() != HTTPMethod.HEAD) {
+				handler.handleRequest(request, response);
+				return;
+			}
+
+			Key key = new Key(this, key(request));
+			Entry entry = lookup(key);
+			if (entry != null) {
+				entry.apply(response);
+				return;
+			}
+
+			// Only one request generates a missing response; the rest wait for it
+			CompletableFuture<Entry> generating = new CompletableFuture<>();
+			CompletableFuture<Entry> leader = inFlight.putIfAbsent(key, generating);
+			if (leader != null) {
+				entry = await(leader, Math.min(COALESCE_TIMEOUT, policy.ttl.toMillis()));
+				if (entry != null)
+					entry.apply(response);
+				else
+					handler.handleRequest(request, response);
+				return;
+			}
+
+			try {
+				handler.handleRequest(request, response);
+				// A handler may leave the body out of a HEAD response
+				if (request.getMethod() == HTTPMethod.GET)
+					entry = store(key, response);
+			} finally {
+				inFlight.remove(key);
+				generating.complete(entry);
+			}
+			if (entry != null)
+				entry.apply(response);
+		}
+
+		private String key(HTTPRequest request) {
+			StringBuilder key = new StringBuilder(request.getUri());
+			if (policy.parameters == null) {
+				String query = request.getQueryString();
+				if (query != null)
+					key.append('?').append(query);
+			} else {
+				for (String name : policy.parameters) {
+					String value = request.getParameter(name);
+					if (value != null)
+						key.append('\n').append(name).append('=').append(value);
+				}
+			}
+			for (String header : policy.vary) {
+				key.append('\n').append(header).append(':');
+				String value = request.getHeader(header);
+				if (value != null)
+					key.append(value);
+			}
+			return key.toString();
+		}
+
+		/**
+		 * Cache a response the handler just generated.
+		 *
+		 * @return The cached response, or <code>null</code> if it cannot be cached.
+		 */
+		private Entry store(Key key, HTTPResponse response) {
+			byte[] data = response.getCacheableBody();
+			if (data == null || data.length > cacheSize)
+				return null;
+
+			Headers headers = new Headers(response.getHeaders());
+			long ttl = lifetime(headers, policy.ttl.toNanos());
+			if (ttl <= 0 || headers.contains("Set-Cookie"))
+				return null;
+
+			// Connection headers belong to each response, and validators go in the entry
+			headers.remove("Connection");
+			headers.remove("Keep-Alive");
+			headers.remove("Last-Modified");
+			String etag = headers.remove("ETag");
+			if (etag == null)
+				etag = HTTPResponse.hashETag(ByteBuffer.wrap(data));
+			if (policy.vary.length > 0 && !headers.contains("Vary"))
+				headers.set("Vary", String.join(", ", policy.vary));
+
+			Entry entry = new Entry(key, data, response.getContentType(), etag, response.getLastModified(), headers,
+					System.nanoTime() + ttl);
+			put(entry);
+			return entry;
+		}
+
+	}
+
+	private final long cacheSize;
+	private final LinkedHashMap<Key, Entry> cache;
+	private long cachedBytes;
+	private final ConcurrentHashMap<Key, CompletableFuture<Entry>> inFlight;
+	private final AtomicLong hits, misses;
+
+	/**
+	 * Create a cache holding up to {@link #DEFAULT_CACHE_SIZE} bytes of
+	 * responses.
+	 */
+	public ResponseCache() {
+		this(DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * @param cacheSize The most bytes of response bodies to hold in memory.
+	 */
+	public ResponseCache(long cacheSize) {
+		this.cacheSize = cacheSize;
+		this.cache = new LinkedHashMap<>(64, 0.75f, true);
+		this.inFlight = new ConcurrentHashMap<>();
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+	}
+
+	/**
+	 * Wrap a handler so its responses are served from this cache.
+	 *
+	 * @param handler The handler to cache the responses of.
+	 * @param policy  How the responses are cached.
+	 * @return A handler that answers from the cache, and calls the given handler
+	 *         on a miss.
+	 */
+	public RequestHandler cache(RequestHandler handler, Policy policy) {
+		return new CachingHandler(handler, policy);
+	}
+
+	/**
+	 * Remove every response from the cache.
+	 */
+	public void invalidateAll() {
+		synchronized (cache) {
+			cache.clear();
+			cachedBytes = 0;
+		}
+	}
+
+	/**
+	 * The number of requests answered from the cache.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * The number of cacheable requests that were not in the cache.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	private Entry lookup(Key key) {
+		Entry entry;
+		synchronized (cache) {
+			entry = cache.get(key);
+			if (entry != null && !entry.isFresh(System.nanoTime())) {
+				cache.remove(key);
+				cachedBytes -= entry.weight;
+				entry = null;
+			}
+		}
+
+		if (entry != null)
+			hits.incrementAndGet();
+		else
+			misses.incrementAndGet();
+		return entry;
+	}
+
+	private void put(Entry entry) {
+		synchronized (cache) {
+			Entry old = cache.put(entry.key, entry);
+			if (old != null)
+				cachedBytes -= old.weight;
+			cachedBytes += entry.weight;
+			evict();
+		}
+	}
+
+	/**
+	 * Account for a compressed variant added to a cached response, evicting
+	 * others if the cache is now over budget.
+	 */
+	private void grew(Entry entry, long bytes) {
+		synchronized (cache) {
+			entry.weight += bytes;
+			if (cache.get(entry.key) == entry) {
+				cachedBytes += bytes;
+				evict();
+			}
+		}
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<Key, Entry>> it = cache.entrySet().iterator();
+		while (cachedBytes > cacheSize && it.hasNext()) {
+			cachedBytes -= it.next().getValue().weight;
+			it.remove();
+		}
+	}
+
+	/**
+	 * Find how long a response may be cached from its
+	 * <code>Cache-Control</code> directives, across every such header.
+	 *
+	 * @param ttl The policy's lifetime, in nanoseconds.
+	 * @return The lifetime in nanoseconds, or <code>0</code> if the response
+	 *         must not be cached.
+	 */
+	private static long lifetime(Headers headers, long ttl) {
+		for (int i = 0; i < headers.size(); i++) {
+			if (!Headers.equalsIgnoreCase(headers.name(i), "Cache-Control"))
+				continue;
+
+			for (String directive : headers.value(i).split(",")) {
+				int eq = directive.indexOf('=');
+				String name = (eq < 0 ? directive : directive.substring(0, eq)).trim();
+				if (name.equalsIgnoreCase("no-store") || name.equalsIgnoreCase("no-cache")
+						|| name.equalsIgnoreCase("private"))
+					return 0;
+				if (name.equalsIgnoreCase("max-age") || name.equalsIgnoreCase("s-maxage")) {
+					String value = (eq < 0) ? "" : directive.substring(eq + 1).trim();
+					if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\""))
+						value = value.substring(1, value.length() - 1);
+					long seconds;
+					try {
+						seconds = Long.parseLong(value);
+					} catch (NumberFormatException e) {
+						// An invalid lifetime is treated as stale
+						return 0;
+					}
+					if (seconds <= 0)
+						return 0;
+					ttl = Math.min(ttl, TimeUnit.SECONDS.toNanos(seconds));
+				}
+			}
+		}
+		return ttl;
+	}
+
+	/**
+	 * Wait for another request to generate a response.
+	 *
+	 * @return The response, or <code>null</code> if it could not be cached or
+	 *         took too long.
+	 */
+	private static Entry await(CompletableFuture<Entry> future, long timeout) throws IOException {
+		try {
+			return future.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException | TimeoutException e) {
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+}
@@ -0,0 +1,403 @@
+package com.rawrross.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.StringJoiner;
+
+import com.rawrross.server.HTTPRequest.HTTPMethod;
+import com.rawrross.server.HTTPResponse.HttpStatusCode;
+
+/**
+ * Dispatches requests to handlers by method and path.
+ * <p>
+ * Routes are path patterns made of literal text, <code>{name}</code> segments
+ * that match any single path segment, and an optional trailing
+ * <code>*</code> or <code>*name</code> wildcard that matches the rest of the
+ * path, including nothing. Matched segments are available from
+ * {@link HTTPRequest#getPathParameter(String)}; an unnamed wildcard is named
+ * <code>*</code>. When several routes match, literal text is preferred over a
+ * parameter, and a parameter over a wildcard.
+ * <p>
+ * Routes are stored in a radix tree over the bytes of the request path, so a
+ * lookup takes time proportional to the length of the path, however many
+ * routes there are, and does not allocate for routes without parameters.
+ * Literal text is written as it reads, and is percent-encoded when the route
+ * is added, so <code>/café</code> matches a request for
+ * <code>/caf%C3%A9</code>. Paths are compared in a normal form: escapes of
+ * letters, digits and <code>-._~</code> match the character itself, so
+ * <code>/%66ortune</code> matches <code>/fortune</code>, and the hex digits of
+ * other escapes match in either case. Other escapes only match themselves, so
+ * <code>%2F</code> never matches a <code>/</code>.
+ * <p>
+ * <code>HEAD</code> requests are handled by the <code>GET</code> handler unless
+ * a route has its own. A path that matches a route, but not for the request's
+ * method, is answered with <code>405 Method Not Allowed</code>.
+ *
+ * @author Randy Ross
+ */
+public class Router implements RequestHandler {
+
+	private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * A node in the radix tree. Literal children are keyed by their first byte;
+	 * the parameter and wildcard children match whole segments.
+	 */
+	private static final class Node {
+
+		private byte[] prefix;
+		private byte[] indices;
+		private Node[] children;
+		private Node param;
+		private Node wildcard;
+
+		/** Handlers by method ordinal, if a route ends at this node. */
+		private RequestHandler[] handlers;
+		/** The names of the route's parameters, in path order. */
+		private String[] paramNames;
+		/** The pattern of the route, for metrics. */
+		private String pattern;
+
+		Node(byte[] prefix) {
+			this.prefix = prefix;
+			this.indices = new byte[0];
+			this.children = new Node[0];
+		}
+
+		Node child(byte b) {
+			for (int i = 0; i < indices.length; i++) {
+				if (indices[i] == b)
+					return children[i];
+			}
+			return null;
+		}
+
+		void setChild(byte b, Node child) {
+			for (int i = 0; i < indices.length; i++) {
+				if (indices[i] == b) {
+					children[i] = child;
+					return;
+				}
+			}
+			indices = Arrays.copyOf(indices, indices.length + 1);
+			children = Arrays.copyOf(children, children.length + 1);
+			indices[indices.length - 1] = b;
+			children[children.length - 1] = child;
+		}
+
+		RequestHandler handler(HTTPMethod method) {
+			if (handlers == null || method == null)
+				return null;
+			RequestHandler handler = handlers[method.ordinal()];
+			if (handler == null && method == HTTPMethod.HEAD)
+				handler = handlers[HTTPMethod.GET.ordinal()];
+			return handler;
+		}
+
+	}
+
+	private final Node root;
+	/** The most parameters in any route. */
+	private int maxParams;
+	private RequestHandler notFoundHandler;
+
+	public Router() {
+		this.root = new Node(new byte[0]);
+		this.notFoundHandler = (request, response) -> response.setErrorStatus(HttpStatusCode.NOT_FOUND, null);
+	}
+
+	/**
+	 * Add a route for <code>GET</code> requests, which also serves
+	 * <code>HEAD</code> requests.
+	 *
+	 * @see #add(HTTPMethod, String, RequestHandler)
+	 */
+	public Router get(String pattern, RequestHandler handler) {
+		return add(HTTPMethod.GET, pattern, handler);
+	}
+
+	/**
+	 * Add a route for <code>POST</code> requests.
+	 *
+	 * @see #add(HTTPMethod, String, RequestHandler)
+	 */
+	public Router post(String pattern, RequestHandler handler) {
+		return add(HTTPMethod.POST, pattern, handler);
+	}
+
+	/**
+	 * Add a route.
+	 *
+	 * @param method  The request method the route handles.
+	 * @param pattern The path pattern, such as <code>/users/{id}</code> or
+	 *                <code>/files/*</code>.
+	 * @param handler The handler for matching requests.
+	 * @return This router for chaining.
+	 * @throws IllegalArgumentException If the pattern is invalid, or the route
+	 *                                  already exists.
+	 */
+	public Router add(HTTPMethod method, String pattern, RequestHandler handler) {
+		if (!pattern.startsWith("/") && !pattern.equals("*"))
+			throw new IllegalArgumentException("Route must start with '/': " + pattern);
+
+		Node node = root;
+		ArrayList<String> names = new ArrayList<>();
+		int pos = 0;
+
+		while (pos < pattern.length()) {
+			char c = pattern.charAt(pos);
+
+			if (c == '{') {
+				int close = pattern.indexOf('}', pos);
+				if (close < 0 || close == pos + 1)
+					throw new IllegalArgumentException("Invalid parameter in route: " + pattern);
+				if (pattern.charAt(pos - 1) != '/' || (close + 1 < pattern.length() && pattern.charAt(close + 1) != '/'))
+					throw new IllegalArgumentException("Parameter must be a whole segment: " + pattern);
+
+				names.add(pattern.substring(pos + 1, close));
+				if (node.param == null)
+					node.param = new Node(new byte[0]);
+				node = node.param;
+				pos = close + 1;
+			} else if (c == '*' && (pos == 0 || pattern.charAt(pos - 1) == '/')) {
+				String name = pattern.substring(pos + 1);
+				if (name.indexOf('/') >= 0 || name.indexOf('{') >= 0)
+					throw new IllegalArgumentException("Wildcard must end the route: " + pattern);
+
+				names.add(name.isEmpty() ? "*" : name);
+				if (node.wildcard == null)
+					node.wildcard = new Node(new byte[0]);
+				node = node.wildcard;
+				pos = pattern.length();
+			} else {
+				int end = pos;
+				while (end < pattern.length() && pattern.charAt(end) != '{'
+						&& !(pattern.charAt(end) == '*' && pattern.charAt(end - 1) == '/'))
+					end++;
+				node = insert(node, normalize(pattern.substring(pos, end)));
+				pos = end;
+			}
+		}
+
+		if (node.handlers == null) {
+			node.handlers = new RequestHandler[HTTPMethod.values().length];
+			node.paramNames = names.toArray(new String[0]);
+			node.pattern = pattern;
+		} else if (!Arrays.equals(node.paramNames, names.toArray())) {
+			throw new IllegalArgumentException("Route conflicts with another's parameter names: " + pattern);
+		}
+		if (node.handlers[method.ordinal()] != null)
+			throw new IllegalArgumentException("Route already exists: " + method + " " + pattern);
+
+		node.handlers[method.ordinal()] = handler;
+		maxParams = Math.max(maxParams, names.size());
+		return this;
+	}
+
+	/**
+	 * Set the handler for requests that match no route. By default they are
+	 * answered with <code>404 Not Found</code>.
+	 *
+	 * @param handler The handler for unmatched requests.
+	 * @return This router for chaining.
+	 */
+	public Router setNotFoundHandler(RequestHandler handler) {
+		this.notFoundHandler = handler;
+		return this;
+	}
+
+	@Override
+	public void handleRequest(HTTPRequest request, HTTPResponse response) throws IOException {
+		Node node = match(root, request, 0, request.pathLength(), 0);
+		if (node == null) {
+			notFoundHandler.handleRequest(request, response);
+			return;
+		}
+
+		request.setRoute(node.pattern);
+		RequestHandler handler = node.handler(request.getMethod());
+		if (handler == null) {
+			response.setErrorStatus(HttpStatusCode.METHOD_NOT_ALLOWED, null);
+			response.setHeader("Allow", allowed(node));
+			return;
+		}
+
+		request.setPathParameterNames(node.paramNames);
+		handler.handleRequest(request, response);
+	}
+
+	/**
+	 * Add literal bytes below the given node, splitting an existing node where
+	 * its prefix diverges.
+	 *
+	 * @return The node the bytes end at.
+	 */
+	private static Node insert(Node node, byte[] path) {
+		int pos = 0;
+		while (pos < path.length) {
+			Node child = node.child(path[pos]);
+			if (child == null) {
+				child = new Node(Arrays.copyOfRange(path, pos, path.length));
+				node.setChild(path[pos], child);
+				return child;
+			}
+
+			int common = 0;
+			while (common < child.prefix.length && pos + common < path.length
+					&& child.prefix[common] == path[pos + common])
+				common++;
+
+			if (common < child.prefix.length) {
+				Node split = new Node(Arrays.copyOf(child.prefix, common));
+				child.prefix = Arrays.copyOfRange(child.prefix, common, child.prefix.length);
+				split.setChild(child.prefix[0], child);
+				node.setChild(path[pos], split);
+				child = split;
+			}
+
+			node = child;
+			pos += common;
+		}
+		return node;
+	}
+
+	/**
+	 * Find the route node matching the path from <code>pos</code>, trying literal
+	 * children, then the parameter, then the wildcard. Parameters are captured
+	 * into the request as the match unwinds, so failed branches leave nothing
+	 * behind.
+	 *
+	 * @param depth The number of parameters matched above this node.
+	 */
+	private Node match(Node node, HTTPRequest request, int pos, int length, int depth) {
+		byte[] prefix = node.prefix;
+		for (int i = 0; i < prefix.length; i++) {
+			if (pos == length)
+				return null;
+			int unit = unit(request, pos, length);
+			if ((byte) unit != prefix[i])
+				return null;
+			pos += unit >>> 8;
+		}
+
+		if (pos == length && node.handlers != null)
+			return node;
+
+		if (pos < length) {
+			Node child = node.child((byte) unit(request, pos, length));
+			if (child != null) {
+				Node found = match(child, request, pos, length, depth);
+				if (found != null)
+					return found;
+			}
+
+			int end = pos;
+			while (node.param != null && end < length && request.pathByte(end) != '/')
+				end++;
+
+			// Parameters match non-empty segments only
+			if (end > pos) {
+				Node found = match(node.param, request, end, length, depth + 1);
+				if (found != null) {
+					capture(request, depth, pos, end);
+					return found;
+				}
+			}
+		}
+
+		if (node.wildcard != null && node.wildcard.handlers != null) {
+			capture(request, depth, pos, length);
+			return node.wildcard;
+		}
+		return null;
+	}
+
+	/**
+	 * Get the byte of the normalized path at a position in the raw path, in the
+	 * low byte, and the number of raw bytes it stands for above it. An escaped
+	 * unreserved character is decoded, and the hex digits of other escapes are
+	 * upper-cased.
+	 */
+	private static int unit(HTTPRequest request, int pos, int length) {
+		byte b = request.pathByte(pos);
+		if (b == '%') {
+			if (pos + 2 < length) {
+				int hi = hexValue(request.pathByte(pos + 1));
+				int lo = hexValue(request.pathByte(pos + 2));
+				if (hi >= 0 && lo >= 0 && isUnreserved(hi << 4 | lo))
+					return 3 << 8 | hi << 4 | lo;
+			}
+			return 1 << 8 | '%';
+		}
+
+		if (b >= 'a' && b <= 'f' && (pos >= 1 && request.pathByte(pos - 1) == '%' && pos + 1 < length
+				&& hexValue(request.pathByte(pos + 1)) >= 0
+				|| pos >= 2 && request.pathByte(pos - 2) == '%' && hexValue(request.pathByte(pos - 1)) >= 0))
+			b -= 'a' - 'A';
+		return 1 << 8 | (b & 0xFF);
+	}
+
+	/**
+	 * Encode the literal text of a route in the normal form paths are compared
+	 * in. Characters that cannot appear in a path, such as spaces and non-ASCII
+	 * characters, are percent-encoded, and escapes already in the text are
+	 * normalized. A <code>%</code> that does not start an escape is encoded.
+	 */
+	private static byte[] normalize(String literal) {
+		byte[] bytes = literal.getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length);
+		for (int i = 0; i < bytes.length; i++) {
+			int b = bytes[i] & 0xFF;
+			if (b == '%' && i + 2 < bytes.length && hexValue(bytes[i + 1]) >= 0 && hexValue(bytes[i + 2]) >= 0) {
+				b = hexValue(bytes[i + 1]) << 4 | hexValue(bytes[i + 2]);
+				i += 2;
+			} else if (isUnreserved(b) || b == '/' || b == ':' || b == '@' || "!$&'()*+,;=".indexOf(b) >= 0) {
+				out.write(b);
+				continue;
+			}
+
+			if (isUnreserved(b)) {
+				out.write(b);
+			} else {
+				out.write('%');
+				out.write(HEX_DIGITS[b >> 4]);
+				out.write(HEX_DIGITS[b & 0xF]);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	private static boolean isUnreserved(int c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '.'
+				|| c == '_' || c == '~';
+	}
+
+	private static int hexValue(byte b) {
+		if (b >= '0' && b <= '9')
+			return b - '0';
+		if (b >= 'A' && b <= 'F')
+			return b - 'A' + 10;
+		if (b >= 'a' && b <= 'f')
+			return b - 'a' + 10;
+		return -1;
+	}
+
+	private void capture(HTTPRequest request, int index, int start, int end) {
+		int[] captures = request.pathCaptures(maxParams * 2);
+		captures[index * 2] = start;
+		captures[index * 2 + 1] = end;
+	}
+
+	private static String allowed(Node node) {
+		StringJoiner allow = new StringJoiner(", ");
+		for (HTTPMethod method : HTTPMethod.values()) {
+			if (node.handler(method) != null)
+				allow.add(method.name());
+		}
+		return allow.toString();
+	}
+
+}
@@ -0,0 +1,118 @@
+package com.rawrross.server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The non-blocking transport. Accepts connections on one or more
+ * {@link ServerSocketChannel}s and spreads them across a fixed set of
+ * {@link EventLoop event loops}, which read requests and write responses
+ * without blocking. Only complete requests are passed to the server's
+ * {@link RequestHandler} pool, so an idle keep-alive connection costs a buffer
+ * rather than a thread.
+ * <p>
+ * With several acceptors, the event loops are split between them, and each
+ * acceptor runs on the first loop of its share. Where the listening sockets are
+ * {@link Listeners separate}, the kernel balances connections between the
+ * shares.
+ *
+ * @author Randy Ross
+ */
+class SelectorEngine {
+
+	private static final Logger logger = LogManager.getLogger("Server");
+
+	/**
+	 * Accepts connections from a listening socket for a share of the event loops.
+	 */
+	static final class Acceptor {
+
+		private final ServerSocketChannel channel;
+		private final EventLoop[] loops;
+		private int nextLoop;
+
+		private Acceptor(ServerSocketChannel channel, EventLoop[] loops) {
+			this.channel = channel;
+			this.loops = loops;
+		}
+
+		/**
+		 * Accept all pending connections, assigning them to this acceptor's event
+		 * loops round-robin. Called from the accepting event loop when the channel
+		 * is ready.
+		 */
+		void acceptConnections() {
+			try {
+				SocketChannel socket;
+				while ((socket = channel.accept()) != null) {
+					loops[nextLoop].register(socket);
+					nextLoop = (nextLoop + 1) % loops.length;
+				}
+			} catch (IOException e) {
+				logger.error("Exception accepting connection", e);
+			}
+		}
+
+	}
+
+	private final ServerSocketChannel[] channels;
+	private final EventLoop[] loops;
+
+	SelectorEngine(HTTPServer server, int port, ServerConfig config) throws IOException {
+		int acceptors = config.getAcceptors();
+		channels = Listeners.open(port, acceptors, config.getBacklog());
+
+		try {
+			loops = new EventLoop[config.getEventLoops()];
+			for (int i = 0; i < loops.length; i++)
+				loops[i] = new EventLoop(server, "http-nio-" + i);
+
+			for (int i = 0; i < acceptors; i++) {
+				ServerSocketChannel channel = channels[i % channels.length];
+				channel.configureBlocking(false);
+				EventLoop[] share = share(i, acceptors);
+				// A shared channel is registered with every accepting loop
+				channel.register(share[0].selector(), SelectionKey.OP_ACCEPT, new Acceptor(channel, share));
+			}
+		} catch (IOException e) {
+			Listeners.close(channels);
+			throw e;
+		}
+	}
+
+	/**
+	 * The event loops fed by the given acceptor: every loop whose index leaves it
+	 * as the remainder, or a single loop if there are more acceptors than loops.
+	 */
+	private EventLoop[] share(int acceptor, int acceptors) {
+		if (acceptors >= loops.length)
+			return new EventLoop[] { loops[acceptor % loops.length] };
+
+		EventLoop[] share = new EventLoop[(loops.length - acceptor + acceptors - 1) / acceptors];
+		for (int i = 0; i < share.length; i++)
+			share[i] = loops[acceptor + i * acceptors];
+		return share;
+	}
+
+	int getPort() {
+		return channels[0].socket().getLocalPort();
+	}
+
+	void start() {
+		for (EventLoop loop : loops)
+			loop.start();
+	}
+
+	void stop() {
+		Listeners.close(channels);
+
+		for (EventLoop loop : loops)
+			loop.stop();
+	}
+
+}
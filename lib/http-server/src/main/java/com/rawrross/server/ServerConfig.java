@@ -0,0 +1,407 @@
+package com.rawrross.server;
+
+import com.rawrross.server.HTTPServer.Transport;
+
+/**
+ * Per-instance configuration for an {@link HTTPServer}. Options must be set
+ * before the config is passed to the server's constructor; changing them
+ * afterwards has no effect on a running server.
+ *
+ * @author Randy Ross
+ */
+public class ServerConfig {
+
+	private Transport transport;
+	private int eventLoops;
+	private ExecutorStrategy executorStrategy;
+	private int workerThreads;
+	private int keepAliveTimeout;
+	private long maxBodySize;
+	private boolean compressionEnabled;
+	private int compressionMinSize;
+	private boolean hashETags;
+	private boolean directBuffers;
+	private int maxQueuedTasks;
+	private int targetLatency;
+	private int retryAfter;
+	private int maxConnections;
+	private int maxRequestsPerConnection;
+	private int acceptors;
+	private int backlog;
+	private int asyncTimeout;
+
+	/**
+	 * Create a config using the server defaults: the blocking transport, a
+	 * worker pool sized by {@link HTTPServer#CORE_THREAD_RATIO}, and the
+	 * {@link HTTPServer#DEFAULT_KEEP_ALIVE_TIMEOUT default keep-alive timeout},
+	 * and compression of text responses.
+	 */
+	public ServerConfig() {
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		transport = Transport.BLOCKING;
+		eventLoops = Math.max(1, cores / 2);
+		if (HTTPServer.CORE_THREAD_RATIO <= 0) {
+			executorStrategy = ExecutorStrategy.CACHED;
+			workerThreads = cores;
+		} else {
+			executorStrategy = ExecutorStrategy.FIXED;
+			workerThreads = (int) Math.ceil(cores * HTTPServer.CORE_THREAD_RATIO);
+		}
+		keepAliveTimeout = HTTPServer.DEFAULT_KEEP_ALIVE_TIMEOUT;
+		maxBodySize = HTTPServer.DEFAULT_MAX_BODY_SIZE;
+		compressionEnabled = true;
+		compressionMinSize = HTTPServer.DEFAULT_COMPRESSION_MIN_SIZE;
+		maxQueuedTasks = HTTPServer.DEFAULT_MAX_QUEUED_TASKS;
+		retryAfter = HTTPServer.DEFAULT_RETRY_AFTER;
+		maxConnections = HTTPServer.DEFAULT_MAX_CONNECTIONS;
+		maxRequestsPerConnection = HTTPServer.DEFAULT_MAX_REQUESTS_PER_CONNECTION;
+		acceptors = 1;
+		backlog = HTTPServer.DEFAULT_BACKLOG;
+		asyncTimeout = HTTPServer.DEFAULT_ASYNC_TIMEOUT;
+	}
+
+	/**
+	 * Set how the server accepts and reads from connections.
+	 *
+	 * @param transport The transport mode.
+	 * @return This config for chaining.
+	 */
+	public ServerConfig setTransport(Transport transport) {
+		this.transport = transport;
+		return this;
+	}
+
+	/**
+	 * Set the number of selector threads used by the {@link Transport#NIO NIO}
+	 * transport. Ignored by the blocking transport.
+	 *
+	 * @param eventLoops The number of event-loop threads, at least <code>1</code>.
+	 * @return This config for chaining.
+	 */
+	public ServerConfig setEventLoops(int eventLoops) {
+		if (eventLoops < 1)
+			throw new IllegalArgumentException("At least one event loop is required");
+		this.eventLoops = eventLoops;
+		return this;
+	}
+
+	/**
+	 * Set the number of threads accepting connections. Where
+	 * <code>SO_REUSEPORT</code> is supported, each acceptor listens on its own
+	 * socket bound to the same port, and the kernel spreads connections between
+	 * them. With the blocking transport, the acceptors share the worker pool;
+	 * with the {@link Transport#NIO NIO} transport, the event loops are split
+	 * between the acceptors, and the first event loops do the accepting.
+	 *
+	 * @param acceptors The number of acceptors, at least <code>1</code>.
+	 * @return This config for chaining.
+	 * @see Listeners
+	 */
+	public ServerConfig setAcceptors(int acceptors) {
+		if (acceptors < 1)
+			throw new IllegalArgumentException("At least one acceptor is required");
+		this.acceptors = acceptors;
+		return this;
+	}
+
+	/**
+	 * Set how many connections the operating system may queue on each listening
+	 * socket before they are accepted. Connections beyond it are refused or
+	 * dropped during a burst. The operating system may cap the value, at
+	 * <code>net.core.somaxconn</code> on Linux.
+	 *
+	 * @param backlog The queue length, or <code>0</code> for the system default.
+	 * @return This config for chaining.
+	 */
+	public ServerConfig setBacklog(int backlog) {
+		if (backlog < 0)
+			throw new IllegalArgumentException("Backlog must not be negative");
+		this.backlog = backlog;
+		return this;
+	}
+
+	/**
+	 * Set the kind of executor used to run connection and request handling tasks.
+	 *
+	 * @param executorStrategy The executor strategy.
+	 * @return This config for chaining.
+	 * @see #setWorkerThreads(int)
+	 */
+	public ServerConfig setExecutorStrategy(ExecutorStrategy executorStrategy) {
+		this.executorStrategy = executorStrategy;
+		return this;
+	}
+
+	/**
+	 * Set the number of worker threads for the {@link ExecutorStrategy#FIXED
+	 * FIXED} and {@link ExecutorStrategy#FORK_JOIN FORK_JOIN} strategies.
+	 *
+	 * @param workerThreads The number of threads, at least <code>1</code>.
+	 * @return This config for chaining.
+	 */
+	public ServerConfig setWorkerThreads(int workerThreads) {
+		if (workerThreads < 1)
+			throw new IllegalArgumentException("At least one worker thread is required");
+		this.workerThreads = workerThreads;
+		return this;
+	}
+
+	/**
+	 * Set how long an idle keep-alive connection is held open. Under pressure,
+	 * the timeout is shortened, down to {@link HTTPServer#MIN_KEEP_ALIVE_TIMEOUT}.
+	 *
+	 * @param keepAliveTimeout The timeout in milliseconds.
+	 * @return This config for chaining.
+	 */
+	public ServerConfig setKeepAliveTimeout(int keepAliveTimeout) {
+		this.keepAliveTimeout = keepAliveTimeout;
+		return this;
+	}
+
+	/**
+	 * Set the largest request body the server accepts. Requests declaring a larger
+	 * <code>Content-Length</code> are rejected with
+	 * <code>413 Payload Too Large</code>, and reading a larger chunked body fails.
+	 *
+	 * @param maxBodySize The maximum body size in bytes.
+	 * @return This config for chaining.
+	 */
+	public ServerConfig setMaxBodySize(long maxBodySize) {
+		this.maxBodySize = maxBodySize;
+		return this;
+	}
+
+	/**
+	 * Set whether text response bodies are compressed with gzip or deflate when
+	 * the client's <code>Accept-Encoding</code> allows it.
+	 *
+	 * @param compressionEnabled <code>True</code> to compress responses.
+	 * @return This config for chaining.
+	 * @see #setCompressionMinSize(int)
+	 */
+	public ServerConfig setCompressionEnabled(boolean compressionEnabled) {
+		this.compressionEnabled = compressionEnabled;
+		return this;
+	}
+
+	/**
+	 * Set the smallest response body that is compressed. Smaller bodies are sent
+	 * as they are, since the saving would not be worth the time spent.
+	 *
+	 * @param compressionMinSize The minimum size in bytes.
+	 * @return This config for chaining.
+	 */
+	public ServerConfig setCompressionMinSize(int compressionMinSize) {
+		if (compressionMinSize < 0)
+			throw new IllegalArgumentException("Minimum size must not be negative");
+		this.compressionMinSize = compressionMinSize;
+		return this;
+	}
+
+	/**
+	 * Set whether in-memory response bodies get a strong <code>ETag</code>,
+	 * computed from a hash of the body, so that revalidation requests can be
+	 * answered with <code>304 Not Modified</code>. File bodies always get
+	 * validators derived from their size and modification time.
+	 *
+	 * @param hashETags <code>True</code> to hash response bodies.
+	 * @return This config for chaining.
+	 */
+	public ServerConfig setHashETags(boolean hashETags) {
+		this.hashETags = hashETags;
+		return this;
+	}
+
+	/**
+	 * Set whether the buffers that connections read into and write from with
+	 * channels are allocated outside the heap. Only the {@link Transport#NIO NIO}
+	 * transport uses channels for every read, so the blocking transport keeps its
+	 * buffers on the heap either way.
+	 *
+	 * @param directBuffers <code>True</code> to use direct buffers.
+	 * @return This config for chaining.
+	 * @see BufferPool
+	 */
+	public ServerConfig setDirectBuffers(boolean directBuffers) {
+		this.directBuffers = directBuffers;
+		return this;
+	}
+
+	/**
+	 * Set the most tasks that may wait for a worker thread: connections with the
+	 * blocking transport, or requests with the NIO transport. Once the queue is
+	 * full, further connections and requests are answered with
+	 * <code>503 Service Unavailable</code> and closed.
+	 *
+	 * @param maxQueuedTasks The maximum queue length, or <code>0</code> for no
+	 *                       bound.
+	 * @return This config for chaining.
+	 */
+	public ServerConfig setMaxQueuedTasks(int maxQueuedTasks) {
+		if (maxQueuedTasks < 0)
+			throw new IllegalArgumentException("Queue length must not be negative");
+		this.maxQueuedTasks = maxQueuedTasks;
+		return this;
+	}
+
+	/**
+	 * Set the latency to hold requests to by limiting how many are in flight. The
+	 * limit adapts to the average time from a request being read to its handler
+	 * returning, and requests over it are answered with
+	 * <code>503 Service Unavailable</code> without being handled, so the requests
+	 * that are handled stay near the target under overload. The limit starts at
+	 * the number of worker threads, and never exceeds
+	 * {@link HTTPServer#MAX_CONCURRENCY_LIMIT}.
+	 *
+	 * @param targetLatency The target in milliseconds, or <code>0</code> not to
+	 *                      limit concurrency.
+	 * @return This config for chaining.
+	 * @see AdmissionController
+	 */
+	public ServerConfig setTargetLatency(int targetLatency) {
+		if (targetLatency < 0)
+			throw new IllegalArgumentException("Target latency must not be negative");
+		this.targetLatency = targetLatency;
+		return this;
+	}
+
+	/**
+	 * Set the <code>Retry-After</code> value sent with
+	 * <code>503 Service Unavailable</code> responses when the server is
+	 * overloaded.
+	 *
+	 * @param retryAfter The delay in seconds.
+	 * @return This config for chaining.
+	 */
+	public ServerConfig setRetryAfter(int retryAfter) {
+		if (retryAfter < 0)
+			throw new IllegalArgumentException("Delay must not be negative");
+		this.retryAfter = retryAfter;
+		return this;
+	}
+
+	/**
+	 * Set the most connections that may be open at once. Once the cap is reached,
+	 * the oldest idle keep-alive connection is closed to make room for a new one,
+	 * and if none is idle, the new connection is answered with
+	 * <code>503 Service Unavailable</code> and closed.
+	 *
+	 * @param maxConnections The maximum number of connections, or <code>0</code>
+	 *                       for no cap.
+	 * @return This config for chaining.
+	 * @see ConnectionManager
+	 */
+	public ServerConfig setMaxConnections(int maxConnections) {
+		if (maxConnections < 0)
+			throw new IllegalArgumentException("Connection cap must not be negative");
+		this.maxConnections = maxConnections;
+		return this;
+	}
+
+	/**
+	 * Set the most requests served on a single connection. The response to the
+	 * last one is sent with <code>Connection: close</code>.
+	 *
+	 * @param maxRequestsPerConnection The maximum number of requests, or
+	 *                                 <code>0</code> for no limit.
+	 * @return This config for chaining.
+	 */
+	public ServerConfig setMaxRequestsPerConnection(int maxRequestsPerConnection) {
+		if (maxRequestsPerConnection < 0)
+			throw new IllegalArgumentException("Request limit must not be negative");
+		this.maxRequestsPerConnection = maxRequestsPerConnection;
+		return this;
+	}
+
+	/**
+	 * Set how long an {@link AsyncRequestHandler} may take to complete a request,
+	 * counted from when the request was read. A request still incomplete at its
+	 * deadline is cancelled and answered with
+	 * <code>503 Service Unavailable</code>. A request can set its own deadline
+	 * with {@link HTTPRequest#setTimeout(long)}.
+	 *
+	 * @param asyncTimeout The timeout in milliseconds, or <code>0</code> for
+	 *                     none.
+	 * @return This config for chaining.
+	 */
+	public ServerConfig setAsyncTimeout(int asyncTimeout) {
+		if (asyncTimeout < 0)
+			throw new IllegalArgumentException("Async timeout must not be negative");
+		this.asyncTimeout = asyncTimeout;
+		return this;
+	}
+
+	public Transport getTransport() {
+		return transport;
+	}
+
+	public int getEventLoops() {
+		return eventLoops;
+	}
+
+	public int getAcceptors() {
+		return acceptors;
+	}
+
+	public int getBacklog() {
+		return backlog;
+	}
+
+	public ExecutorStrategy getExecutorStrategy() {
+		return executorStrategy;
+	}
+
+	public int getWorkerThreads() {
+		return workerThreads;
+	}
+
+	public int getKeepAliveTimeout() {
+		return keepAliveTimeout;
+	}
+
+	public long getMaxBodySize() {
+		return maxBodySize;
+	}
+
+	public boolean isCompressionEnabled() {
+		return compressionEnabled;
+	}
+
+	public int getCompressionMinSize() {
+		return compressionMinSize;
+	}
+
+	public boolean isHashETags() {
+		return hashETags;
+	}
+
+	public boolean isDirectBuffers() {
+		return directBuffers;
+	}
+
+	public int getMaxQueuedTasks() {
+		return maxQueuedTasks;
+	}
+
+	public int getTargetLatency() {
+		return targetLatency;
+	}
+
+	public int getRetryAfter() {
+		return retryAfter;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public int getMaxRequestsPerConnection() {
+		return maxRequestsPerConnection;
+	}
+
+	public int getAsyncTimeout() {
+		return asyncTimeout;
+	}
+
+}
@@ -0,0 +1,322 @@
+package com.rawrross.server;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.rawrross.server.HTTPResponse.HttpStatusCode;
+
+/**
+ * Counts what an {@link HTTPServer} is doing: its connections, the requests
+ * being handled, the bytes moved, and how long each route takes to respond.
+ * <p>
+ * Counters are {@link LongAdder}s, which spread concurrent updates over several
+ * cells, and latencies are recorded in fixed histogram buckets of the same, so
+ * recording never blocks and costs little more than reading the clock. The
+ * values are summed when they are read, and can be served to a Prometheus
+ * scraper with a {@link MetricsHandler}.
+ *
+ * @author Randy Ross
+ */
+public class ServerMetrics {
+
+	/** Upper bounds of the latency histogram buckets, in seconds. */
+	private static final double[] BUCKETS = { 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1,
+			2.5, 5, 10 };
+	private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+	private static final String[] BUCKET_LABELS = new String[BUCKETS.length];
+
+	static {
+		for (int i = 0; i < BUCKETS.length; i++) {
+			BUCKET_NANOS[i] = (long) (BUCKETS[i] * 1e9);
+			BUCKET_LABELS[i] = BigDecimal.valueOf(BUCKETS[i]).stripTrailingZeros().toPlainString();
+		}
+	}
+
+	/**
+	 * Response latencies for one route and status. The last bucket counts
+	 * latencies above every bound.
+	 */
+	static final class Histogram {
+
+		private final LongAdder[] counts;
+		private final LongAdder sumNanos;
+
+		private Histogram() {
+			counts = new LongAdder[BUCKETS.length + 1];
+			for (int i = 0; i < counts.length; i++)
+				counts[i] = new LongAdder();
+			sumNanos = new LongAdder();
+		}
+
+		void record(long nanos) {
+			int bucket = 0;
+			while (bucket < BUCKET_NANOS.length && nanos > BUCKET_NANOS[bucket])
+				bucket++;
+			counts[bucket].increment();
+			sumNanos.add(nanos);
+		}
+
+	}
+
+	private final ExecutorService executor;
+	private final BufferPool bufferPool;
+	private final AdmissionController admission;
+	private final ConnectionManager connections;
+
+	private final LongAdder connectionsOpened, connectionsClosed;
+	private final LongAdder requestsActive;
+	private final LongAdder bytesReceived, bytesSent;
+	/** Error responses sent without a request being handled, by status ordinal. */
+	private final LongAdder[] rejected;
+	/** Histograms by route, then by status ordinal. */
+	private final ConcurrentHashMap<String, AtomicReferenceArray<Histogram>> latencies;
+
+	/**
+	 * @param executor    The server's executor, for its queue depth.
+	 * @param bufferPool  The server's buffer pool.
+	 * @param admission   The server's admission controller, for its concurrency
+	 *                    limit.
+	 * @param connections The server's connection manager, for idle connections
+	 *                    and the keep-alive timeout.
+	 */
+	ServerMetrics(ExecutorService executor, BufferPool bufferPool, AdmissionController admission,
+			ConnectionManager connections) {
+		this.executor = executor;
+		this.bufferPool = bufferPool;
+		this.admission = admission;
+		this.connections = connections;
+		this.connectionsOpened = new LongAdder();
+		this.connectionsClosed = new LongAdder();
+		this.requestsActive = new LongAdder();
+		this.bytesReceived = new LongAdder();
+		this.bytesSent = new LongAdder();
+		this.rejected = new LongAdder[HttpStatusCode.values().length];
+		for (int i = 0; i < rejected.length; i++)
+			rejected[i] = new LongAdder();
+		this.latencies = new ConcurrentHashMap<>();
+	}
+
+	void connectionOpened() {
+		connectionsOpened.increment();
+	}
+
+	void connectionClosed() {
+		connectionsClosed.increment();
+	}
+
+	void handlerStarted() {
+		requestsActive.increment();
+	}
+
+	void handlerFinished() {
+		requestsActive.decrement();
+	}
+
+	/**
+	 * Record a request whose response has been written.
+	 *
+	 * @param route  The pattern of the route that handled it, or
+	 *               <code>null</code>.
+	 * @param status The status of the response.
+	 * @param nanos  The time from the request's head being read to its response
+	 *               being written, including any wait for a worker thread.
+	 */
+	void responded(String route, HttpStatusCode status, long nanos) {
+		if (route == null)
+			route = "";
+		AtomicReferenceArray<Histogram> byStatus = latencies.get(route);
+		if (byStatus == null)
+			byStatus = latencies.computeIfAbsent(route, r -> new AtomicReferenceArray<>(rejected.length));
+
+		Histogram histogram = byStatus.get(status.ordinal());
+		if (histogram == null) {
+			byStatus.compareAndSet(status.ordinal(), null, new Histogram());
+			histogram = byStatus.get(status.ordinal());
+		}
+		histogram.record(nanos);
+	}
+
+	/**
+	 * Record an error response sent before a request could be handled, such as
+	 * for a malformed or timed out request.
+	 */
+	void rejected(HttpStatusCode status) {
+		rejected[status.ordinal()].increment();
+	}
+
+	void received(long bytes) {
+		bytesReceived.add(bytes);
+	}
+
+	void sent(long bytes) {
+		bytesSent.add(bytes);
+	}
+
+	/**
+	 * The number of connections currently open.
+	 */
+	public long getActiveConnections() {
+		// Read the closed count first, so a connection closing meanwhile is not missed
+		long closed = connectionsClosed.sum();
+		return connectionsOpened.sum() - closed;
+	}
+
+	/**
+	 * The number of open connections waiting for their next request.
+	 */
+	public long getIdleConnections() {
+		return connections.getIdleConnections();
+	}
+
+	/**
+	 * The keep-alive timeout currently applied to idle connections, in
+	 * milliseconds, which shrinks under pressure.
+	 */
+	public long getKeepAliveTimeout() {
+		return connections.getKeepAliveTimeout();
+	}
+
+	/**
+	 * The number of connections accepted since the server started.
+	 */
+	public long getTotalConnections() {
+		return connectionsOpened.sum();
+	}
+
+	/**
+	 * The number of requests whose handler is currently running.
+	 */
+	public long getActiveRequests() {
+		return requestsActive.sum();
+	}
+
+	/**
+	 * The current adaptive concurrency limit, or <code>-1</code> if concurrency
+	 * is not limited.
+	 */
+	public long getConcurrencyLimit() {
+		return admission.isAdaptive() ? admission.getLimit() : -1;
+	}
+
+	/**
+	 * The number of tasks waiting for a worker thread, or <code>-1</code> if the
+	 * executor does not queue tasks.
+	 */
+	public long getQueuedTasks() {
+		if (executor instanceof ThreadPoolExecutor pool)
+			return pool.getQueue().size();
+		if (executor instanceof ForkJoinPool pool)
+			return pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount();
+		return -1;
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	/**
+	 * Write every metric in the Prometheus text exposition format.
+	 *
+	 * @param out The builder to append the metrics to.
+	 */
+	public void writePrometheus(StringBuilder out) {
+		gauge(out, "http_server_connections_active", "Connections currently open.", getActiveConnections());
+		counter(out, "http_server_connections_total", "Connections accepted.", getTotalConnections());
+		gauge(out, "http_server_connections_idle", "Connections waiting for their next request.",
+				getIdleConnections());
+		counter(out, "http_server_connections_timed_out_total", "Idle connections closed by their keep-alive timeout.",
+				connections.getTimedOut());
+		counter(out, "http_server_connections_reaped_total", "Idle connections closed early to make room.",
+				connections.getReaped());
+		header(out, "http_server_keep_alive_timeout_seconds", "gauge", "The current keep-alive timeout.");
+		out.append("http_server_keep_alive_timeout_seconds ").append(getKeepAliveTimeout() / 1e3).append('\n');
+		gauge(out, "http_server_requests_active", "Requests whose handler is running.", getActiveRequests());
+		long queued = getQueuedTasks();
+		if (queued >= 0)
+			gauge(out, "http_server_executor_queued_tasks", "Tasks waiting for a worker thread.", queued);
+		if (admission.isAdaptive()) {
+			gauge(out, "http_server_concurrency_limit", "Requests that may be in flight at once.",
+					admission.getLimit());
+			gauge(out, "http_server_requests_in_flight", "Admitted requests, queued or being handled.",
+					admission.getInFlight());
+		}
+		counter(out, "http_server_received_bytes_total", "Bytes read from clients.", getBytesReceived());
+		counter(out, "http_server_sent_bytes_total", "Bytes written to clients.", getBytesSent());
+
+		header(out, "http_server_rejected_total", "counter",
+				"Error responses sent without handling a request, by status.");
+		for (HttpStatusCode status : HttpStatusCode.values()) {
+			long count = rejected[status.ordinal()].sum();
+			if (count > 0)
+				out.append("http_server_rejected_total{status=\"").append(status.CODE).append("\"} ").append(count)
+						.append('\n');
+		}
+
+		header(out, "http_server_request_duration_seconds", "histogram",
+				"Time from reading a request to writing its response, by route and status.");
+		for (Map.Entry<String, AtomicReferenceArray<Histogram>> entry : latencies.entrySet()) {
+			String route = escape(entry.getKey());
+			AtomicReferenceArray<Histogram> byStatus = entry.getValue();
+			for (HttpStatusCode status : HttpStatusCode.values()) {
+				Histogram histogram = byStatus.get(status.ordinal());
+				if (histogram != null)
+					histogram(out, route, status, histogram);
+			}
+		}
+
+		gauge(out, "http_server_buffer_pool_leased_bytes", "Bytes of I/O buffers currently leased.",
+				bufferPool.getLeasedBytes());
+		gauge(out, "http_server_buffer_pool_high_water_bytes", "Most bytes of I/O buffers leased at once.",
+				bufferPool.getHighWaterMark());
+		counter(out, "http_server_buffer_pool_leases_total", "I/O buffers leased.", bufferPool.getLeases());
+		counter(out, "http_server_buffer_pool_misses_total", "I/O buffer leases that allocated a new buffer.",
+				bufferPool.getMisses());
+	}
+
+	private static void histogram(StringBuilder out, String route, HttpStatusCode status, Histogram histogram) {
+		String labels = "route=\"" + route + "\",status=\"" + status.CODE + "\"";
+		long cumulative = 0;
+		for (int i = 0; i < BUCKETS.length; i++) {
+			cumulative += histogram.counts[i].sum();
+			out.append("http_server_request_duration_seconds_bucket{").append(labels).append(",le=\"")
+					.append(BUCKET_LABELS[i]).append("\"} ").append(cumulative).append('\n');
+		}
+		cumulative += histogram.counts[BUCKETS.length].sum();
+		out.append("http_server_request_duration_seconds_bucket{").append(labels).append(",le=\"+Inf\"} ")
+				.append(cumulative).append('\n');
+		out.append("http_server_request_duration_seconds_sum{").append(labels).append("} ")
+				.append(histogram.sumNanos.sum() / 1e9).append('\n');
+		out.append("http_server_request_duration_seconds_count{").append(labels).append("} ").append(cumulative)
+				.append('\n');
+	}
+
+	private static void gauge(StringBuilder out, String name, String help, long value) {
+		header(out, name, "gauge", help);
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void counter(StringBuilder out, String name, String help, long value) {
+		header(out, name, "counter", help);
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void header(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static String escape(String label) {
+		return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+}
@@ -0,0 +1,334 @@
+package com.rawrross.server;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.rawrross.server.HTTPResponse.HttpStatusCode;
+
+/**
+ * Serves files from a directory, keeping recently requested small files in
+ * memory.
+ * <p>
+ * Cached files hold their contents, content type, validators, and pre-encoded
+ * headers, so a cache hit makes no file system calls. The cache is bounded by
+ * the total size of the cached files, evicting the least recently used files
+ * first, and a {@link WatchService} on the directory invalidates files as soon
+ * as they, or the files their links lead to, are modified or deleted. Files
+ * larger than the {@link #setMaxCachedFileSize(long) maximum cached file size}
+ * are streamed from disk on every request.
+ *
+ * @author Randy Ross
+ */
+public class StaticFileHandler implements RequestHandler, Closeable {
+
+	private static final Logger logger = LogManager.getLogger("Server");
+
+	public static long DEFAULT_CACHE_SIZE = 32 * 1024 * 1024;
+	public static long DEFAULT_MAX_CACHED_FILE_SIZE = 1024 * 1024;
+
+	/**
+	 * A file held in memory.
+	 */
+	static final class CachedFile extends CachedBody {
+
+		private final StaticFileHandler owner;
+		private final Path file;
+		/** The file the path leads to, through any symbolic links. */
+		private final Path real;
+
+		private CachedFile(StaticFileHandler owner, Path file, Path real, byte[] data, String contentType,
+				Instant lastModified) {
+			super(data, contentType, HTTPResponse.fileETag(data.length, lastModified), lastModified);
+			this.owner = owner;
+			this.file = file;
+			this.real = real;
+		}
+
+		@Override
+		void grew(long bytes) {
+			owner.grew(this, bytes);
+		}
+
+	}
+
+	private final Path root;
+	private final long cacheSize;
+	private long maxCachedFileSize;
+
+	private final LinkedHashMap<Path, CachedFile> cache;
+	private long cachedBytes;
+	/** Incremented on every invalidation, so files read concurrently are not cached stale. */
+	private final AtomicLong generation;
+
+	private final WatchService watcher;
+
+	/**
+	 * Serve files from the given directory, with the
+	 * {@link #DEFAULT_CACHE_SIZE default cache size}.
+	 *
+	 * @param root The directory to serve files from.
+	 * @throws IOException If the directory cannot be watched for changes.
+	 */
+	public StaticFileHandler(Path root) throws IOException {
+		this(root, DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * Serve files from the given directory.
+	 *
+	 * @param root      The directory to serve files from.
+	 * @param cacheSize The most bytes of file contents to hold in memory.
+	 * @throws IOException If the directory does not exist, or cannot be watched
+	 *                     for changes.
+	 */
+	public StaticFileHandler(Path root, long cacheSize) throws IOException {
+		this.root = root.toRealPath();
+		this.cacheSize = cacheSize;
+		this.maxCachedFileSize = Math.min(DEFAULT_MAX_CACHED_FILE_SIZE, cacheSize);
+		this.cache = new LinkedHashMap<>(64, 0.75f, true);
+		this.generation = new AtomicLong();
+
+		this.watcher = this.root.getFileSystem().newWatchService();
+		try (Stream<Path> dirs = Files.walk(this.root)) {
+			for (Iterator<Path> it = dirs.filter(Files::isDirectory).iterator(); it.hasNext();)
+				watch(it.next());
+		}
+
+		Thread thread = new Thread(this::watchLoop, "static-file-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Set the size of the largest file held in memory. Larger files are streamed
+	 * from disk instead.
+	 *
+	 * @param maxCachedFileSize The maximum file size in bytes.
+	 * @return This handler for chaining.
+	 */
+	public StaticFileHandler setMaxCachedFileSize(long maxCachedFileSize) {
+		this.maxCachedFileSize = Math.min(maxCachedFileSize, cacheSize);
+		return this;
+	}
+
+	/**
+	 * Respond with the file at the request's URI, relative to this handler's
+	 * directory, or with <code>404 Not Found</code> if there is no such file.
+	 */
+	@Override
+	public void handleRequest(HTTPRequest request, HTTPResponse response) throws IOException {
+		if (!serve(request.getUri(), response))
+			response.setErrorStatus(HttpStatusCode.NOT_FOUND, null);
+	}
+
+	/**
+	 * Set the response body to the file at the given path, relative to this
+	 * handler's directory. Paths that resolve outside the directory, including
+	 * through symbolic links, are not served.
+	 *
+	 * @param path     The path of the file, such as a request URI.
+	 * @param response The response to set the body of.
+	 * @return <code>False</code> if there is no such file.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public boolean serve(String path, HTTPResponse response) throws IOException {
+		Path file = resolve(path);
+		if (file == null)
+			return false;
+
+		CachedFile cached;
+		synchronized (cache) {
+			cached = cache.get(file);
+		}
+		if (cached != null) {
+			response.setBody(cached);
+			return true;
+		}
+
+		long startGeneration = generation.get();
+		// A symbolic link inside the directory may point outside it
+		Path real;
+		try {
+			real = file.toRealPath();
+		} catch (IOException e) {
+			return false;
+		}
+		if (!real.startsWith(root))
+			return false;
+
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(real, BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+		if (!attributes.isRegularFile())
+			return false;
+
+		if (attributes.size() > maxCachedFileSize) {
+			response.setBody(real);
+			return true;
+		}
+
+		byte[] data;
+		try {
+			data = Files.readAllBytes(real);
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+		cached = new CachedFile(this, file, real, data, MimeType.getMimeFromFilename(file),
+				attributes.lastModifiedTime().toInstant());
+		put(file, cached, startGeneration);
+
+		response.setBody(cached);
+		return true;
+	}
+
+	/**
+	 * Remove every file from the cache.
+	 */
+	public void invalidateAll() {
+		generation.incrementAndGet();
+		synchronized (cache) {
+			cache.clear();
+			cachedBytes = 0;
+		}
+	}
+
+	/**
+	 * Stop watching the directory for changes.
+	 */
+	@Override
+	public void close() throws IOException {
+		watcher.close();
+		invalidateAll();
+	}
+
+	/**
+	 * Account for a compressed variant added to a cached file, evicting other
+	 * files if the cache is now over budget.
+	 */
+	private void grew(CachedFile cached, long bytes) {
+		synchronized (cache) {
+			cached.weight += bytes;
+			if (cache.get(cached.file) == cached) {
+				cachedBytes += bytes;
+				evict();
+			}
+		}
+	}
+
+	/**
+	 * Resolve a path against the directory, without following links.
+	 *
+	 * @return The file, or <code>null</code> if the path is invalid, such as one
+	 *         with a NUL character, or lies outside the directory.
+	 */
+	private Path resolve(String path) {
+		if (path == null)
+			return null;
+		Path file;
+		try {
+			file = root.resolve(path.startsWith("/") ? path.substring(1) : path).normalize();
+		} catch (InvalidPathException e) {
+			return null;
+		}
+		return file.startsWith(root) ? file : null;
+	}
+
+	private void put(Path file, CachedFile cached, long startGeneration) {
+		synchronized (cache) {
+			// The file may have changed while it was being read
+			if (generation.get() != startGeneration)
+				return;
+
+			CachedFile old = cache.put(file, cached);
+			if (old != null)
+				cachedBytes -= old.weight;
+			cachedBytes += cached.weight;
+			evict();
+		}
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<Path, CachedFile>> it = cache.entrySet().iterator();
+		while (cachedBytes > cacheSize && it.hasNext()) {
+			cachedBytes -= it.next().getValue().weight;
+			it.remove();
+		}
+	}
+
+	private void invalidate(Path file) {
+		generation.incrementAndGet();
+		synchronized (cache) {
+			// Remove the file, or everything under a directory, including through links
+			Iterator<Map.Entry<Path, CachedFile>> it = cache.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Path, CachedFile> entry = it.next();
+				if (entry.getKey().startsWith(file) || entry.getValue().real.startsWith(file)) {
+					cachedBytes -= entry.getValue().weight;
+					it.remove();
+				}
+			}
+		}
+	}
+
+	private void watch(Path dir) throws IOException {
+		dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+	}
+
+	private void watchLoop() {
+		while (true) {
+			WatchKey key;
+			try {
+				key = watcher.take();
+			} catch (ClosedWatchServiceException | InterruptedException e) {
+				return;
+			}
+
+			Path dir = (Path) key.watchable();
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == OVERFLOW) {
+					invalidateAll();
+					continue;
+				}
+
+				Path file = dir.resolve((Path) event.context());
+				invalidate(file);
+
+				if (event.kind() == ENTRY_CREATE && Files.isDirectory(file)) {
+					try {
+						watch(file);
+					} catch (IOException e) {
+						logger.warn("Unable to watch directory {}", file, e);
+					}
+				}
+			}
+			key.reset();
+		}
+	}
+
+}
@@ -0,0 +1,21 @@
+package com.rawrross.server.exception;
+
+import java.io.IOException;
+
+/**
+ * Signals that an HTTP request uses a feature the server does not support,
+ * such as a transfer coding other than <code>chunked</code>.
+ * 
+ * @author Randy Ross
+ */
+public class NotImplementedException extends IOException {
+
+	public NotImplementedException() {
+		super();
+	}
+
+	public NotImplementedException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,20 @@
+package com.rawrross.server.exception;
+
+import java.io.IOException;
+
+/**
+ * Signals that an HTTP request body is larger than the server allows.
+ * 
+ * @author Randy Ross
+ */
+public class PayloadTooLargeException extends IOException {
+
+	public PayloadTooLargeException() {
+		super();
+	}
+
+	public PayloadTooLargeException(String message) {
+		super(message);
+	}
+
+}